@@ -3,16 +3,28 @@ package com.zagonico.vies;
 import android.util.ArrayMap;
 
 import com.zagonico.elfws.ElfWsClient;
+import com.zagonico.elfws.ElfWsRateLimiter;
 import com.zagonico.elfws.ElfWsResponse;
 
 import java.util.Map;
 
 public class VatChecker {
+    private static final String VIES_URL = "https://ec.europa.eu/taxation_customs/vies/services/checkVatService";
+
+    /**
+     * VIES throttles aggressively: the checks of all the clients stay under one shared limit.
+     */
+    private static final ElfWsRateLimiter RATE_LIMITER = new ElfWsRateLimiter();
+    static {
+        RATE_LIMITER.setLimit(VIES_URL, 1, 3);
+    }
+
     public static VatInfo elfCheckVat(String countryCode, String vatNumber) {
         VatInfo info = new VatInfo();
 
         try {
             ElfWsClient client = new ElfWsClient();
+            client.setRateLimiter(RATE_LIMITER);
 
             String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
                     "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\"" +
@@ -37,7 +49,7 @@ public class VatChecker {
             map.put("Content-Length", "" + (xml.length() + 2));
             client.setAddictionalHeaders(map);
 
-            ElfWsResponse response = client.httpRequest("https://ec.europa.eu/taxation_customs/vies/services/checkVatService");
+            ElfWsResponse response = client.httpRequest(VIES_URL);
 
             if (response == null || response.isError()) {
                 return null;
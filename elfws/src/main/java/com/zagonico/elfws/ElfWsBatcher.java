@@ -0,0 +1,688 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs the calls submitted within a short window into a single request to a batch endpoint,
+ * and fans the responses of the batch back out to the future and callback of each call, so
+ * many small calls cost one round trip.
+ *
+ * A batch is sent when <code>maxBatchSize</code> calls are waiting or <code>windowMillis</code>
+ * after its first call, whichever comes first; a batch of a single call is sent as a plain
+ * request. Uploads, downloads, requests with a prepared body and, when the client has a cache,
+ * the cacheable GETs are never batched, they are executed directly by the client.
+ *
+ * The future of each call is tracked by the client like those of its own requests: the deadline
+ * of the request (or the default one of the client) and
+ * {@link com.zagonico.elfws.ElfWsClient#cancelAll() cancelAll} apply to it.
+ *
+ * The batch request is a POST executed by the client, with its auth, cache, transport and so on.
+ * If it ends with an error status every call receives that response; a call missing from the
+ * answer of the server fails with an <code>IOException</code>.
+ *
+ * <code>
+ *     ElfWsBatcher batcher = new ElfWsBatcher(client, "https://mydomain.com/batch", ElfWsBatcher.Format.JSON);
+ *     ElfWsFuture user = batcher.submit(userRequest);
+ *     batcher.submit(settingsRequest, new ElfWsCallback() {
+ *         public void processResponse(ElfWsResponse response) { ... }
+ *     });
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsBatcher {
+    /**
+     * How the calls are packed in the batch request.
+     */
+    public enum Format {
+        /**
+         * Json array of <code>{"id", "method", "url", "headers", "body"}</code>, answered by an array
+         * of <code>{"id", "status", "headers", "body"}</code> (JSON-RPC style, matched by id or
+         * by position). Json bodies are embedded as json, the other ones as strings.
+         */
+        JSON,
+        /**
+         * <code>multipart/mixed</code> body of <code>application/http</code> parts, each one a
+         * whole HTTP/1.1 request, answered by a <code>multipart/mixed</code> of HTTP responses
+         * (matched by Content-ID or by position).
+         */
+        MULTIPART_MIXED,
+    };
+
+    public static final long DEFAULT_WINDOW_MILLIS = 10;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ElfWsClient client;
+    private final String batchUrl;
+    private final Format format;
+    private final long windowMillis;
+    private final int maxBatchSize;
+
+    /** calls waiting for the window to close, guarded by this */
+    private List<Call> pending = new ArrayList<>();
+    private ScheduledFuture<?> timer;
+    private long nextId;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedCallCount = new AtomicLong();
+    private final AtomicLong directCallCount = new AtomicLong();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Batcher with a window of {@link #DEFAULT_WINDOW_MILLIS DEFAULT_WINDOW_MILLIS} and at most
+     * {@link #DEFAULT_MAX_BATCH_SIZE DEFAULT_MAX_BATCH_SIZE} calls per batch.
+     */
+    public ElfWsBatcher(ElfWsClient client, String batchUrl, Format format) {
+        this(client, batchUrl, format, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param client
+     *        client that executes the batch requests
+     *
+     * @param batchUrl
+     *        url of the batch endpoint
+     *
+     * @param format
+     *        how the calls are packed
+     *
+     * @param windowMillis
+     *        time a batch waits for more calls after its first one
+     *
+     * @param maxBatchSize
+     *        calls after which a batch is sent without waiting
+     */
+    public ElfWsBatcher(ElfWsClient client, String batchUrl, Format format, long windowMillis, int maxBatchSize) {
+        if (client == null || batchUrl == null || format == null) throw new IllegalArgumentException("Client, url and format are required");
+        if (windowMillis < 0 || maxBatchSize <= 0) throw new IllegalArgumentException("Invalid batch sizes");
+
+        this.client = client;
+        this.batchUrl = batchUrl;
+        this.format = format;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * True if <code>request</code> can travel in a batch: its body is in memory and its
+     * response isn't streamed to a file.
+     * @param request the request
+     * @return boolean
+     */
+    public static boolean isBatchable(ElfWsRequest request) {
+        return !request.isUpload() && !request.isDownload() && request.getBody() == null;
+    }
+
+    /**
+     * Add <code>request</code> to the current batch. Cancelling the future of a call still
+     * waiting removes it from the batch.
+     * @param request the request
+     * @return ElfWsFuture completed with the response to the call
+     */
+    public ElfWsFuture submit(ElfWsRequest request) {
+        if (request == null) throw new IllegalArgumentException("Request cannot be null");
+
+        if (!isBatchable(request) || isCached(request)) {
+            directCallCount.incrementAndGet();
+            return client.executeAsync(request);
+        }
+
+        final Call call = new Call(request);
+        List<Call> full = null;
+        synchronized (this) {
+            call.id = Long.toString(++nextId);
+            pending.add(call);
+            if (pending.size() >= maxBatchSize)
+                full = takePending();
+            else if (timer == null)
+                timer = ElfWsScheduler.schedule(flushTask, windowMillis);
+        }
+
+        call.future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                cancelled(call);
+            }
+        });
+        client.track(request, call.future);
+
+        if (full != null) send(full);
+        return call.future;
+    }
+
+    /**
+     * Add <code>request</code> to the current batch and invoke <code>callback</code> with its
+     * response, null if it fails, like
+     * {@link com.zagonico.elfws.ElfWsClient#executeRequest(ElfWsRequest, ElfWsCallback) executeRequest}.
+     * @param request the request
+     * @param callback the callback
+     * @return ElfWsFuture completed with the response to the call
+     */
+    public ElfWsFuture submit(ElfWsRequest request, ElfWsCallback callback) {
+        ElfWsFuture future = submit(request);
+        if (callback != null) future.addCallback(callback);
+        return future;
+    }
+
+    /**
+     * Send the waiting calls now, without waiting for the window to close.
+     */
+    public void flush() {
+        List<Call> calls;
+        synchronized (this) {
+            calls = takePending();
+        }
+        if (!calls.isEmpty()) send(calls);
+    }
+
+    /**
+     * Calls waiting for their batch to be sent.
+     * @return int
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Batch requests sent.
+     * @return long count
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Calls sent inside a batch request.
+     * @return long count
+     */
+    public long getBatchedCallCount() {
+        return batchedCallCount.get();
+    }
+
+    /**
+     * Calls sent as plain requests: alone in their window, or not batchable.
+     * @return long count
+     */
+    public long getDirectCallCount() {
+        return directCallCount.get();
+    }
+
+    public String getBatchUrl() {
+        return batchUrl;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * True if the client serves <code>request</code> through its cache, which a batch would bypass.
+     */
+    private boolean isCached(ElfWsRequest request) {
+        return client.getCache() != null && ElfWsCache.isCacheable(request);
+    }
+
+    private List<Call> takePending() {
+        List<Call> calls = pending;
+        pending = new ArrayList<>();
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        return calls;
+    }
+
+    private void cancelled(Call call) {
+        Batch batch;
+        synchronized (this) {
+            if (pending.remove(call)) return;
+            batch = call.batch;
+        }
+
+        // nobody is waiting for the batch anymore
+        if (batch != null && batch.isAbandoned()) batch.future.cancel(true);
+    }
+
+    private void send(List<Call> calls) {
+        final List<Call> live = new ArrayList<>(calls.size());
+        for (Call call : calls) {
+            if (!call.future.isDone()) live.add(call);
+        }
+        if (live.isEmpty()) return;
+
+        if (live.size() == 1) {
+            directCallCount.incrementAndGet();
+            forward(client.executeAsync(live.get(0).request), live.get(0).future);
+            return;
+        }
+
+        ElfWsRequest batchRequest;
+        try {
+            batchRequest = new ElfWsRequest.Builder(batchUrl)
+                    .addBody(format == Format.JSON ? encodeJson(live) : encodeMultipart(live))
+                    .build();
+        }
+        catch (Exception e) {
+            for (Call call : live) call.future.fail(e);
+            return;
+        }
+
+        batchCount.incrementAndGet();
+        batchedCallCount.addAndGet(live.size());
+
+        final ElfWsFuture future = client.executeAsync(batchRequest);
+        Batch batch = new Batch(live, future);
+        synchronized (this) {
+            for (Call call : live) call.batch = batch;
+        }
+        if (batch.isAbandoned()) future.cancel(true);
+
+        future.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (future.getException() != null) {
+                    for (Call call : live) call.future.fail(future.getException());
+                    return;
+                }
+                dispatch(live, response);
+            }
+        });
+    }
+
+    /**
+     * Complete the calls with their part of the batch response.
+     */
+    private void dispatch(List<Call> calls, ElfWsResponse response) {
+        if (response.isError()) {
+            // the batch as a whole has been refused
+            for (Call call : calls) call.future.complete(response);
+            return;
+        }
+
+        Map<String, ElfWsResponse> byId = new HashMap<>();
+        List<ElfWsResponse> byPosition = new ArrayList<>();
+        try {
+            if (format == Format.JSON)
+                decodeJson(response, byId, byPosition);
+            else
+                decodeMultipart(response, byId, byPosition);
+        }
+        catch (Exception e) {
+            if (client.isDebug()) e.printStackTrace();
+            for (Call call : calls) call.future.fail(new IOException("Invalid batch response: " + e.getMessage()));
+            return;
+        }
+
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            ElfWsResponse part = byId.get(call.id);
+            if (part == null && byId.isEmpty() && i < byPosition.size()) part = byPosition.get(i);
+
+            if (part != null)
+                call.future.complete(part);
+            else
+                call.future.fail(new IOException("No response for call " + call.id + " in the batch"));
+        }
+    }
+
+    private ElfWsBody encodeJson(List<Call> calls) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        for (Call call : calls) {
+            ElfWsRequest request = call.request;
+            ElfWsBody body = ElfWsBody.of(request);
+
+            JSONObject headers = new JSONObject();
+            for (Map.Entry<String, String> header : request.getAddictionalHeaders().entrySet()) {
+                headers.put(header.getKey(), header.getValue());
+            }
+            if (body != null) headers.put("Content-Type", body.getContentType());
+
+            JSONObject item = new JSONObject();
+            item.put("id", call.id);
+            item.put("method", request.getMethod());
+            item.put("url", target(request.getAddress()));
+            item.put("headers", headers);
+            if (request.isJson()) {
+                String json = request.getJsonData().trim();
+                item.put("body", json.startsWith("[") ? new JSONArray(json) : new JSONObject(json));
+            }
+            else if (body != null) {
+                item.put("body", new String(bytes(body), StandardCharsets.UTF_8));
+            }
+            array.put(item);
+        }
+
+        return ElfWsBody.ofBytes(array.toString().getBytes(StandardCharsets.UTF_8), "application/json");
+    }
+
+    private void decodeJson(ElfWsResponse response, Map<String, ElfWsResponse> byId, List<ElfWsResponse> byPosition) throws JSONException {
+        JSONArray array = new JSONArray(response.getContent());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject item = array.optJSONObject(i);
+            if (item == null) throw new JSONException("Item " + i + " is not an object");
+
+            int status = item.optInt("status", item.optInt("code", 200));
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            headers.put(null, Collections.singletonList("HTTP/1.1 " + status));
+
+            // headers as an object, or as an array of name - value pairs
+            Object fields = item.opt("headers");
+            if (fields instanceof JSONObject) {
+                Iterator<String> names = ((JSONObject) fields).keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    addHeader(headers, name, ((JSONObject) fields).optString(name));
+                }
+            }
+            else if (fields instanceof JSONArray) {
+                JSONArray pairs = (JSONArray) fields;
+                for (int j = 0; j < pairs.length(); j++) {
+                    JSONObject pair = pairs.optJSONObject(j);
+                    if (pair != null) addHeader(headers, pair.optString("name"), pair.optString("value"));
+                }
+            }
+
+            Object body = item.opt("body");
+            String mime = header(headers, "Content-Type");
+            String content;
+            if (body == null || body == JSONObject.NULL) {
+                content = "";
+            }
+            else if (body instanceof JSONObject || body instanceof JSONArray) {
+                content = body.toString();
+                if (mime == null) mime = "application/json";
+            }
+            else {
+                content = body.toString();
+            }
+
+            ElfWsResponse part = new ElfWsResponse(status, headers);
+            part.addContentInfo("", mime != null ? mime : "", content.getBytes(StandardCharsets.UTF_8));
+
+            byPosition.add(part);
+            if (item.has("id")) byId.put(item.optString("id"), part);
+        }
+    }
+
+    private ElfWsBody encodeMultipart(List<Call> calls) throws IOException {
+        String boundary = "ElfWsBatch" + Long.toHexString(RANDOM.nextLong()) + Long.toHexString(System.currentTimeMillis());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (Call call : calls) {
+            ElfWsRequest request = call.request;
+            ElfWsBody body = ElfWsBody.of(request);
+            URL url = new URL(request.getAddress());
+
+            StringBuilder part = new StringBuilder(256);
+            part.append("--").append(boundary).append("\r\n");
+            part.append("Content-Type: application/http\r\n");
+            part.append("Content-Transfer-Encoding: binary\r\n");
+            part.append("Content-ID: <").append(call.id).append(">\r\n\r\n");
+
+            part.append(request.getMethod()).append(' ').append(target(request.getAddress())).append(" HTTP/1.1\r\n");
+            part.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) part.append(':').append(url.getPort());
+            part.append("\r\n");
+            for (Map.Entry<String, String> header : request.getAddictionalHeaders().entrySet()) {
+                part.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+
+            byte[] content = null;
+            if (body != null) {
+                content = bytes(body);
+                part.append("Content-Type: ").append(body.getContentType()).append("\r\n");
+                part.append("Content-Length: ").append(content.length).append("\r\n");
+            }
+            part.append("\r\n");
+
+            out.write(part.toString().getBytes(StandardCharsets.UTF_8));
+            if (content != null) out.write(content);
+            out.write(new byte[] { '\r', '\n' });
+        }
+        out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        return ElfWsBody.ofBytes(out.toByteArray(), "multipart/mixed; boundary=" + boundary);
+    }
+
+    private void decodeMultipart(ElfWsResponse response, Map<String, ElfWsResponse> byId, List<ElfWsResponse> byPosition) throws IOException {
+        String boundary = parameter(response.getHeader("Content-Type"), "boundary");
+        if (boundary == null) throw new IOException("Missing multipart boundary");
+
+        // a delimiter is always at the beginning of a line
+        byte[] body = response.getBody();
+        byte[] data = new byte[body.length + 2];
+        data[0] = '\r';
+        data[1] = '\n';
+        System.arraycopy(body, 0, data, 2, body.length);
+        byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+
+        int position = indexOf(data, delimiter, 0);
+        if (position < 0) throw new IOException("Missing multipart delimiter");
+
+        while (true) {
+            int lineStart = position + delimiter.length;
+            if (lineStart + 1 < data.length && data[lineStart] == '-' && data[lineStart + 1] == '-') break;
+
+            int partStart = indexOf(data, new byte[] { '\r', '\n' }, lineStart);
+            int next = partStart < 0 ? -1 : indexOf(data, delimiter, partStart);
+            if (next < 0) throw new IOException("Unterminated multipart body");
+            partStart += 2;
+
+            // part headers, then the embedded HTTP response
+            int headersEnd = indexOf(data, new byte[] { '\r', '\n', '\r', '\n' }, partStart - 2);
+            if (headersEnd < 0 || headersEnd > next) throw new IOException("Invalid multipart part");
+            String contentId = null;
+            for (String line : new String(data, partStart, Math.max(0, headersEnd - partStart), StandardCharsets.ISO_8859_1).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && "Content-ID".equalsIgnoreCase(line.substring(0, colon).trim())) contentId = line.substring(colon + 1).trim();
+            }
+
+            int payload = headersEnd + 4;
+            ElfWsNioTransport.ResponseParser parser = new ElfWsNioTransport.ResponseParser(false);
+            if (!parser.feed(ByteBuffer.wrap(data, payload, Math.max(0, next - payload)))) {
+                if (!parser.isUntilClose()) throw new IOException("Truncated response in multipart part");
+                parser.finishAtClose();
+            }
+
+            Map<String, List<String>> headers = parser.headers();
+            String mime = header(headers, "Content-Type");
+            ElfWsResponse part = new ElfWsResponse(parser.code, headers);
+            part.addContentInfo("", mime != null ? mime : "", parser.body.toByteArray());
+
+            byPosition.add(part);
+            if (contentId != null) byId.put(callId(contentId), part);
+
+            position = next;
+        }
+    }
+
+    /**
+     * Id of the call from the Content-ID of a response part: <code>&lt;id&gt;</code>, or
+     * <code>&lt;response-id&gt;</code> like the Google batch endpoints answer.
+     */
+    private static String callId(String contentId) {
+        String id = contentId;
+        if (id.startsWith("<") && id.endsWith(">")) id = id.substring(1, id.length() - 1);
+        if (id.startsWith("response-")) id = id.substring("response-".length());
+        return id;
+    }
+
+    /**
+     * Path and query of <code>address</code> if it is on the host of the batch endpoint,
+     * otherwise the whole address.
+     */
+    private String target(String address) throws MalformedURLException {
+        URL url = new URL(address);
+        URL batch = new URL(batchUrl);
+        if (!url.getProtocol().equals(batch.getProtocol()) || !url.getHost().equalsIgnoreCase(batch.getHost())
+                || port(url) != port(batch)) return address;
+
+        String target = url.getFile();
+        return target.isEmpty() ? "/" : target;
+    }
+
+    private static int port(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    private static byte[] bytes(ElfWsBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, body.getContentLength()));
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void addHeader(Map<String, List<String>> headers, String name, String value) {
+        if (name == null || name.isEmpty()) return;
+
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private static String header(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static String parameter(String contentType, String name) {
+        if (contentType == null) return null;
+
+        for (String param : contentType.split(";")) {
+            int equals = param.indexOf('=');
+            if (equals > 0 && name.equalsIgnoreCase(param.substring(0, equals).trim())) {
+                String value = param.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = Math.max(0, from); i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void forward(final ElfWsFuture source, final ElfWsFuture target) {
+        source.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (source.getException() != null)
+                    target.fail(source.getException());
+                else
+                    target.complete(response);
+            }
+        });
+        target.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                source.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * A submitted request and the future of its caller.
+     */
+    private static final class Call {
+        final ElfWsRequest request;
+        final ElfWsFuture future = new ElfWsFuture();
+        String id;
+        /** guarded by the batcher */
+        Batch batch;
+
+        Call(ElfWsRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * The calls sent together and the future of their batch request.
+     */
+    private static final class Batch {
+        final List<Call> calls;
+        final ElfWsFuture future;
+
+        Batch(List<Call> calls, ElfWsFuture future) {
+            this.calls = calls;
+            this.future = future;
+        }
+
+        boolean isAbandoned() {
+            for (Call call : calls) {
+                if (!call.future.isCancelled()) return false;
+            }
+            return true;
+        }
+    }
+}
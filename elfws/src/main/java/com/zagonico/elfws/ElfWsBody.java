@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of a request, with its Content-Type and, when it can be computed before writing, its
+ * Content-Length. A known length lets the connection stream the body in fixed length mode,
+ * otherwise it is sent with chunked transfer encoding; in both cases it is never buffered whole.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public abstract class ElfWsBody {
+    /**
+     * Value of the Content-Type header.
+     * @return String content type
+     */
+    public abstract String getContentType();
+
+    /**
+     * Size in bytes of the body.
+     * @return long length, -1 if unknown before writing
+     */
+    public abstract long getContentLength();
+
+    /**
+     * Write the body to <code>out</code>. The stream is flushed but not closed.
+     * @param out output stream of the connection
+     * @throws IOException if writing fails
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Value of the Content-Encoding header.
+     * @return String content encoding, null if the body isn't compressed
+     */
+    public String getContentEncoding() {
+        return null;
+    }
+
+    /**
+     * The body of <code>request</code>: the prepared one if set, json, xml, multipart if there are
+     * files, otherwise url encoded POST parameters.
+     * @param request the request
+     * @return ElfWsBody, null if the request has no body
+     */
+    public static ElfWsBody of(ElfWsRequest request) {
+        if (request.getBody() != null) {
+            return request.getBody();
+        }
+        if (request.isJson()) {
+            return ofBytes((request.getJsonData() + "\r\n").getBytes(StandardCharsets.UTF_8), "application/json");
+        }
+        if (request.isXml()) {
+            return ofBytes((request.getXmlData() + "\r\n").getBytes(StandardCharsets.UTF_8), "text/xml; charset=utf-8");
+        }
+        if (request.isUpload()) {
+            return new ElfWsMultipart(request.getPostParameters(), request.getUploads());
+        }
+        if (request.isPost()) {
+            return ofBytes(ElfWsUtil.concatenateParameters(request.getPostParameters()).getBytes(StandardCharsets.UTF_8),
+                    "application/x-www-form-urlencoded");
+        }
+        return null;
+    }
+
+    /**
+     * Gzip <code>body</code> if it is in memory (json, xml, form) and at least
+     * <code>threshold</code> bytes long. Multipart bodies are never compressed.
+     * @param body the body to compress
+     * @param threshold minimum size in bytes, -1 to never compress
+     * @return ElfWsBody the compressed body, or <code>body</code> itself
+     * @throws IOException if the body cannot be written
+     */
+    public static ElfWsBody gzip(ElfWsBody body, long threshold) throws IOException {
+        if (body == null || threshold < 0 || body instanceof ElfWsMultipart || body.getContentEncoding() != null) return body;
+
+        long length = body.getContentLength();
+        if (length < 0 || length < threshold) return body;
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream((int) length);
+        body.writeTo(plain);
+        byte[] compressed = ElfWsUtil.gzip(plain.toByteArray());
+
+        // not worth it for content that doesn't compress
+        if (compressed.length >= length) return body;
+
+        return ofBytes(compressed, body.getContentType(), "gzip");
+    }
+
+    /**
+     * Body with content already in memory.
+     * @param content the bytes of the body
+     * @param contentType the Content-Type
+     * @return ElfWsBody
+     */
+    public static ElfWsBody ofBytes(byte[] content, String contentType) {
+        return ofBytes(content, contentType, null);
+    }
+
+    /**
+     * Body with content already in memory, already encoded.
+     * @param content the bytes of the body
+     * @param contentType the Content-Type
+     * @param contentEncoding the Content-Encoding of <code>content</code>, null if not compressed
+     * @return ElfWsBody
+     */
+    public static ElfWsBody ofBytes(final byte[] content, final String contentType, final String contentEncoding) {
+        return new ElfWsBody() {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public long getContentLength() {
+                return content.length;
+            }
+
+            @Override
+            public String getContentEncoding() {
+                return contentEncoding;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(content);
+                out.flush();
+            }
+        };
+    }
+}
@@ -0,0 +1,945 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Http cache of the responses to GET requests, set on a client with
+ * {@link com.zagonico.elfws.ElfWsClient#setCache(ElfWsCache) setCache}.
+ *
+ * Responses are kept in memory, in LRU order bounded by their size in bytes, and optionally in a
+ * directory bounded in the same way. A fresh response (<code>Cache-Control: max-age</code>,
+ * <code>Expires</code>) is served without network; a stale one with an <code>ETag</code> or a
+ * <code>Last-Modified</code> header is revalidated with a conditional request, and a
+ * <code>304 Not Modified</code> answer is served from the cache.
+ *
+ * With {@link #setStalePolicy(String, long, long) setStalePolicy}, or the stale-while-revalidate
+ * and stale-if-error directives of the responses, a stale response can be served at once while a
+ * single background request per url revalidates it, or in place of a network error.
+ *
+ * The responses obtained with an {@link com.zagonico.elfws.auth.ElfWsAuth ElfWsAuth} belong to
+ * that auth: they are served only to the clients using the same instance, private responses
+ * included, and never written to disk. Of the requests with their own <code>Authorization</code>
+ * header only the <code>Cache-Control: public</code> responses are stored.
+ *
+ * <code>
+ *     client.setCache(new ElfWsCache(2 * 1024 * 1024, context.getCacheDir(), 20 * 1024 * 1024));
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsCache {
+    private static final int DISK_FORMAT = 1;
+    private static final String DISK_SUFFIX = ".elfcache";
+    private static final String TEMP_SUFFIX = ".elftmp";
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 3600 * 1000L;
+
+    private final long maxMemoryBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+
+    /** guarded by this; access ordered, so iteration starts from the least recently used */
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private LinkedHashMap<String, Long> disk;
+    private long diskBytes;
+
+    private long requestCount;
+    private long hitCount;
+    private long conditionalHitCount;
+    private long networkCount;
+    private long staleHitCount;
+    private long refreshCount;
+
+    /** stale policies by url prefix, guarded by this */
+    private final Map<String, StalePolicy> stalePolicies = new LinkedHashMap<>();
+    /** keys with a background revalidation in flight, guarded by this */
+    private final Set<String> refreshing = new HashSet<>();
+    /** numbers of the auths owning cached responses, guarded by this */
+    private final Map<Object, Long> owners = new WeakHashMap<>();
+    private long ownerCount;
+
+    /**
+     * Cache kept only in memory.
+     * @param maxMemoryBytes maximum size of the cached responses
+     */
+    public ElfWsCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Cache kept in memory and in <code>directory</code>, which survives the process.
+     *
+     * @param maxMemoryBytes
+     *        maximum size of the responses kept in memory
+     *
+     * @param directory
+     *        directory for the disk tier, used only by this cache; null for no disk tier
+     *
+     * @param maxDiskBytes
+     *        maximum size of the responses kept in <code>directory</code>
+     */
+    public ElfWsCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+        if (maxMemoryBytes < 0 || maxDiskBytes < 0) throw new IllegalArgumentException("Invalid cache sizes");
+
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = directory != null ? maxDiskBytes : 0;
+    }
+
+    /**
+     * True if the response to <code>request</code> can come from the cache: a GET that isn't a
+     * download and doesn't ask for <code>no-store</code>.
+     * @param request the request
+     * @return boolean
+     */
+    public static boolean isCacheable(ElfWsRequest request) {
+        if (request.hasBody() || request.isDownload()) return false;
+
+        return !parseCacheControl(header(request.getAddictionalHeaders(), "Cache-Control")).containsKey("no-store");
+    }
+
+    /**
+     * True if the request asks to revalidate a cached response even if fresh.
+     */
+    static boolean requiresRevalidation(ElfWsRequest request) {
+        Map<String, String> directives = parseCacheControl(header(request.getAddictionalHeaders(), "Cache-Control"));
+        String pragma = header(request.getAddictionalHeaders(), "Pragma");
+
+        return directives.containsKey("no-cache") || "0".equals(directives.get("max-age"))
+                || (pragma != null && pragma.toLowerCase(Locale.US).contains("no-cache"));
+    }
+
+    /**
+     * The cached entry for <code>request</code> performed by <code>owner</code> (the auth of the
+     * client, null if anonymous), fresh or stale, null if missing.
+     */
+    Entry lookup(ElfWsRequest request, Object owner) {
+        String key = key(request, owner);
+
+        Entry entry;
+        synchronized (this) {
+            requestCount++;
+            entry = memory.get(key);
+        }
+        if (entry == null && !isOwned(key)) {
+            // read without holding the cache, a response stored meanwhile wins
+            entry = readFromDisk(key);
+            if (entry != null) {
+                synchronized (this) {
+                    Entry stored = memory.get(key);
+                    if (stored != null)
+                        entry = stored;
+                    else
+                        keepInMemory(entry);
+                }
+            }
+        }
+
+        if (entry != null && !entry.matchesVary(request)) return null;
+
+        return entry;
+    }
+
+    /**
+     * Key of the responses to <code>request</code> performed by <code>owner</code>: the address,
+     * followed by the number of the owner if any.
+     */
+    private synchronized String key(ElfWsRequest request, Object owner) {
+        if (owner == null) return request.getAddress();
+
+        Long number = owners.get(owner);
+        if (number == null) {
+            number = ++ownerCount;
+            owners.put(owner, number);
+        }
+        return request.getAddress() + '\n' + number;
+    }
+
+    /**
+     * True if the responses of <code>key</code> belong to an auth.
+     */
+    private static boolean isOwned(String key) {
+        return key.indexOf('\n') >= 0;
+    }
+
+    /**
+     * Allow stale responses for the urls starting with <code>urlPrefix</code>: a response stale
+     * for less than <code>staleWhileRevalidateMillis</code> is served at once while it is
+     * revalidated in background, one stale for less than <code>staleIfErrorMillis</code> is served
+     * when the network fails or the server answers 5xx. The longest matching prefix wins and
+     * overrides the stale-while-revalidate and stale-if-error directives of the response;
+     * without a matching policy those directives are used.
+     *
+     * @param urlPrefix
+     *        prefix of the urls, "" for all of them
+     *
+     * @param staleWhileRevalidateMillis
+     *        maximum staleness served while revalidating, 0 to disable
+     *
+     * @param staleIfErrorMillis
+     *        maximum staleness served on errors, 0 to disable
+     */
+    public synchronized void setStalePolicy(String urlPrefix, long staleWhileRevalidateMillis, long staleIfErrorMillis) {
+        if (urlPrefix == null) throw new IllegalArgumentException("Url prefix cannot be null");
+        if (staleWhileRevalidateMillis < 0 || staleIfErrorMillis < 0) throw new IllegalArgumentException("Invalid stale policy");
+
+        stalePolicies.put(urlPrefix, new StalePolicy(staleWhileRevalidateMillis, staleIfErrorMillis));
+    }
+
+    /**
+     * Remove the stale policy of <code>urlPrefix</code>.
+     * @param urlPrefix the prefix passed to {@link #setStalePolicy(String, long, long) setStalePolicy}
+     */
+    public synchronized void removeStalePolicy(String urlPrefix) {
+        stalePolicies.remove(urlPrefix);
+    }
+
+    private StalePolicy stalePolicy(String key) {
+        StalePolicy policy = null;
+        int length = -1;
+        for (Map.Entry<String, StalePolicy> prefix : stalePolicies.entrySet()) {
+            if (key.startsWith(prefix.getKey()) && prefix.getKey().length() > length) {
+                policy = prefix.getValue();
+                length = prefix.getKey().length();
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * True if the stale <code>entry</code> can be served while it is revalidated in background.
+     */
+    synchronized boolean canServeWhileRevalidating(Entry entry, long now) {
+        if (entry.mustRevalidate || entry.noCache) return false;
+
+        StalePolicy policy = stalePolicy(entry.key);
+        long window = policy != null ? policy.staleWhileRevalidate : entry.staleWhileRevalidate;
+        return window > 0 && entry.staleness(now) <= window;
+    }
+
+    /**
+     * True if the stale <code>entry</code> can be served instead of an error.
+     */
+    synchronized boolean canServeOnError(Entry entry, long now) {
+        if (entry.mustRevalidate) return false;
+
+        StalePolicy policy = stalePolicy(entry.key);
+        long window = policy != null ? policy.staleIfError : entry.staleIfError;
+        return window > 0 && entry.staleness(now) <= window;
+    }
+
+    /**
+     * Mark <code>entry</code> as being revalidated in background.
+     * @return false if another revalidation of the same key is already in flight
+     */
+    synchronized boolean beginRefresh(Entry entry) {
+        if (!refreshing.add(entry.key)) return false;
+        refreshCount++;
+        return true;
+    }
+
+    synchronized void endRefresh(Entry entry) {
+        refreshing.remove(entry.key);
+    }
+
+    /**
+     * Serve a stale entry, while revalidating or instead of an error.
+     */
+    synchronized ElfWsResponse serveStale(Entry entry) {
+        staleHitCount++;
+        return entry.toResponse();
+    }
+
+    /**
+     * Serve a fresh entry without network.
+     */
+    synchronized ElfWsResponse serve(Entry entry) {
+        hitCount++;
+        return entry.toResponse();
+    }
+
+    /**
+     * Merge the headers of a <code>304 Not Modified</code> into the stale entry and serve it.
+     */
+    ElfWsResponse revalidated(Entry entry, ElfWsResponse notModified, long requestTime, long responseTime) {
+        Map<String, List<String>> headers = new LinkedHashMap<>(entry.headers);
+        if (notModified.getHeaders() != null) {
+            for (Map.Entry<String, List<String>> header : notModified.getHeaders().entrySet()) {
+                String name = header.getKey();
+                if (name == null || "Content-Length".equalsIgnoreCase(name) || "Content-Encoding".equalsIgnoreCase(name)) continue;
+
+                removeHeader(headers, name);
+                headers.put(name, header.getValue());
+            }
+        }
+
+        Entry updated = new Entry(entry.key, entry.responseCode, headers, entry.body, entry.filename, entry.mime,
+                requestTime, responseTime, entry.varyValues);
+
+        synchronized (this) {
+            conditionalHitCount++;
+            store(updated);
+        }
+        writeToDisk(updated);
+        return updated.toResponse();
+    }
+
+    /**
+     * Store the response obtained from the network by <code>owner</code>, if cacheable, and
+     * give it back.
+     */
+    ElfWsResponse stored(ElfWsRequest request, Object owner, ElfWsResponse response, long requestTime, long responseTime) {
+        synchronized (this) {
+            networkCount++;
+        }
+
+        if (response == null) return null;
+        String key = key(request, owner);
+        if (!isStorable(request, owner, response)) {
+            // a newer response that cannot be stored supersedes the cached one
+            evict(key);
+            return response;
+        }
+
+        Map<String, String> varyValues = new LinkedHashMap<>();
+        String vary = response.getHeader("Vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) continue;
+                String value = header(request.getAddictionalHeaders(), name);
+                varyValues.put(name.toLowerCase(Locale.US), value != null ? value : "");
+            }
+        }
+
+        // the caller keeps the response: the entry needs a body nobody else can change
+        byte[] body = response.getBody();
+        Entry entry = new Entry(key, response.getResponseCode(), copyHeaders(response.getHeaders()),
+                Arrays.copyOf(body, body.length), response.getFilename(), response.getMime(), requestTime, responseTime, varyValues);
+        if (entry.lifetime <= 0 && entry.etag() == null && entry.lastModified() == null) return response;
+
+        synchronized (this) {
+            store(entry);
+        }
+        writeToDisk(entry);
+        return response;
+    }
+
+    private static boolean isStorable(ElfWsRequest request, Object owner, ElfWsResponse response) {
+        int code = response.getResponseCode();
+        if (code != 200 && code != 203 && code != 300 && code != 301 && code != 410) return false;
+        if (response.getBody() == null) return false;
+
+        Map<String, String> directives = parseCacheControl(response.getHeader("Cache-Control"));
+        if (directives.containsKey("no-store")) return false;
+
+        // credentials set as a header, without an auth, would be shared with the anonymous requests
+        if (owner == null && header(request.getAddictionalHeaders(), "Authorization") != null
+                && !directives.containsKey("public")) return false;
+
+        String vary = response.getHeader("Vary");
+        return vary == null || !vary.contains("*");
+    }
+
+    /**
+     * Remove the cached responses of <code>address</code> (url with GET parameters), those of
+     * every auth included.
+     * @param address the address
+     */
+    public synchronized void remove(String address) {
+        Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().equals(address) || entry.getKey().startsWith(address + '\n')) {
+                memoryBytes -= entry.getValue().size();
+                iterator.remove();
+            }
+        }
+        deleteFromDisk(address);
+    }
+
+    private synchronized void evict(String key) {
+        Entry entry = memory.remove(key);
+        if (entry != null) memoryBytes -= entry.size();
+        if (!isOwned(key)) deleteFromDisk(key);
+    }
+
+    /**
+     * Remove all the cached responses, in memory and on disk.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+
+        if (directory != null) {
+            initDisk();
+            for (String name : new ArrayList<>(disk.keySet())) {
+                new File(directory, name).delete();
+            }
+            disk.clear();
+            diskBytes = 0;
+        }
+    }
+
+    /**
+     * Replace the entry of the same key in memory; the caller writes it to disk after releasing
+     * the cache.
+     */
+    private void store(Entry entry) {
+        Entry previous = memory.remove(entry.key);
+        if (previous != null) memoryBytes -= previous.size();
+
+        keepInMemory(entry);
+    }
+
+    private void keepInMemory(Entry entry) {
+        if (entry.size() > maxMemoryBytes) return;
+
+        Entry previous = memory.put(entry.key, entry);
+        if (previous != null) memoryBytes -= previous.size();
+        memoryBytes += entry.size();
+
+        Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().getValue().size();
+            iterator.remove();
+        }
+    }
+
+    private void initDisk() {
+        if (disk != null) return;
+
+        disk = new LinkedHashMap<>(16, 0.75f, true);
+        diskBytes = 0;
+        if (!directory.isDirectory() && !directory.mkdirs()) return;
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        // the least recently written files come first, to be evicted first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            // left by a write interrupted with the process
+            if (file.getName().endsWith(TEMP_SUFFIX)) file.delete();
+            if (!file.getName().endsWith(DISK_SUFFIX)) continue;
+            disk.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+    }
+
+    private static String diskName(String key) {
+        try {
+            return ElfWsUtil.SHA1(key) + DISK_SUFFIX;
+        }
+        catch (Exception e) {
+            return Integer.toHexString(key.hashCode()) + DISK_SUFFIX;
+        }
+    }
+
+    /**
+     * Write <code>entry</code> without holding the cache: the file is written aside and renamed,
+     * so that a concurrent read never sees it partial.
+     */
+    private void writeToDisk(Entry entry) {
+        if (directory == null || entry.size() > maxDiskBytes || isOwned(entry.key)) return;
+        synchronized (this) {
+            initDisk();
+        }
+
+        String name = diskName(entry.key);
+        File file = new File(directory, name);
+        File temp = null;
+        try {
+            temp = File.createTempFile("elfws", TEMP_SUFFIX, directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                entry.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            if (temp != null) temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            indexOnDisk(name, file.length());
+        }
+    }
+
+    private void indexOnDisk(String name, long length) {
+        Long previous = disk.put(name, length);
+        if (previous != null) diskBytes -= previous;
+        diskBytes += length;
+
+        Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(directory, eldest.getKey()).delete();
+            diskBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Read the entry of <code>key</code> without holding the cache, null if missing.
+     */
+    private Entry readFromDisk(String key) {
+        if (directory == null) return null;
+
+        String name = diskName(key);
+        synchronized (this) {
+            initDisk();
+            if (!disk.containsKey(name)) return null;
+        }
+
+        File file = new File(directory, name);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                Entry entry = Entry.readFrom(in);
+                if (entry.key.equals(key)) return entry;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            // corrupted or removed by someone else
+        }
+
+        synchronized (this) {
+            deleteFromDisk(key);
+        }
+        return null;
+    }
+
+    private void deleteFromDisk(String key) {
+        if (directory == null) return;
+        initDisk();
+
+        String name = diskName(key);
+        Long size = disk.remove(name);
+        if (size != null) diskBytes -= size;
+        new File(directory, name).delete();
+    }
+
+    /**
+     * Requests looked up in the cache.
+     * @return long count
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Requests served by a fresh cached response, without network.
+     * @return long count
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Conditional requests answered <code>304 Not Modified</code> and served from the cache.
+     * @return long count
+     */
+    public synchronized long getConditionalHitCount() {
+        return conditionalHitCount;
+    }
+
+    /**
+     * Requests answered with a full response from the network.
+     * @return long count
+     */
+    public synchronized long getNetworkCount() {
+        return networkCount;
+    }
+
+    /**
+     * Requests served by a stale cached response, while revalidating or instead of an error.
+     * @return long count
+     */
+    public synchronized long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /**
+     * Background revalidations started for stale-while-revalidate.
+     * @return long count
+     */
+    public synchronized long getRefreshCount() {
+        return refreshCount;
+    }
+
+    public synchronized long getMemorySize() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskSize() {
+        if (directory == null) return 0;
+        initDisk();
+        return diskBytes;
+    }
+
+    public long getMaxMemorySize() {
+        return maxMemoryBytes;
+    }
+
+    public long getMaxDiskSize() {
+        return maxDiskBytes;
+    }
+
+    /**
+     * Directives of a Cache-Control value, names in lower case. Directives without value map
+     * to an empty string.
+     * @param value header value, may be null
+     * @return Map directive - value
+     */
+    static Map<String, String> parseCacheControl(String value) {
+        Map<String, String> directives = new LinkedHashMap<>();
+        if (value == null) return directives;
+
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=", 2);
+            if (pair[0].isEmpty()) continue;
+            directives.put(pair[0].trim().toLowerCase(Locale.US), pair.length == 2 ? pair[1].trim().replace("\"", "") : "");
+        }
+        return directives;
+    }
+
+    /**
+     * Value in seconds of a numeric directive, -1 if missing or invalid.
+     */
+    static long seconds(Map<String, String> directives, String name) {
+        String value = directives.get(name);
+        if (value == null) return -1;
+
+        try {
+            return Math.max(0, Long.parseLong(value));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    private static String firstHeader(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static void removeHeader(Map<String, List<String>> headers, String name) {
+        Iterator<String> iterator = headers.keySet().iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (key != null && key.equalsIgnoreCase(name)) iterator.remove();
+        }
+    }
+
+    private static Map<String, List<String>> copyHeaders(Map<String, List<String>> headers) {
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        if (headers == null) return copy;
+
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            // the status line of HttpURLConnection has a null name
+            if (header.getKey() == null || header.getValue() == null) continue;
+            copy.put(header.getKey(), Collections.unmodifiableList(new ArrayList<>(header.getValue())));
+        }
+        return copy;
+    }
+
+    private static final class StalePolicy {
+        final long staleWhileRevalidate;
+        final long staleIfError;
+
+        StalePolicy(long staleWhileRevalidate, long staleIfError) {
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            this.staleIfError = staleIfError;
+        }
+    }
+
+    /**
+     * A cached response with the information needed to compute its freshness.
+     */
+    static final class Entry {
+        final String key;
+        final int responseCode;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+        final String filename;
+        final String mime;
+        /** when the response was received, milliseconds since epoch */
+        final long responseTime;
+        /** age of the response when received, from the Age header and the transit time */
+        final long initialAge;
+        /** freshness lifetime, milliseconds */
+        final long lifetime;
+        final boolean noCache;
+        /** the response forbids serving it stale */
+        final boolean mustRevalidate;
+        /** stale-while-revalidate and stale-if-error of the response, milliseconds, -1 if missing */
+        final long staleWhileRevalidate;
+        final long staleIfError;
+        final Map<String, String> varyValues;
+
+        Entry(String key, int responseCode, Map<String, List<String>> headers, byte[] body, String filename, String mime,
+              long requestTime, long responseTime, Map<String, String> varyValues) {
+            this.key = key;
+            this.responseCode = responseCode;
+            this.headers = headers;
+            this.body = body;
+            this.filename = filename;
+            this.mime = mime;
+            this.responseTime = responseTime;
+            this.varyValues = varyValues;
+
+            Map<String, String> directives = parseCacheControl(firstHeader(headers, "Cache-Control"));
+            noCache = directives.containsKey("no-cache") || directives.containsKey("must-revalidate") && seconds(directives, "max-age") == 0;
+            mustRevalidate = directives.containsKey("must-revalidate") || directives.containsKey("proxy-revalidate");
+            staleWhileRevalidate = millis(seconds(directives, "stale-while-revalidate"));
+            staleIfError = millis(seconds(directives, "stale-if-error"));
+
+            long ageHeader = -1;
+            try {
+                String age = firstHeader(headers, "Age");
+                if (age != null) ageHeader = Long.parseLong(age.trim()) * 1000;
+            }
+            catch (NumberFormatException e) {
+                ageHeader = -1;
+            }
+            initialAge = Math.max(0, ageHeader) + Math.max(0, responseTime - requestTime);
+
+            lifetime = freshnessLifetime(directives, headers, responseTime);
+        }
+
+        private static long millis(long seconds) {
+            return seconds >= 0 ? seconds * 1000 : -1;
+        }
+
+        private static long freshnessLifetime(Map<String, String> directives, Map<String, List<String>> headers, long responseTime) {
+            long maxAge = seconds(directives, "max-age");
+            if (maxAge >= 0) return maxAge * 1000;
+
+            long date = ElfWsUtil.parseHttpDate(firstHeader(headers, "Date"));
+            if (date < 0) date = responseTime;
+
+            String expiresValue = firstHeader(headers, "Expires");
+            if (expiresValue != null) {
+                long expires = ElfWsUtil.parseHttpDate(expiresValue);
+                return expires > date ? expires - date : 0;
+            }
+
+            // heuristic freshness: 10% of the time since the last modification
+            long lastModified = ElfWsUtil.parseHttpDate(firstHeader(headers, "Last-Modified"));
+            if (lastModified > 0 && lastModified < date) {
+                return Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+            }
+
+            return 0;
+        }
+
+        String etag() {
+            return firstHeader(headers, "ETag");
+        }
+
+        String lastModified() {
+            return firstHeader(headers, "Last-Modified");
+        }
+
+        long age(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        boolean isFresh(long now) {
+            return !noCache && age(now) < lifetime;
+        }
+
+        /**
+         * How long the entry has been stale, 0 if fresh.
+         */
+        long staleness(long now) {
+            return Math.max(0, age(now) - lifetime);
+        }
+
+        boolean canRevalidate() {
+            return etag() != null || lastModified() != null;
+        }
+
+        /**
+         * Headers that make the request conditional on this entry.
+         */
+        Map<String, String> conditionalHeaders() {
+            Map<String, String> conditional = new LinkedHashMap<>();
+            if (etag() != null) conditional.put("If-None-Match", etag());
+            if (lastModified() != null) conditional.put("If-Modified-Since", lastModified());
+            return conditional;
+        }
+
+        boolean matchesVary(ElfWsRequest request) {
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                String value = header(request.getAddictionalHeaders(), vary.getKey());
+                if (!vary.getValue().equals(value != null ? value : "")) return false;
+            }
+            return true;
+        }
+
+        /**
+         * A response with its own headers and body, so that changing it never changes the entry.
+         */
+        ElfWsResponse toResponse() {
+            ElfWsResponse response = new ElfWsResponse(responseCode, headers);
+            response.addContentInfo(filename, mime, body);
+            response.setFromCache(true);
+            return response.copy();
+        }
+
+        long size() {
+            long size = 256 + key.length() * 2L + (body != null ? body.length : 0);
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                size += header.getKey().length() * 2L;
+                for (String value : header.getValue()) size += value != null ? value.length() * 2L : 0;
+            }
+            return size;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(DISK_FORMAT);
+            out.writeUTF(key);
+            out.writeInt(responseCode);
+            writeString(out, filename);
+            writeString(out, mime);
+            out.writeLong(responseTime);
+            out.writeLong(initialAge);
+
+            out.writeInt(headers.size());
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeInt(header.getValue().size());
+                for (String value : header.getValue()) writeString(out, value);
+            }
+
+            out.writeInt(varyValues.size());
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                out.writeUTF(vary.getKey());
+                out.writeUTF(vary.getValue());
+            }
+
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != DISK_FORMAT) throw new IOException("Unknown cache format");
+
+            String key = in.readUTF();
+            int responseCode = in.readInt();
+            String filename = readString(in);
+            String mime = readString(in);
+            long responseTime = in.readLong();
+            long initialAge = in.readLong();
+
+            int headerCount = in.readInt();
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                String name = in.readUTF();
+                int valueCount = in.readInt();
+                List<String> values = new ArrayList<>(valueCount);
+                for (int j = 0; j < valueCount; j++) values.add(readString(in));
+                headers.put(name, Collections.unmodifiableList(values));
+            }
+
+            int varyCount = in.readInt();
+            Map<String, String> varyValues = new LinkedHashMap<>();
+            for (int i = 0; i < varyCount; i++) varyValues.put(in.readUTF(), in.readUTF());
+
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+
+            // the transit time is already part of the stored initial age
+            return new Entry(key, responseCode, headers, body, filename, mime, responseTime - initialAge + ageHeaderMillis(headers),
+                    responseTime, varyValues);
+        }
+
+        private static long ageHeaderMillis(Map<String, List<String>> headers) {
+            try {
+                String age = firstHeader(headers, "Age");
+                return age != null ? Long.parseLong(age.trim()) * 1000 : 0;
+            }
+            catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeUTF(value);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import com.zagonico.elfws.exception.ElfWsCircuitOpenException;
+
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker of the hosts (or endpoints) called by a client, set with
+ * {@link com.zagonico.elfws.ElfWsClient#setCircuitBreaker(ElfWsCircuitBreaker) setCircuitBreaker}.
+ *
+ * Each circuit records the outcome of the last <code>windowSize</code> calls. When at least
+ * <code>minCalls</code> have been recorded and the rate of failed calls (exceptions and 5xx
+ * responses) or of slow calls reaches its threshold, the circuit opens: for
+ * <code>openMillis</code> the requests fail immediately with an
+ * {@link com.zagonico.elfws.exception.ElfWsCircuitOpenException ElfWsCircuitOpenException},
+ * without waiting for a server that is down. Then the circuit is half open: up to
+ * <code>trialCalls</code> requests are let through, and the circuit closes if they all succeed,
+ * or opens again at the first failure. Requests cancelled by their caller don't count.
+ *
+ * A breaker can be shared by many clients. State changes are notified to the
+ * {@link #addListener(Listener) listeners}, from the thread that ends the call causing them.
+ *
+ * <code>
+ *     ElfWsCircuitBreaker circuitBreaker = new ElfWsCircuitBreaker(20, 10, 0.5, 30000);
+ *     circuitBreaker.setSlowCallThreshold(5000, 0.8);
+ *     client.setCircuitBreaker(circuitBreaker);
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsCircuitBreaker {
+    public enum State {
+        /** requests pass, outcomes are recorded */
+        CLOSED,
+        /** requests fail immediately */
+        OPEN,
+        /** a limited number of trial requests pass */
+        HALF_OPEN,
+    };
+
+    /**
+     * What a circuit covers.
+     */
+    public enum Scope {
+        /** scheme, host and port of the url */
+        HOST,
+        /** scheme, host, port and path of the url */
+        ENDPOINT,
+    };
+
+    /**
+     * Receives the state changes of the circuits.
+     */
+    public interface Listener {
+        /**
+         * @param circuit the host or endpoint of the circuit, e.g. <code>https://mydomain.com:443</code>
+         * @param from previous state
+         * @param to new state
+         */
+        void onStateChange(String circuit, State from, State to);
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MIN_CALLS = 10;
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+    public static final long DEFAULT_SLOW_CALL_MILLIS = 10 * 1000;
+    public static final double DEFAULT_SLOW_CALL_RATE = 1.0;
+    public static final int DEFAULT_TRIAL_CALLS = 3;
+
+    /** circuits kept, the least recently used are forgotten */
+    private static final int MAX_CIRCUITS = 256;
+
+    private static final int SUCCESS = 0;
+    private static final int FAILURE = 1;
+    private static final int SLOW = 2;
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRate;
+    private final long openMillis;
+    private volatile long slowCallMillis = DEFAULT_SLOW_CALL_MILLIS;
+    private volatile double slowCallRate = DEFAULT_SLOW_CALL_RATE;
+    private volatile int trialCalls = DEFAULT_TRIAL_CALLS;
+    private volatile Scope scope = Scope.HOST;
+
+    /** guarded by itself */
+    private final Map<String, Circuit> circuits = new LinkedHashMap<String, Circuit>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Circuit> eldest) {
+            return size() > MAX_CIRCUITS;
+        }
+    };
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public ElfWsCircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_CALLS, DEFAULT_FAILURE_RATE, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param windowSize
+     *        calls whose outcome is recorded
+     *
+     * @param minCalls
+     *        calls recorded before the circuit can open
+     *
+     * @param failureRate
+     *        rate of failed calls that opens the circuit, between 0 and 1
+     *
+     * @param openMillis
+     *        time the circuit stays open before letting trial requests through
+     */
+    public ElfWsCircuitBreaker(int windowSize, int minCalls, double failureRate, long openMillis) {
+        if (windowSize < 1 || minCalls < 1 || minCalls > windowSize) throw new IllegalArgumentException("Invalid window");
+        if (failureRate <= 0 || failureRate > 1) throw new IllegalArgumentException("Invalid failure rate");
+        if (openMillis < 0) throw new IllegalArgumentException("Invalid open time");
+
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.failureRate = failureRate;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Calls lasting at least <code>millis</code> are slow, and the circuit opens when their rate
+     * reaches <code>rate</code>. By default it opens only if all the calls take 10 seconds or more.
+     *
+     * @param millis
+     *        duration of a slow call
+     *
+     * @param rate
+     *        rate of slow calls that opens the circuit, between 0 and 1
+     */
+    public void setSlowCallThreshold(long millis, double rate) {
+        if (millis <= 0 || rate <= 0 || rate > 1) throw new IllegalArgumentException("Invalid slow call threshold");
+        slowCallMillis = millis;
+        slowCallRate = rate;
+    }
+
+    /**
+     * Requests let through while the circuit is half open.
+     * @param calls number of trial requests
+     */
+    public void setTrialCalls(int calls) {
+        if (calls < 1) throw new IllegalArgumentException("Invalid number of trial calls");
+        trialCalls = calls;
+    }
+
+    /**
+     * Whether a circuit covers a whole host (the default) or a single endpoint.
+     * @param scope the scope
+     */
+    public void setScope(Scope scope) {
+        if (scope == null) throw new IllegalArgumentException("Scope cannot be null");
+        this.scope = scope;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public void addListener(Listener listener) {
+        if (listener != null) listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * State of the circuit covering <code>address</code>. An open circuit whose time has
+     * elapsed becomes half open with the next request.
+     * @param address url of a request
+     * @return State
+     * @throws MalformedURLException if <code>address</code> is not a valid url
+     */
+    public State getState(String address) throws MalformedURLException {
+        Circuit circuit;
+        synchronized (circuits) {
+            circuit = circuits.get(key(new URL(address)));
+        }
+        if (circuit == null) return State.CLOSED;
+
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * Requests failed immediately because their circuit was open.
+     * @return long
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Close all the circuits and forget their history.
+     */
+    public void reset() {
+        synchronized (circuits) {
+            circuits.clear();
+        }
+    }
+
+    /**
+     * Begin a call to <code>url</code>.
+     * @return Call to {@link Call#end(ElfWsResponse, Throwable, boolean) end} with its outcome
+     * @throws ElfWsCircuitOpenException if the circuit doesn't let the call through
+     */
+    Call begin(URL url) {
+        String key = key(url);
+        Circuit circuit;
+        synchronized (circuits) {
+            circuit = circuits.get(key);
+            if (circuit == null) {
+                circuit = new Circuit(key, windowSize);
+                circuits.put(key, circuit);
+            }
+        }
+
+        Call call = null;
+        State from = null;
+        synchronized (circuit) {
+            if (circuit.state == State.OPEN && System.currentTimeMillis() - circuit.openedAt >= openMillis) {
+                from = circuit.state;
+                circuit.moveTo(State.HALF_OPEN);
+            }
+
+            if (circuit.state == State.CLOSED) {
+                call = new Call(circuit, circuit.generation, false);
+            }
+            else if (circuit.state == State.HALF_OPEN && circuit.trials < trialCalls) {
+                circuit.trials++;
+                call = new Call(circuit, circuit.generation, true);
+            }
+        }
+
+        if (from != null) stateChanged(key, from, State.HALF_OPEN);
+
+        if (call == null) {
+            rejectedCount.incrementAndGet();
+            throw new ElfWsCircuitOpenException("Circuit open for " + key);
+        }
+        return call;
+    }
+
+    private String key(URL url) {
+        int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+        return scope == Scope.ENDPOINT ? key + url.getPath() : key;
+    }
+
+    private void stateChanged(String circuit, State from, State to) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChange(circuit, from, to);
+            }
+            catch (Exception e) {
+                // a failing listener must not prevent the others
+            }
+        }
+    }
+
+    /**
+     * A call let through by a circuit.
+     */
+    final class Call {
+        private final Circuit circuit;
+        private final int generation;
+        private final boolean trial;
+        private final long start = System.nanoTime();
+        private boolean ended;
+
+        private Call(Circuit circuit, int generation, boolean trial) {
+            this.circuit = circuit;
+            this.generation = generation;
+            this.trial = trial;
+        }
+
+        /**
+         * Record the outcome of the call.
+         *
+         * @param response the response, null if the call failed
+         * @param exception the exception that prevented the response
+         * @param aborted true if the caller cancelled the call, which is not recorded
+         */
+        void end(ElfWsResponse response, Throwable exception, boolean aborted) {
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            int outcome = SUCCESS;
+            if (exception != null || response == null || response.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) outcome |= FAILURE;
+            if (millis >= slowCallMillis) outcome |= SLOW;
+
+            State from;
+            State to;
+            synchronized (circuit) {
+                if (ended) return;
+                ended = true;
+
+                // calls begun before the last state change are stale
+                if (generation != circuit.generation) return;
+
+                from = circuit.state;
+                if (trial) {
+                    circuit.trials--;
+                    if (aborted) return;
+
+                    if (outcome != SUCCESS) {
+                        circuit.moveTo(State.OPEN);
+                    }
+                    else if (++circuit.trialSuccesses >= trialCalls) {
+                        circuit.moveTo(State.CLOSED);
+                    }
+                }
+                else {
+                    if (aborted) return;
+
+                    circuit.record(outcome);
+                    if (circuit.calls >= minCalls && (circuit.failures >= failureRate * circuit.calls
+                            || circuit.slowCalls >= slowCallRate * circuit.calls)) {
+                        circuit.moveTo(State.OPEN);
+                    }
+                }
+                to = circuit.state;
+            }
+
+            if (from != to) stateChanged(circuit.key, from, to);
+        }
+    }
+
+    /**
+     * State and recent outcomes of a host or endpoint, guarded by itself.
+     */
+    private static final class Circuit {
+        final String key;
+        final int[] outcomes;
+        int next;
+        int calls;
+        int failures;
+        int slowCalls;
+
+        State state = State.CLOSED;
+        /** incremented at every state change */
+        int generation;
+        long openedAt;
+        int trials;
+        int trialSuccesses;
+
+        Circuit(String key, int windowSize) {
+            this.key = key;
+            outcomes = new int[windowSize];
+        }
+
+        void record(int outcome) {
+            if (calls == outcomes.length) {
+                forget(outcomes[next]);
+            }
+            else {
+                calls++;
+            }
+
+            outcomes[next] = outcome;
+            next = (next + 1) % outcomes.length;
+            if ((outcome & FAILURE) != 0) failures++;
+            if ((outcome & SLOW) != 0) slowCalls++;
+        }
+
+        private void forget(int outcome) {
+            if ((outcome & FAILURE) != 0) failures--;
+            if ((outcome & SLOW) != 0) slowCalls--;
+        }
+
+        void moveTo(State newState) {
+            state = newState;
+            generation++;
+            trials = 0;
+            trialSuccesses = 0;
+            if (newState == State.OPEN) openedAt = System.currentTimeMillis();
+            if (newState == State.CLOSED) {
+                next = 0;
+                calls = 0;
+                failures = 0;
+                slowCalls = 0;
+            }
+        }
+    }
+}
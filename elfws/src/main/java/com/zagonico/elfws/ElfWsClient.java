@@ -23,27 +23,32 @@ package com.zagonico.elfws;
 
 import android.content.Context;
 import android.net.Uri;
-import android.provider.OpenableColumns;
-import android.util.Base64;
 
 import com.zagonico.elfws.auth.ElfWsAuth;
 import com.zagonico.elfws.exception.ElfWsAuthException;
+import com.zagonico.elfws.exception.ElfWsCircuitOpenException;
+import com.zagonico.elfws.exception.ElfWsRateLimitException;
 import com.zagonico.elfws.exception.ElfWsException;
 
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Class that allows to communicate with a web service.
@@ -66,6 +71,28 @@ import javax.net.ssl.HttpsURLConnection;
  *     
  * </code>
  *
+ * The add methods configure a single pending request, so a client used in this way can perform
+ * one request at a time. To share one client between threads build immutable
+ * {@link com.zagonico.elfws.ElfWsRequest ElfWsRequest} objects and pass them to
+ * {@link #execute(ElfWsRequest) execute} or {@link #executeRequest(ElfWsRequest, ElfWsCallback) executeRequest}.
+ *
+ * <code>
+ *     ElfWsRequest request = new ElfWsRequest.Builder("http://mydomain.com/ws").addGet(map).build();
+ *     ElfWsResponse response = client.execute(request);
+ * </code>
+ *
+ * {@link #executeAsync(ElfWsRequest) executeAsync} returns an {@link com.zagonico.elfws.ElfWsFuture ElfWsFuture}
+ * that can be waited, cancelled or completed with callbacks.
+ *
+ * The network is handled by an {@link com.zagonico.elfws.ElfWsTransport ElfWsTransport}:
+ * <code>HttpURLConnection</code> by default, or the non blocking
+ * {@link com.zagonico.elfws.ElfWsNioTransport ElfWsNioTransport} set with
+ * {@link #setTransport(ElfWsTransport) setTransport}.
+ *
+ * Every request has connect and read timeouts and optionally a deadline for the whole call,
+ * set on the client and overridden by the request; {@link #cancelAll() cancelAll} aborts all the
+ * requests in flight, synchronous ones included.
+ *
  * @author zagonico
  * @version 1.0
  */
@@ -74,14 +101,23 @@ public class ElfWsClient implements Runnable {
      * Debug mode, is true the exceptions are printed. This can be set and read with
      * {@link #setDebugMode(boolean) setDebugMode} and {@link #isDebug() isDebug} methods.
      */
-    private boolean DEBUG_MODE = false;
+    private volatile boolean DEBUG_MODE = false;
 
     /**
      * Processing status. When {@link #run() run} executes it is set to <code>true</code> so that
-     * all the other methods of the class won't change the class status until the current request
-     * is complete. It is
+     * all the other methods of the class won't change the pending request until the current
+     * request is complete. Requests passed as {@link com.zagonico.elfws.ElfWsRequest ElfWsRequest}
+     * don't use it.
      */
-    private boolean PROCESSING = false;
+    private volatile boolean PROCESSING = false;
+
+    /**
+     * Size of the buffers used to stream request and response bodies.
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;
 
     public enum ElfWsAction {
         GET,
@@ -92,46 +128,99 @@ public class ElfWsClient implements Runnable {
     };
 
     /**
-     * Actions configured for the next request.
+     * Request configured by the add methods, executed by {@link #run() run},
+     * {@link #executeRequest() executeRequest} and {@link #httpRequest(String) httpRequest}.
+     */
+    private final ElfWsRequest.Builder pending = new ElfWsRequest.Builder();
+
+    /**
+     * Url for the next request
+     */
+    private volatile String url;
+    /**
+     * Callback to elaborate the response to the next request
+     */
+    private volatile ElfWsCallback callback;
+
+    /**
+     * class to manage authentication
+     */
+    private volatile ElfWsAuth auth;
+
+    /**
+     * Pool of workers that executes {@link #executeRequest() executeRequest}. If null the
+     * {@link com.zagonico.elfws.ElfWsDispatcher#getDefault() shared} one is used.
      */
-    List<ElfWsAction> actions;
+    private volatile ElfWsDispatcher dispatcher;
+
     /**
-     * GET and POST parameters for next request
+     * Keep-alive settings and per route limits of the connections. If null the
+     * {@link com.zagonico.elfws.ElfWsConnectionPool#getDefault() shared} ones are used.
      */
-    Map<String, String> getParameters;
-    Map<String, String> postParameters;
+    private volatile ElfWsConnectionPool connectionPool;
+
     /**
-     * Addictional headers for next request
+     * Http cache of the GET responses, null if responses aren't cached.
      */
-    Map<String, String> addictionalHeaders;
+    private volatile ElfWsCache cache;
 
     /**
-     * json or xml data for JSON and XML requests
+     * Single flight of identical GETs, null if every request opens its own connection.
      */
-    JSONObject jsonData;
-    String xmlData;
+    private volatile ElfWsCoalescer coalescer;
 
     /**
-     * List of files to upload in the next request, with all their information
+     * Minimum size of the json, xml and form bodies sent gzipped, -1 if never.
      */
-    List<byte[]> stringToUpload;
-    List<String> stringToUpload_fieldName;
-    List<String> stringToUpload_fileName;
-    List<String> stringToUpload_mime;
+    private volatile long gzipRequestThreshold = -1;
 
     /**
-     * Url for the next request
+     * Transport that sends the requests. If null the
+     * {@link com.zagonico.elfws.ElfWsUrlConnectionTransport#getDefault() HttpURLConnection} one is used.
      */
-    private String url;
+    private volatile ElfWsTransport transport;
+
     /**
-     * Callback to elaborate the response to the next request
+     * When failed requests are sent again, null if they are never retried.
      */
-    private ElfWsCallback callback;
+    private volatile ElfWsRetryPolicy retryPolicy;
 
     /**
-     * class to manage authentication
+     * When a second copy of a slow request is sent, null if requests are never hedged.
      */
-    private ElfWsAuth auth;
+    private volatile ElfWsHedgePolicy hedgePolicy;
+
+    /**
+     * Fails fast the requests to hosts that are down, null if requests are always sent.
+     */
+    private volatile ElfWsCircuitBreaker circuitBreaker;
+
+    /**
+     * Limits the rate of the requests, null if requests are never delayed.
+     */
+    private volatile ElfWsRateLimiter rateLimiter;
+
+    /**
+     * Adapts the requests in flight to each host, null if they are not limited.
+     */
+    private volatile ElfWsConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * Default timeouts of the requests, in milliseconds, 0 for none. A request can override them.
+     */
+    private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile long readTimeout = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile long deadline = 0;
+
+    /**
+     * Default priority of the requests waiting for a worker. A request can override it.
+     */
+    private volatile ElfWsRequest.Priority priority = ElfWsRequest.Priority.NORMAL;
+
+    /**
+     * Requests in flight or waiting for a worker, cancelled by {@link #cancelAll() cancelAll}.
+     */
+    private final Set<ElfWsFuture> running = Collections.newSetFromMap(new ConcurrentHashMap<ElfWsFuture, Boolean>());
 
     public ElfWsClient() {
         this(null, null);
@@ -214,6 +303,342 @@ public class ElfWsClient implements Runnable {
         this.auth = auth;
     }
 
+    /**
+     * The dispatcher used by {@link #executeRequest() executeRequest}.
+     * @return ElfWsDispatcher
+     */
+    public ElfWsDispatcher getDispatcher() {
+        return dispatcher != null ? dispatcher : ElfWsDispatcher.getDefault();
+    }
+
+    /**
+     * Set a specific {@link com.zagonico.elfws.ElfWsDispatcher ElfWsDispatcher} for this client,
+     * null to go back to the shared one.
+     *
+     * @param dispatcher
+     *        instance of {@link com.zagonico.elfws.ElfWsDispatcher ElfWsDispatcher}
+     */
+    public void setDispatcher(ElfWsDispatcher dispatcher) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * The connection pool used by the requests of this client.
+     * @return ElfWsConnectionPool
+     */
+    public ElfWsConnectionPool getConnectionPool() {
+        return connectionPool != null ? connectionPool : ElfWsConnectionPool.getDefault();
+    }
+
+    /**
+     * Set a specific {@link com.zagonico.elfws.ElfWsConnectionPool ElfWsConnectionPool} for this
+     * client, null to go back to the shared one.
+     *
+     * @param connectionPool
+     *        instance of {@link com.zagonico.elfws.ElfWsConnectionPool ElfWsConnectionPool}
+     */
+    public void setConnectionPool(ElfWsConnectionPool connectionPool) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * The cache of the responses, null if not set.
+     * @return ElfWsCache
+     */
+    public ElfWsCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsCache ElfWsCache} for the GET requests of this client,
+     * null to disable caching. A cache can be shared by many clients; responses obtained with an
+     * auth are served only to the clients with the same auth.
+     *
+     * @param cache
+     *        instance of {@link com.zagonico.elfws.ElfWsCache ElfWsCache}
+     */
+    public void setCache(ElfWsCache cache) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.cache = cache;
+    }
+
+    /**
+     * The coalescer of identical requests, null if not set.
+     * @return ElfWsCoalescer
+     */
+    public ElfWsCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsCoalescer ElfWsCoalescer} so that identical GETs in
+     * flight at the same time share one network call, null to disable it. A coalescer can be
+     * shared by many clients; responses are shared only between clients with the same auth.
+     *
+     * @param coalescer
+     *        instance of {@link com.zagonico.elfws.ElfWsCoalescer ElfWsCoalescer}
+     */
+    public void setCoalescer(ElfWsCoalescer coalescer) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * The transport used by the requests of this client.
+     * @return ElfWsTransport
+     */
+    public ElfWsTransport getTransport() {
+        return transport != null ? transport : ElfWsUrlConnectionTransport.getDefault();
+    }
+
+    /**
+     * Set the {@link com.zagonico.elfws.ElfWsTransport ElfWsTransport} that sends the requests of
+     * this client, null to go back to the <code>HttpURLConnection</code> one.
+     *
+     * @param transport
+     *        instance of {@link com.zagonico.elfws.ElfWsTransport ElfWsTransport}
+     */
+    public void setTransport(ElfWsTransport transport) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.transport = transport;
+    }
+
+    /**
+     * The retry policy of the requests, null if not set.
+     * @return ElfWsRetryPolicy
+     */
+    public ElfWsRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsRetryPolicy ElfWsRetryPolicy} so that requests failed
+     * for a transient reason are sent again after a backoff, null to disable retries. A policy
+     * can be shared by many clients, its retry budget is then shared too. Asynchronous requests
+     * wait for the next attempt without holding a worker.
+     *
+     * @param retryPolicy
+     *        instance of {@link com.zagonico.elfws.ElfWsRetryPolicy ElfWsRetryPolicy}
+     */
+    public void setRetryPolicy(ElfWsRetryPolicy retryPolicy) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * The hedge policy of the requests, null if not set.
+     * @return ElfWsHedgePolicy
+     */
+    public ElfWsHedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsHedgePolicy ElfWsHedgePolicy} so that a second copy
+     * of an idempotent request is sent when the first is slow to answer, null to disable
+     * hedging. The copies of a request are sent from the workers of the dispatcher, or the
+     * threads of a non blocking transport.
+     *
+     * @param hedgePolicy
+     *        instance of {@link com.zagonico.elfws.ElfWsHedgePolicy ElfWsHedgePolicy}
+     */
+    public void setHedgePolicy(ElfWsHedgePolicy hedgePolicy) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * The circuit breaker of the requests, null if not set.
+     * @return ElfWsCircuitBreaker
+     */
+    public ElfWsCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsCircuitBreaker ElfWsCircuitBreaker} so that, while a
+     * host fails, its requests fail immediately instead of waiting for the timeouts, null to
+     * disable it. Every network call is recorded, retries and hedges included. A breaker can be
+     * shared by many clients.
+     *
+     * @param circuitBreaker
+     *        instance of {@link com.zagonico.elfws.ElfWsCircuitBreaker ElfWsCircuitBreaker}
+     */
+    public void setCircuitBreaker(ElfWsCircuitBreaker circuitBreaker) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * The rate limiter of the requests, null if not set.
+     * @return ElfWsRateLimiter
+     */
+    public ElfWsRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsRateLimiter ElfWsRateLimiter} that delays or rejects
+     * the requests exceeding the limits of the servers, null to disable it. Every network call
+     * takes a token, retries and hedges included. A limiter can be shared by many clients.
+     *
+     * @param rateLimiter
+     *        instance of {@link com.zagonico.elfws.ElfWsRateLimiter ElfWsRateLimiter}
+     */
+    public void setRateLimiter(ElfWsRateLimiter rateLimiter) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * The concurrency limiter of the requests, null if not set.
+     * @return ElfWsConcurrencyLimiter
+     */
+    public ElfWsConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Set an {@link com.zagonico.elfws.ElfWsConcurrencyLimiter ElfWsConcurrencyLimiter} that
+     * adapts the number of requests in flight to each host to its latency and errors, null to
+     * disable it. A limiter can be shared by many clients.
+     *
+     * @param concurrencyLimiter
+     *        instance of {@link com.zagonico.elfws.ElfWsConcurrencyLimiter ElfWsConcurrencyLimiter}
+     */
+    public void setConcurrencyLimiter(ElfWsConcurrencyLimiter concurrencyLimiter) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Minimum size of the request bodies sent gzipped.
+     * @return long bytes, -1 if request bodies are never compressed
+     */
+    public long getGzipRequestThreshold() {
+        return gzipRequestThreshold;
+    }
+
+    /**
+     * Send json, xml and form bodies of at least <code>threshold</code> bytes gzipped, with
+     * <code>Content-Encoding: gzip</code>. The server must accept compressed requests, so it is
+     * disabled by default. Multipart bodies are never compressed.
+     *
+     * @param threshold
+     *        minimum size in bytes, -1 to disable
+     */
+    public void setGzipRequestThreshold(long threshold) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        this.gzipRequestThreshold = threshold < 0 ? -1 : threshold;
+    }
+
+    /**
+     * Default timeout of the connection to the server.
+     * @return long milliseconds, 0 for no timeout
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the timeout of the connection to the server, for the requests that don't set their own.
+     *
+     * @param millis
+     *        milliseconds, 0 for no timeout
+     */
+    public void setConnectTimeout(long millis) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        if (millis < 0) throw new IllegalArgumentException("Invalid timeout");
+        this.connectTimeout = millis;
+    }
+
+    /**
+     * Default maximum time without receiving data while waiting for a response.
+     * @return long milliseconds, 0 for no timeout
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Set the maximum time without receiving data while waiting for a response, for the requests
+     * that don't set their own.
+     *
+     * @param millis
+     *        milliseconds, 0 for no timeout
+     */
+    public void setReadTimeout(long millis) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        if (millis < 0) throw new IllegalArgumentException("Invalid timeout");
+        this.readTimeout = millis;
+    }
+
+    /**
+     * Default maximum time of a whole request.
+     * @return long milliseconds, 0 for no deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set the maximum time of a whole request, from its submission (waiting for a worker
+     * included) to the end of the response, for the requests that don't set their own. When it
+     * expires the connection is closed, so a slow server cannot hold a worker, and the request
+     * fails with a <code>TimeoutException</code>. Disabled by default.
+     *
+     * @param millis
+     *        milliseconds, 0 for no deadline
+     */
+    public void setDeadline(long millis) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        if (millis < 0) throw new IllegalArgumentException("Invalid deadline");
+        this.deadline = millis;
+    }
+
+    /**
+     * Default priority of the requests.
+     * @return ElfWsRequest.Priority
+     */
+    public ElfWsRequest.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority of the requests that don't set their own, e.g.
+     * {@link ElfWsRequest.Priority#BACKGROUND BACKGROUND} for a client used for synchronization,
+     * so that its requests waiting for a worker of the {@link #getDispatcher() dispatcher} let
+     * the interactive ones go first. {@link ElfWsRequest.Priority#NORMAL NORMAL} by default.
+     *
+     * @param priority
+     *        the priority
+     */
+    public void setPriority(ElfWsRequest.Priority priority) {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+        if (priority == null) throw new IllegalArgumentException("Priority cannot be null");
+        this.priority = priority;
+    }
+
+    /**
+     * Cancel all the requests of this client in flight or waiting for a worker, synchronous ones
+     * included, closing their connections.
+     */
+    public void cancelAll() {
+        for (ElfWsFuture future : new ArrayList<>(running)) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Requests of this client in flight or waiting for a worker.
+     * @return int
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
     /**
      * Clean current pending requests.
      */
@@ -227,16 +652,9 @@ public class ElfWsClient implements Runnable {
     protected void resetAllRequests(boolean skipCheck) {
         if (PROCESSING && !skipCheck) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        actions = new ArrayList<>();
-        getParameters = null;
-        postParameters = null;
-        jsonData = null;
-        xmlData = null;
-        stringToUpload_fieldName = new ArrayList<>();
-        stringToUpload_fileName = new ArrayList<>();
-        stringToUpload_mime = new ArrayList<>();
-        stringToUpload = new ArrayList<>();
-        addictionalHeaders = null;
+        synchronized (pending) {
+            pending.reset();
+        }
     }
 
     /**
@@ -263,31 +681,8 @@ public class ElfWsClient implements Runnable {
     public void resetRequest(boolean get, boolean post, boolean file, boolean json, boolean xml, boolean headers) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (get) {
-            actions.remove(ElfWsAction.GET);
-            getParameters = null;
-        }
-        if (post) {
-            actions.remove(ElfWsAction.POST);
-            postParameters = null;
-        }
-        if (file) {
-            actions.remove(ElfWsAction.FILE_UPLOAD);
-            stringToUpload_fieldName = new ArrayList<>();
-            stringToUpload_fileName = new ArrayList<>();
-            stringToUpload_mime = new ArrayList<>();
-            stringToUpload = new ArrayList<>();
-        }
-        if (json) {
-            actions.remove(ElfWsAction.JSON_REQUEST);
-            jsonData = null;
-        }
-        if (xml) {
-            actions.remove(ElfWsAction.XML_REQUEST);
-            xmlData = null;
-        }
-        if (headers) {
-            addictionalHeaders = null;
+        synchronized (pending) {
+            pending.reset(get, post, file, json, xml, headers);
         }
     }
 
@@ -303,12 +698,9 @@ public class ElfWsClient implements Runnable {
     public boolean addGet(Map<String, String> args) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (!actions.contains(ElfWsAction.GET)) actions.add(ElfWsAction.GET);
-
-        if (getParameters != null)
-            getParameters.putAll(args);
-        else
-            getParameters = args;
+        synchronized (pending) {
+            pending.addGet(args);
+        }
 
         return true;
     }
@@ -324,12 +716,9 @@ public class ElfWsClient implements Runnable {
     public boolean addPost(Map<String, String> args) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (!actions.contains(ElfWsAction.POST)) actions.add(ElfWsAction.POST);
-
-        if (postParameters != null)
-            postParameters.putAll(args);
-        else
-            postParameters = args;
+        synchronized (pending) {
+            pending.addPost(args);
+        }
 
         return true;
     }
@@ -351,19 +740,13 @@ public class ElfWsClient implements Runnable {
     public boolean addFile(File file, String fileName, String fieldName) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (file == null || !file.exists() || file.isDirectory()) return false;
-
-        if (!actions.contains(ElfWsAction.FILE_UPLOAD)) actions.add(ElfWsAction.FILE_UPLOAD);
-
         try {
-            byte[] content = ElfWsUtil.readBinaryFile(file.getAbsolutePath());
-            stringToUpload.add(content);
-            stringToUpload_fieldName.add(fieldName);
-            stringToUpload_fileName.add(fileName != null ? fileName : file.getName());
-            stringToUpload_mime.add(ElfWsUtil.getMimeType(file.getAbsolutePath()));
+            synchronized (pending) {
+                pending.addFile(file, fileName, fieldName);
+            }
             return true;
         }
-        catch (Exception e) {
+        catch (ElfWsException e) {
             if (DEBUG_MODE) e.printStackTrace();
         }
 
@@ -390,16 +773,17 @@ public class ElfWsClient implements Runnable {
     public boolean addFile(String content, String fileName, String fieldName, String mime) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (content == null) return false;
-
-        if (!actions.contains(ElfWsAction.FILE_UPLOAD)) actions.add(ElfWsAction.FILE_UPLOAD);
-
-        stringToUpload.add(content.getBytes());
-        stringToUpload_fieldName.add(fieldName);
-        stringToUpload_fileName.add(fileName);
-        stringToUpload_mime.add(mime);
+        try {
+            synchronized (pending) {
+                pending.addFile(content, fileName, fieldName, mime);
+            }
+            return true;
+        }
+        catch (ElfWsException e) {
+            if (DEBUG_MODE) e.printStackTrace();
+        }
 
-        return true;
+        return false;
     }
 
     /**
@@ -422,22 +806,17 @@ public class ElfWsClient implements Runnable {
     public boolean addFile(InputStream inputStream, String fileName, String fieldName, String mime) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (inputStream == null) return false;
-
-        if (!actions.contains(ElfWsAction.FILE_UPLOAD)) actions.add(ElfWsAction.FILE_UPLOAD);
-
         try {
-            stringToUpload.add(ElfWsUtil.readTextFromInputStream(inputStream));
-            stringToUpload_fieldName.add(fieldName);
-            stringToUpload_fileName.add(fileName);
-            stringToUpload_mime.add(mime);
+            synchronized (pending) {
+                pending.addFile(inputStream, fileName, fieldName, mime);
+            }
+            return true;
         }
-        catch (Exception e) {
+        catch (ElfWsException e) {
             if (DEBUG_MODE) e.printStackTrace();
-            return false;
         }
 
-        return true;
+        return false;
     }
 
     /**
@@ -461,22 +840,17 @@ public class ElfWsClient implements Runnable {
     public boolean addFile(Context context, Uri file, String fileName, String fieldName) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (file == null) return false;
-
-        if (!actions.contains(ElfWsAction.FILE_UPLOAD)) actions.add(ElfWsAction.FILE_UPLOAD);
-
         try {
-            byte[] content = ElfWsUtil.readTextFromInputStream(context.getContentResolver().openInputStream(file));
-            stringToUpload.add(content);
-            stringToUpload_fieldName.add(fieldName);
-            stringToUpload_fileName.add(fileName!=null ? fileName : ElfWsUtil.getInfoFromUri(context, file, OpenableColumns.DISPLAY_NAME));
-            stringToUpload_mime.add(ElfWsUtil.getMimeFromUri(context, file));
+            synchronized (pending) {
+                pending.addFile(context, file, fileName, fieldName);
+            }
+            return true;
         }
-        catch (Exception e) {
+        catch (ElfWsException e) {
             if (DEBUG_MODE) e.printStackTrace();
-            return false;
         }
-        return true;
+
+        return false;
     }
 
     /**
@@ -489,9 +863,9 @@ public class ElfWsClient implements Runnable {
 
         if (json == null) return false;
 
-        if (!actions.contains(ElfWsAction.JSON_REQUEST)) actions.add(ElfWsAction.JSON_REQUEST);
-
-        jsonData = json;
+        synchronized (pending) {
+            pending.addJson(json);
+        }
 
         return true;
     }
@@ -506,29 +880,13 @@ public class ElfWsClient implements Runnable {
 
         if (xml == null) return false;
 
-        if (!actions.contains(ElfWsAction.XML_REQUEST)) actions.add(ElfWsAction.XML_REQUEST);
-
-        xmlData = xml;
+        synchronized (pending) {
+            pending.addXml(xml);
+        }
 
         return true;
     }
 
-    private boolean isPost() {
-        return actions.contains(ElfWsAction.POST);
-    }
-
-    private boolean isJson() {
-        return actions.contains(ElfWsAction.JSON_REQUEST);
-    }
-
-    private boolean isXml() {
-        return actions.contains(ElfWsAction.XML_REQUEST);
-    }
-
-    private boolean isUpload() {
-        return actions.contains(ElfWsAction.FILE_UPLOAD);
-    }
-
     /**
      * Add addictional headers to be added to the request
      *
@@ -538,10 +896,9 @@ public class ElfWsClient implements Runnable {
     public void setAddictionalHeaders(Map<String, String> headers) {
         if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        if (addictionalHeaders != null)
-            addictionalHeaders.putAll(headers);
-        else
-            addictionalHeaders = headers;
+        synchronized (pending) {
+            pending.setAddictionalHeaders(headers);
+        }
     }
 
     /**
@@ -560,175 +917,768 @@ public class ElfWsClient implements Runnable {
     protected ElfWsResponse httpRequest(String address, boolean skipCheck) {
         if (PROCESSING && !skipCheck) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
 
-        ElfWsResponse elfWsResponse = null;
+        ElfWsRequest request = takePending(address);
 
-        try {
-            if (actions.contains(ElfWsAction.GET)) {
-                address = ElfWsUtil.addGetsToAddress(address, getParameters);
+        return request != null ? perform(request) : null;
+    }
+
+    /**
+     * Build the pending request with <code>address</code> as url and reset it, so the add
+     * methods can prepare the next one.
+     */
+    private ElfWsRequest takePending(String address) {
+        synchronized (pending) {
+            try {
+                return pending.setUrl(address).build();
+            }
+            catch (Exception e) {
+                if (DEBUG_MODE) e.printStackTrace();
+                return null;
+            }
+            finally {
+                pending.reset();
             }
+        }
+    }
+
+    /**
+     * Execute <code>request</code> in the current thread. The client has no state related to the
+     * request, so this method can be called by many threads at once.
+     *
+     * @param request
+     *        the request to perform
+     *
+     * @return ElfWsResponse, null if the request fails
+     * @throws ElfWsAuthException if the auth class cannot prepare the request
+     */
+    public ElfWsResponse execute(ElfWsRequest request) {
+        if (request == null) throw new IllegalArgumentException("Request cannot be null");
 
-            URL url = new URL(address);
+        prepareAuth();
 
-            HttpURLConnection conn;
-            if (address.startsWith("https:"))
-                conn = (HttpsURLConnection) url.openConnection();
-            else
-                conn = (HttpURLConnection) url.openConnection();
+        return perform(request);
+    }
 
-            if (isPost() || isUpload() || isJson() || isXml()) {
-                conn.setDoOutput(true);
-                conn.setRequestMethod("POST");
-            }
-            else {
-                conn.setDoOutput(false);
-                conn.setRequestMethod("GET");
+    /**
+     * Execute <code>request</code> in a worker of the {@link #getDispatcher() dispatcher} and
+     * pass the response to <code>callback</code>.
+     *
+     * @param request
+     *        the request to perform
+     *
+     * @param callback
+     *        the callback that will process the response, may be null
+     */
+    public void executeRequest(final ElfWsRequest request, final ElfWsCallback callback) {
+        ElfWsFuture future = executeAsync(request);
+
+        if (callback != null) {
+            future.addCallback(new ElfWsCallback() {
+                @Override
+                public void processResponse(ElfWsResponse response) {
+                    deliver(callback, response);
+                }
+            });
+        }
+    }
+
+    /**
+     * Execute <code>request</code> in a worker of the {@link #getDispatcher() dispatcher}.
+     * Cancelling the returned future aborts the connection of the request.
+     *
+     * @param request
+     *        the request to perform
+     *
+     * @return ElfWsFuture completed with the response, or failed with the exception that
+     *         prevented it
+     */
+    public ElfWsFuture executeAsync(final ElfWsRequest request) {
+        if (request == null) throw new IllegalArgumentException("Request cannot be null");
+
+        ElfWsFuture future = track(request, new ElfWsFuture());
+
+        ElfWsRetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy != null) retryPolicy.onRequest();
+
+        attempt(request, future, retryPolicy, 1);
+        return future;
+    }
+
+    /**
+     * Run attempt number <code>attempt</code> of <code>request</code> in a worker of the
+     * dispatcher.
+     */
+    private void attempt(final ElfWsRequest request, final ElfWsFuture future, final ElfWsRetryPolicy retryPolicy, final int attempt) {
+        try {
+            getDispatcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) return;
+
+                    try {
+                        prepareAuth();
+
+                        // a non blocking transport completes the attempt from its own threads
+                        if (isDirect(request)) {
+                            final ElfWsFuture sent = sendDirect(request, future);
+                            sent.addCallback(new ElfWsCallback() {
+                                @Override
+                                public void processResponse(ElfWsResponse response) {
+                                    Throwable exception = sent.getException();
+                                    if (exception == null || exception instanceof Exception)
+                                        attempted(request, future, retryPolicy, attempt, response, (Exception) exception);
+                                    else
+                                        future.fail(exception);
+                                }
+                            });
+                            return;
+                        }
+
+                        attempted(request, future, retryPolicy, attempt, performOrThrow(request, future), null);
+                    }
+                    catch (Exception e) {
+                        attempted(request, future, retryPolicy, attempt, null, e);
+                    }
+                }
+            }, priority(request), future);
+        }
+        catch (RejectedExecutionException e) {
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Complete <code>future</code> with the outcome of attempt number <code>attempt</code>, or
+     * schedule the next attempt if the retry policy allows it.
+     */
+    private void attempted(final ElfWsRequest request, final ElfWsFuture future, final ElfWsRetryPolicy retryPolicy, final int attempt,
+                           ElfWsResponse response, Exception exception) {
+        long delay = retryDelay(request, future, retryPolicy, attempt, response, exception);
+        if (delay >= 0) {
+            if (DEBUG_MODE && exception != null) exception.printStackTrace();
+
+            ElfWsScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(request, future, retryPolicy, attempt + 1);
+                }
+            }, delay);
+            return;
+        }
+
+        if (exception != null) {
+            if (DEBUG_MODE && !future.isCancelled()) exception.printStackTrace();
+            future.fail(exception);
+        }
+        else {
+            future.complete(response);
+        }
+    }
+
+    /**
+     * Wait before the attempt following <code>attempt</code>, -1 if there is none.
+     */
+    private static long retryDelay(ElfWsRequest request, ElfWsFuture future, ElfWsRetryPolicy retryPolicy, int attempt,
+                                   ElfWsResponse response, Exception exception) {
+        if (retryPolicy == null || future.isAborted()) return -1;
+
+        // a retry that cannot complete before the deadline: the caller gets this outcome now
+        long deadlineAt = future.getDeadlineAt();
+        long remaining = deadlineAt > 0 ? deadlineAt - System.currentTimeMillis() : Long.MAX_VALUE;
+
+        return retryPolicy.retryDelay(request, attempt, response, exception, remaining);
+    }
+
+    /**
+     * Execute asynchronously the request currently defined in the class status, see
+     * {@link #executeAsync(ElfWsRequest) executeAsync}. The callback of the client is not invoked.
+     *
+     * @return ElfWsFuture completed with the response
+     */
+    public ElfWsFuture executeAsync() {
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+
+        String url = this.url;
+        if (url == null || "".equals(url)) throw new IllegalStateException("No url specified");
+
+        ElfWsRequest request = takePending(url);
+        if (request == null) {
+            ElfWsFuture future = new ElfWsFuture();
+            future.fail(new ElfWsException("Invalid request"));
+            return future;
+        }
+
+        return executeAsync(request);
+    }
+
+    /**
+     * True if <code>request</code> can go straight to a non blocking transport, without a worker
+     * waiting for its response.
+     */
+    private boolean isDirect(ElfWsRequest request) {
+        if (!getTransport().isNonBlocking()) return false;
+
+        ElfWsCache cache = this.cache;
+        ElfWsCoalescer coalescer = this.coalescer;
+        return (cache == null || !ElfWsCache.isCacheable(request))
+                && (coalescer == null || !ElfWsCoalescer.isCoalescable(request));
+    }
+
+    /**
+     * Register <code>future</code> for {@link #cancelAll() cancelAll} and arm the deadline of
+     * <code>request</code>, both undone when it completes. Also used by
+     * {@link com.zagonico.elfws.ElfWsBatcher ElfWsBatcher} for the futures of its calls.
+     */
+    ElfWsFuture track(ElfWsRequest request, final ElfWsFuture future) {
+        running.add(future);
+
+        final long deadline = request.getDeadline() >= 0 ? request.getDeadline() : this.deadline;
+        if (deadline > 0) future.setDeadlineAt(System.currentTimeMillis() + deadline);
+        final ScheduledFuture<?> timer = deadline <= 0 ? null : ElfWsScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.expire(new TimeoutException("Request not completed in " + deadline + " ms"));
             }
+        }, deadline);
 
-            if (auth != null) {
-                auth.modifyConnection(conn);
+        future.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                running.remove(future);
+                if (timer != null) timer.cancel(false);
             }
+        });
+        return future;
+    }
 
-            if (addictionalHeaders != null) {
-                for (String header : addictionalHeaders.keySet()) {
-                    conn.setRequestProperty(header, addictionalHeaders.get(header));
+    private void prepareAuth() {
+        ElfWsAuth auth = this.auth;
+        if (auth != null) {
+            synchronized (auth) {
+                if (!auth.beforeRequest()) {
+                    throw new ElfWsAuthException(auth.error());
                 }
             }
+        }
+    }
 
-            conn.setDoInput(true);
-            conn.setUseCaches(false);
-
-            String boundary = "------"+System.currentTimeMillis();
-            if (isJson()) {
-                conn.setRequestProperty("Content-Type", "application/json");
+    private void deliver(ElfWsCallback callback, ElfWsResponse response) {
+        if (callback != null) {
+            try {
+                callback.processResponse(response);
             }
-            else if (isXml()) {
-                conn.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+            catch (Exception e) {
+                if (DEBUG_MODE) e.printStackTrace();
             }
-            else if (isUpload()) {       // with files it needs to be multipart
-                conn.setRequestProperty("content-type", "multipart/form-data;; boundary="+boundary); //boundary="+boundary
+        }
+    }
+
+    /**
+     * Send <code>request</code> without the auth check, returning null on failure.
+     */
+    private ElfWsResponse perform(ElfWsRequest request) {
+        // the handle of the deadline and of cancelAll, like the future of an async request
+        ElfWsFuture call = track(request, new ElfWsFuture());
+
+        ElfWsRetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy != null) retryPolicy.onRequest();
+
+        for (int attempt = 1; ; attempt++) {
+            ElfWsResponse response = null;
+            Exception exception = null;
+            try {
+                response = performOrThrow(request, call);
             }
-            else if (isPost()) {    // normal form post
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            catch (Exception e) {
+                exception = e;
             }
-            conn.setRequestProperty( "cache-control", "no-cache" );
-            conn.setRequestProperty( "Accept", "*/*" );
 
-            if (isUpload() || isPost() || isJson() || isXml()) {
-                if (!isXml()) {
-                    conn.setRequestProperty("Expect", "100-continue");
-                    conn.setRequestProperty("Connection", "close");
+            long delay = retryDelay(request, call, retryPolicy, attempt, response, exception);
+            if (delay < 0) {
+                if (exception == null) {
+                    // completed meanwhile by the deadline or cancelAll
+                    if (!call.complete(response)) return null;
+                    return response;
                 }
 
-                OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream());
+                call.fail(exception);
+                if (DEBUG_MODE) call.getException().printStackTrace();
+                return null;
+            }
 
-                if (isJson()) {
-                    writer.write(jsonData.toString());
-                    writer.write("\r\n");
-                }
-                else if (isXml()) {
-                    writer.write(xmlData.toString());
-                    writer.write("\r\n");
+            if (DEBUG_MODE && exception != null) exception.printStackTrace();
+            try {
+                // the deadline or cancelAll end the wait
+                if (call.await(delay)) return null;
+            }
+            catch (InterruptedException e) {
+                call.cancel(true);
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Send <code>request</code> without the auth check. If <code>future</code> is not null its
+     * cancellation aborts the connection.
+     */
+    private ElfWsResponse performOrThrow(final ElfWsRequest request, final ElfWsFuture future) throws Exception {
+        ElfWsCoalescer coalescer = this.coalescer;
+        if (coalescer == null || !ElfWsCoalescer.isCoalescable(request)) return performCached(request, future);
+
+        return coalescer.execute(request, auth, future, new ElfWsCoalescer.Call() {
+            @Override
+            public ElfWsResponse call() throws Exception {
+                try {
+                    return performCached(request, future);
                 }
-                else {
-                    writePost(writer, boundary);
-                    writeFiles(writer, boundary);
+                catch (Exception e) {
+                    // the requests waiting for this one retry on their own
+                    if (future != null && future.isAborted()) throw new CancellationException("Request cancelled");
+                    throw e;
                 }
+            }
+        });
+    }
 
-                // last boundary if is multipart
-                if (isPost())
-                    writer.write("--" + boundary + "--\r\n");
+    /**
+     * Send <code>request</code> through the cache, if any.
+     */
+    private ElfWsResponse performCached(ElfWsRequest request, ElfWsFuture future) throws Exception {
+        ElfWsCache cache = this.cache;
+        if (cache == null || !ElfWsCache.isCacheable(request)) return performOnNetwork(request, future);
+
+        ElfWsCache.Entry entry = cache.lookup(request, auth);
+        if (entry != null && !ElfWsCache.requiresRevalidation(request)) {
+            long now = System.currentTimeMillis();
+            if (entry.isFresh(now)) return cache.serve(entry);
+
+            if (cache.canServeWhileRevalidating(entry, now)) {
+                refreshInBackground(cache, request, entry);
+                return cache.serveStale(entry);
+            }
+        }
 
-                writer.flush();
-                writer.close();
+        try {
+            ElfWsResponse response = revalidate(cache, request, entry, future);
+            if (entry != null && response.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    && cache.canServeOnError(entry, System.currentTimeMillis())) {
+                return cache.serveStale(entry);
+            }
+            return response;
+        }
+        catch (Exception e) {
+            if (future != null && future.isAborted()) throw e;
+            if (entry != null && cache.canServeOnError(entry, System.currentTimeMillis())) {
+                if (DEBUG_MODE) e.printStackTrace();
+                return cache.serveStale(entry);
             }
+            throw e;
+        }
+    }
+
+    /**
+     * Send <code>request</code>, conditional if <code>entry</code> has validators, and update the
+     * cache with the response.
+     */
+    private ElfWsResponse revalidate(ElfWsCache cache, ElfWsRequest request, ElfWsCache.Entry entry, ElfWsFuture future) throws Exception {
+        ElfWsRequest networkRequest = request;
+        if (entry != null && entry.canRevalidate()) {
+            networkRequest = request.newBuilder().setAddictionalHeaders(entry.conditionalHeaders()).build();
+        }
 
-            String line, response = "";
+        long requestTime = System.currentTimeMillis();
+        ElfWsResponse response = performOnNetwork(networkRequest, future);
+        long responseTime = System.currentTimeMillis();
 
-            elfWsResponse = new ElfWsResponse(conn.getResponseCode(), conn.getHeaderFields());
+        if (entry != null && response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return cache.revalidated(entry, response, requestTime, responseTime);
+        }
+        if (entry != null && response.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            // a server error doesn't replace the cached response
+            return response;
+        }
+        return cache.stored(request, auth, response, requestTime, responseTime);
+    }
+
+    private ElfWsRequest.Priority priority(ElfWsRequest request) {
+        return request.getPriority() != null ? request.getPriority() : priority;
+    }
 
-            BufferedReader reader;
-            if (conn.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST) {
-                reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+    /**
+     * Revalidate <code>entry</code> in a worker of the dispatcher, unless a revalidation of the
+     * same url is already in flight.
+     */
+    private void refreshInBackground(final ElfWsCache cache, final ElfWsRequest request, final ElfWsCache.Entry entry) {
+        if (!cache.beginRefresh(entry)) return;
+
+        // done when the revalidation ends, or fails if the dispatcher rejects or discards it
+        final ElfWsFuture refresh = new ElfWsFuture();
+        refresh.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                cache.endRefresh(entry);
             }
-            else {
-                reader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
+        });
+
+        try {
+            // a background task never runs in the caller, which is served the stale response now
+            getDispatcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prepareAuth();
+                        revalidate(cache, request, entry, null);
+                    }
+                    catch (Exception e) {
+                        if (DEBUG_MODE) e.printStackTrace();
+                    }
+                    finally {
+                        refresh.complete(null);
+                    }
+                }
+            }, ElfWsRequest.Priority.BACKGROUND, refresh);
+        }
+        catch (RejectedExecutionException e) {
+            refresh.fail(e);
+        }
+    }
+
+    /**
+     * Send <code>request</code> with the non blocking transport, hedged if the hedge policy
+     * allows it.
+     */
+    private ElfWsFuture sendDirect(final ElfWsRequest request, ElfWsFuture future) throws IOException {
+        ElfWsHedgePolicy hedgePolicy = this.hedgePolicy;
+        if (hedgePolicy == null || !ElfWsHedgePolicy.isHedgeable(request)) return sendThrottled(exchange(request, future));
+
+        ElfWsHedgePolicy.Race race = hedgePolicy.start(request, future, new ElfWsHedgePolicy.Call() {
+            @Override
+            public void send(ElfWsHedgePolicy.Race race, ElfWsFuture handle) {
+                sendHedge(request, race, handle);
             }
+        });
+        sendHedge(request, race, race.getPrimary());
+        return race.getResult();
+    }
 
-            while ((line = reader.readLine()) != null) {
-                response += ("".equals(response) ? "" : "\n") + line;
+    /**
+     * Send <code>request</code> on the network, racing it with a hedge copy if the hedge policy
+     * allows it.
+     */
+    private ElfWsResponse performOnNetwork(final ElfWsRequest request, ElfWsFuture future) throws Exception {
+        ElfWsHedgePolicy hedgePolicy = this.hedgePolicy;
+        if (hedgePolicy == null || !ElfWsHedgePolicy.isHedgeable(request)) return performOnTransport(request, future);
+
+        ElfWsHedgePolicy.Race race = hedgePolicy.start(request, future, new ElfWsHedgePolicy.Call() {
+            @Override
+            public void send(ElfWsHedgePolicy.Race race, ElfWsFuture handle) {
+                sendHedge(request, race, handle);
             }
+        });
 
-            String contentDisp = conn.getHeaderField("Content-Disposition");
-            // raw = "attachment; filename=abc.jpg"
-            String fileName = "";
-            if (contentDisp != null && contentDisp.contains("=")) {
-                fileName = contentDisp.split("=")[1];
-                fileName = fileName.substring(1, fileName.length()-1);
+        // the first copy is sent by this thread, aborted if the hedge wins
+        ElfWsFuture primary = race.getPrimary();
+        try {
+            race.finished(primary, performOnTransport(request, primary), null);
+        }
+        catch (Exception e) {
+            race.finished(primary, null, e);
+        }
+        return await(race.getResult());
+    }
+
+    /**
+     * Send a copy of <code>request</code>, reporting its outcome to <code>race</code>: from the
+     * threads of a non blocking transport, or from a worker of the dispatcher.
+     */
+    private void sendHedge(final ElfWsRequest request, final ElfWsHedgePolicy.Race race, final ElfWsFuture handle) {
+        if (getTransport().isNonBlocking()) {
+            try {
+                final ElfWsFuture sent = sendThrottled(exchange(request, handle));
+                sent.addCallback(new ElfWsCallback() {
+                    @Override
+                    public void processResponse(ElfWsResponse response) {
+                        race.finished(handle, response, sent.getException());
+                    }
+                });
             }
+            catch (Exception e) {
+                race.finished(handle, null, e);
+            }
+            return;
+        }
 
-            String contentType = conn.getHeaderField("Content-Type");
-            String mime = "";
-            if (contentType != null) {
-                mime = contentType;
+        // also failed if the dispatcher discards the copy
+        final ElfWsFuture sent = new ElfWsFuture();
+        sent.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                race.finished(handle, response, sent.getException());
             }
+        });
+
+        try {
+            getDispatcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sent.complete(performOnTransport(request, handle));
+                    }
+                    catch (Exception e) {
+                        sent.fail(e);
+                    }
+                }
+            }, priority(request), sent);
+        }
+        catch (RejectedExecutionException e) {
+            sent.fail(e);
+        }
+    }
+
+    /**
+     * Send <code>request</code> with the transport. A blocking transport gets a connection slot
+     * of the pool and a retry on a stale connection; a non blocking one manages its own.
+     */
+    private ElfWsResponse performOnTransport(ElfWsRequest request, ElfWsFuture future) throws Exception {
+        ElfWsTransport transport = getTransport();
+        ElfWsExchange exchange = exchange(request, future);
+        if (transport.isNonBlocking()) return await(sendThrottled(exchange));
 
-            elfWsResponse.addContentInfo(fileName, mime, response);
+        ElfWsConnectionPool pool = getConnectionPool();
+        URL url = exchange.getUrl();
 
-            reader.close();
+        throttle(url, future);
+
+        ElfWsConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        ElfWsConcurrencyLimiter.Permit permit = concurrencyLimiter != null ? concurrencyLimiter.acquire(url, future) : null;
+        ElfWsResponse response = null;
+        Exception failure = null;
+        try {
+            pool.acquire(url, future);
+            try {
+                try {
+                    response = await(send(exchange));
+                }
+                catch (Exception e) {
+                    // a kept-alive connection closed by the server while idle: without a body
+                    // the request is safe to send again on a fresh connection
+                    if (request.hasBody() || !ElfWsConnectionPool.isStaleConnection(e)) throw e;
+                    if (future != null && future.isAborted()) throw e;
+                    response = await(send(exchange));
+                }
+                return response;
+            }
+            finally {
+                pool.release(url);
+            }
         }
         catch (Exception e) {
-            if (DEBUG_MODE) e.printStackTrace();
+            failure = e;
+            throw e;
         }
+        finally {
+            if (permit != null) permit.release(response, failure, exchange.isCancelled());
+        }
+    }
 
-        resetAllRequests(skipCheck);
+    /**
+     * Wait in this thread for the token of the rate limiter to send a request to <code>url</code>.
+     * @throws ElfWsRateLimitException if the wait would be too long
+     * @throws CancellationException if the request is cancelled or expires meanwhile
+     */
+    private void throttle(URL url, ElfWsFuture future) throws InterruptedException {
+        ElfWsRateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter == null) return;
 
-        return elfWsResponse;
+        long delay = rateLimiter.reserve(url);
+        if (delay <= 0) return;
+
+        if (future == null)
+            Thread.sleep(delay);
+        else if (future.await(delay))
+            throw new CancellationException("Request cancelled");
     }
 
-    private void writePost(OutputStreamWriter writer, String boundary) {
-        try {
-            if (!isUpload()) {
-                writer.write(ElfWsUtil.concatenateParameters(postParameters));
+    /**
+     * Hand <code>exchange</code> to the non blocking transport when the rate limiter gives its
+     * token, waiting on the scheduler instead of a thread.
+     * @throws ElfWsRateLimitException if the wait would be too long
+     */
+    private ElfWsFuture sendThrottled(final ElfWsExchange exchange) {
+        ElfWsRateLimiter rateLimiter = this.rateLimiter;
+        long delay = rateLimiter != null ? rateLimiter.reserve(exchange.getUrl()) : 0;
+        if (delay <= 0) return sendLimited(exchange);
+
+        final ElfWsFuture delayed = new ElfWsFuture();
+        final ScheduledFuture<?> timer = ElfWsScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (exchange.isCancelled()) return;
+
+                try {
+                    forward(sendLimited(exchange), delayed);
+                }
+                catch (RuntimeException e) {
+                    delayed.fail(e);
+                }
+            }
+        }, delay);
+
+        exchange.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+                delayed.cancel(true);
             }
-            else {
-                for (String key : postParameters.keySet()) {
-                    String value = postParameters.get(key);
+        });
+        return delayed;
+    }
+
+    /**
+     * Hand <code>exchange</code> to the non blocking transport when the concurrency limiter
+     * gives it a slot, from the thread of the request that frees it.
+     */
+    private ElfWsFuture sendLimited(final ElfWsExchange exchange) {
+        ElfWsConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        if (concurrencyLimiter == null) return send(exchange);
+
+        final ElfWsFuture limited = new ElfWsFuture();
+        final ElfWsConcurrencyLimiter.Grant grant = new ElfWsConcurrencyLimiter.Grant() {
+            @Override
+            public void granted(final ElfWsConcurrencyLimiter.Permit permit) {
+                if (exchange.isCancelled()) {
+                    permit.release(null, null, true);
+                    return;
+                }
 
-                    writer.write("--" + boundary + "\r\n");
-                    writer.write("Content-Disposition: form-data; name=\"" + key + "\"\r\n");
-                    writer.write("\r\n");
-                    writer.write(value+"\r\n");
+                final ElfWsFuture sent;
+                try {
+                    sent = send(exchange);
                 }
+                catch (RuntimeException e) {
+                    permit.release(null, e, exchange.isCancelled());
+                    limited.fail(e);
+                    return;
+                }
+
+                sent.addCallback(new ElfWsCallback() {
+                    @Override
+                    public void processResponse(ElfWsResponse response) {
+                        permit.release(response, sent.getException(), exchange.isCancelled());
+                    }
+                });
+                forward(sent, limited);
+            }
+        };
+
+        final ElfWsConcurrencyLimiter.Limit limit = concurrencyLimiter.acquire(exchange.getUrl(), grant);
+        exchange.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                limit.cancel(grant);
+                limited.cancel(true);
+            }
+        });
+        return limited;
+    }
+
+    /**
+     * Complete <code>target</code> with the outcome of <code>source</code>.
+     */
+    private static void forward(final ElfWsFuture source, final ElfWsFuture target) {
+        source.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (source.getException() != null)
+                    target.fail(source.getException());
+                else
+                    target.complete(response);
             }
+        });
+    }
+
+    /**
+     * Hand <code>exchange</code> to the transport, if the circuit breaker lets it through, and
+     * report the response to the rate limiter.
+     * @throws ElfWsCircuitOpenException if the circuit of the host is open
+     */
+    private ElfWsFuture send(final ElfWsExchange exchange) {
+        final ElfWsCircuitBreaker circuitBreaker = this.circuitBreaker;
+        final ElfWsRateLimiter rateLimiter = this.rateLimiter;
+        if (circuitBreaker == null && rateLimiter == null) return getTransport().send(exchange);
+
+        final ElfWsCircuitBreaker.Call call = circuitBreaker != null ? circuitBreaker.begin(exchange.getUrl()) : null;
+        final ElfWsFuture sent;
+        try {
+            sent = getTransport().send(exchange);
         }
-        catch (Exception e) {
-            if (DEBUG_MODE) e.printStackTrace();
+        catch (RuntimeException e) {
+            if (call != null) call.end(null, e, exchange.isCancelled());
+            throw e;
         }
+
+        sent.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (call != null) call.end(response, sent.getException(), exchange.isCancelled());
+                if (rateLimiter != null && response != null) rateLimiter.onResponse(exchange.getUrl(), response);
+            }
+        });
+        return sent;
     }
 
-    private void writeFiles(OutputStreamWriter writer, String boundary) {
+    /**
+     * The request with the headers and the body decided by the client. If <code>future</code>
+     * is not null its cancellation aborts the request.
+     */
+    private ElfWsExchange exchange(ElfWsRequest request, ElfWsFuture future) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+
+        Map<String, String> addictionalHeaders = request.getAddictionalHeaders();
+        // with an explicit Accept-Encoding the body is given back as received
+        boolean decodeContent = true;
+        for (String header : addictionalHeaders.keySet()) {
+            if ("Accept-Encoding".equalsIgnoreCase(header)) decodeContent = false;
+
+            // body framing is decided by the transport
+            if ("Content-Length".equalsIgnoreCase(header) || "Transfer-Encoding".equalsIgnoreCase(header)) continue;
+            headers.put(header, addictionalHeaders.get(header));
+        }
+
+        ElfWsBody body = ElfWsBody.gzip(ElfWsBody.of(request), gzipRequestThreshold);
+        if (body != null) {
+            headers.put("Content-Type", body.getContentType());
+            if (body.getContentEncoding() != null) headers.put("Content-Encoding", body.getContentEncoding());
+        }
+        if (decodeContent) {
+            headers.put("Accept-Encoding", "gzip, deflate");
+        }
+        // with a cache the validators and the Cache-Control of the request are decided by it
+        ElfWsCache cache = this.cache;
+        if (cache == null || !ElfWsCache.isCacheable(request)) {
+            headers.put( "cache-control", "no-cache" );
+        }
+        headers.put( "Accept", "*/*" );
+
+        long connectTimeout = request.getConnectTimeout() >= 0 ? request.getConnectTimeout() : this.connectTimeout;
+        long readTimeout = request.getReadTimeout() >= 0 ? request.getReadTimeout() : this.readTimeout;
+
+        return new ElfWsExchange(new URL(request.getAddress()), request, headers, body, auth, decodeContent, future,
+                (int) Math.min(connectTimeout, Integer.MAX_VALUE), (int) Math.min(readTimeout, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Wait for the response of the transport, throwing the exception that prevented it.
+     */
+    private static ElfWsResponse await(ElfWsFuture future) throws Exception {
         try {
-            if (stringToUpload != null && stringToUpload.size()>0) {
-                for (int i=0; i<stringToUpload.size(); i++) {
-                    byte[] content = stringToUpload.get(i);
-                    String basename = stringToUpload_fieldName.get(i);
-                    String filename = stringToUpload_fileName.get(i);
-                    String mime = stringToUpload_mime.get(i);
-
-                    writer.write("--" + boundary + "\r\n");
-                    writer.write("Content-Disposition: form-data; name=\"" +
-                            basename + "\"; filename=\"" +
-                            filename + "\"" + "\r\n");
-                    writer.write("Content-Type: " + mime + "\r\n");
-                    writer.write("\r\n");
-                    byte[] encoded = Base64.encode(content, Base64.DEFAULT);
-                    writer.write(new String(encoded));
-                    writer.write("\r\n");
-                }
-            }
+            return future.get();
         }
-        catch (Exception e) {
-            if (DEBUG_MODE) e.printStackTrace();
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
         }
     }
 
@@ -755,35 +1705,40 @@ public class ElfWsClient implements Runnable {
      */
     @Override
     public void run() {
+        String url = this.url;
         if (url == null || "".equals(url)) throw new IllegalStateException("No url specified");
 
         PROCESSING = true;
 
-        if (auth != null) {
-            if (!auth.beforeRequest()) {
-                throw new ElfWsAuthException(auth.error());
-            }
-        }
+        try {
+            prepareAuth();
 
-        ElfWsResponse response = httpRequest(url, true);
+            ElfWsResponse response = httpRequest(url, true);
 
-        if (callback != null) {
-            try {
-                callback.processResponse(response);
-            }
-            catch (Exception e) {
-                if (DEBUG_MODE) e.printStackTrace();
-            }
+            deliver(callback, response);
+        }
+        finally {
+            PROCESSING = false;
         }
-
-        PROCESSING = false;
     }
 
     /**
-     * Executes the request currently defined in the class status in a separated thread.
+     * Executes the request currently defined in the class status in a worker of the
+     * {@link #getDispatcher() dispatcher}. The pending request is taken immediately, so the
+     * client can prepare the next one while this is running.
      */
     public void executeRequest() {
-        Thread thread = new Thread(this);
-        thread.start();
+        if (PROCESSING) throw new IllegalThreadStateException("Cannot change parameters while performing a http request");
+
+        String url = this.url;
+        if (url == null || "".equals(url)) throw new IllegalStateException("No url specified");
+
+        ElfWsRequest request = takePending(url);
+        if (request == null) {
+            // the callback still learns that the request failed
+            deliver(callback, null);
+            return;
+        }
+        executeRequest(request, callback);
     }
 }
@@ -0,0 +1,219 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single flight of identical requests, set on a client with
+ * {@link com.zagonico.elfws.ElfWsClient#setCoalescer(ElfWsCoalescer) setCoalescer}.
+ *
+ * While a GET is in flight, the identical GETs (same url, same headers, same auth) of the
+ * clients sharing this coalescer don't open a connection: they wait for the first one and each
+ * receive a copy of its {@link com.zagonico.elfws.ElfWsResponse ElfWsResponse}, so a burst of
+ * cache misses on the same url costs a single network call. A waiting request still stops when
+ * it is cancelled or its deadline expires. Requests with a body and downloads are never
+ * coalesced.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsCoalescer {
+    /**
+     * The network call of the first request of a flight.
+     */
+    interface Call {
+        ElfWsResponse call() throws Exception;
+    }
+
+    /** flights in progress, guarded by this */
+    private final Map<Key, ElfWsFuture> inFlight = new HashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * True if <code>request</code> is idempotent and its response can be shared.
+     * @param request the request
+     * @return boolean
+     */
+    public static boolean isCoalescable(ElfWsRequest request) {
+        return !request.hasBody() && !request.isDownload();
+    }
+
+    /**
+     * Perform <code>call</code>, or wait for the identical request already in flight.
+     *
+     * @param request
+     *        the request, used for the key of the flight
+     *
+     * @param owner
+     *        who performs the request (its auth), requests of different owners are never shared
+     *
+     * @param future
+     *        the future of the request, whose cancellation or deadline stops the wait; may be null
+     *
+     * @param call
+     *        the network call, executed only by the first request of the flight
+     */
+    ElfWsResponse execute(ElfWsRequest request, Object owner, ElfWsFuture future, Call call) throws Exception {
+        Key key = new Key(signature(request), owner);
+
+        while (true) {
+            ElfWsFuture flight;
+            boolean leader = false;
+
+            synchronized (this) {
+                flight = inFlight.get(key);
+                if (flight == null) {
+                    flight = new ElfWsFuture();
+                    inFlight.put(key, flight);
+                    leader = true;
+                }
+            }
+
+            if (leader) {
+                missCount.incrementAndGet();
+                try {
+                    ElfWsResponse response = call.call();
+                    flight.complete(response);
+                    return response;
+                }
+                catch (Exception e) {
+                    flight.fail(e);
+                    throw e;
+                }
+                finally {
+                    synchronized (this) {
+                        inFlight.remove(key);
+                    }
+                }
+            }
+
+            hitCount.incrementAndGet();
+            try {
+                ElfWsResponse response = await(flight, future);
+                return response != null ? response.copy() : null;
+            }
+            catch (ExecutionException e) {
+                if (future != null && future.isAborted()) throw new CancellationException("Request cancelled");
+                // the first request was cancelled by its caller, not by this one: try again
+                if (e.getCause() instanceof CancellationException) continue;
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Wait for <code>flight</code>, or until <code>future</code> is cancelled or expires.
+     */
+    private static ElfWsResponse await(final ElfWsFuture flight, ElfWsFuture future) throws Exception {
+        if (future == null) return flight.get();
+
+        final ElfWsFuture wait = new ElfWsFuture();
+        flight.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (flight.getException() != null)
+                    wait.fail(flight.getException());
+                else
+                    wait.complete(response);
+            }
+        });
+        future.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                wait.fail(new CancellationException("Request cancelled"));
+            }
+        });
+        return wait.get();
+    }
+
+    /**
+     * Requests that shared the response of an identical request in flight.
+     * @return long count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Requests that performed the network call.
+     * @return long count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of flights in progress.
+     * @return int
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static String signature(ElfWsRequest request) {
+        StringBuilder signature = new StringBuilder();
+        signature.append(request.getMethod()).append(' ').append(request.getAddress());
+
+        // header names are case insensitive, their order doesn't matter
+        Map<String, String> headers = new TreeMap<>();
+        for (Map.Entry<String, String> header : request.getAddictionalHeaders().entrySet()) {
+            headers.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            signature.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+
+        return signature.toString();
+    }
+
+    private static final class Key {
+        private final String signature;
+        private final Object owner;
+
+        Key(String signature, Object owner) {
+            this.signature = signature;
+            this.owner = owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return signature.equals(other.signature) && owner == other.owner;
+        }
+
+        @Override
+        public int hashCode() {
+            return signature.hashCode() * 31 + System.identityHashCode(owner);
+        }
+    }
+}
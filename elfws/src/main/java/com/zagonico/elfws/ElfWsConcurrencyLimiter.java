@@ -0,0 +1,390 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive limit of the requests in flight to each host, set on a client with
+ * {@link com.zagonico.elfws.ElfWsClient#setConcurrencyLimiter(ElfWsConcurrencyLimiter) setConcurrencyLimiter}.
+ *
+ * Requests above the limit of their host wait, in order, for one in flight to end. The limit
+ * of a host starts at <code>initialLimit</code> and is adjusted at every response with the
+ * latency gradient: the recent latency is compared with the long term one, and while it stays
+ * within <code>tolerance</code> times it the limit grows by one every <i>limit</i> responses
+ * (if the requests actually use it), since the host is not queueing. When the latency rises
+ * the limit shrinks in proportion, and an IOException, a 429 or a 503 shrinks it by 10%. The
+ * limit then settles around the concurrency that gives the most throughput without
+ * overloading the host.
+ *
+ * A blocking transport is also bound to the per route limit of its
+ * {@link com.zagonico.elfws.ElfWsConnectionPool ElfWsConnectionPool}, which must be raised for
+ * the adaptive limit to go beyond it.
+ *
+ * <code>
+ *     client.setConcurrencyLimiter(new ElfWsConcurrencyLimiter(4, 1, 50));
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    public static final double DEFAULT_TOLERANCE = 1.5;
+
+    /** how often a request waiting for a slot checks if it has been cancelled */
+    private static final long ABORT_CHECK_MILLIS = 100;
+    /** weight of a response in the recent and in the long term latency */
+    private static final double SHORT_WEIGHT = 0.1;
+    private static final double LONG_WEIGHT = 0.01;
+    /** responses before the latency can lower the limit */
+    private static final int WARMUP_SAMPLES = 10;
+    /** the limit after an error is this fraction of the previous one */
+    private static final double BACKOFF_RATIO = 0.9;
+    /** fraction of the latency gradient applied at each response */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Receives the slot when a waiting request can be sent.
+     */
+    interface Grant {
+        void granted(Permit permit);
+    }
+
+    /**
+     * Grants to invoke in the current thread, queued while it is already invoking one.
+     */
+    private static final ThreadLocal<ArrayDeque<Handoff>> HANDOFFS = new ThreadLocal<>();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int initialLimit;
+    private volatile double tolerance = DEFAULT_TOLERANCE;
+
+    /** guarded by itself */
+    private final Map<String, Limit> limits = new HashMap<>();
+
+    public ElfWsConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * @param initialLimit
+     *        limit of a host before any response
+     *
+     * @param minLimit
+     *        lowest limit
+     *
+     * @param maxLimit
+     *        highest limit
+     */
+    public ElfWsConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits");
+        }
+
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * How much the recent latency can exceed the long term one before the limit is lowered.
+     * @param tolerance ratio, at least 1
+     */
+    public void setTolerance(double tolerance) {
+        if (tolerance < 1) throw new IllegalArgumentException("Invalid tolerance");
+        this.tolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Current limit of the host of <code>url</code>.
+     * @param url an address of the host
+     * @return int requests in flight allowed
+     */
+    public int getLimit(URL url) {
+        Limit limit = limit(url, false);
+        if (limit == null) return initialLimit;
+
+        synchronized (limit) {
+            return (int) limit.limit;
+        }
+    }
+
+    /**
+     * Requests in flight to the host of <code>url</code>.
+     * @param url an address of the host
+     * @return int
+     */
+    public int getInFlight(URL url) {
+        Limit limit = limit(url, false);
+        if (limit == null) return 0;
+
+        synchronized (limit) {
+            return limit.inFlight;
+        }
+    }
+
+    /**
+     * Requests waiting for a slot of the host of <code>url</code>.
+     * @param url an address of the host
+     * @return int
+     */
+    public int getWaiting(URL url) {
+        Limit limit = limit(url, false);
+        if (limit == null) return 0;
+
+        synchronized (limit) {
+            return limit.waiting.size();
+        }
+    }
+
+    /**
+     * Get a slot for a request to <code>url</code>, waiting in this thread.
+     * @param future the request, its cancellation ends the wait; may be null
+     * @return Permit to release when the request ends
+     */
+    Permit acquire(URL url, ElfWsFuture future) throws Exception {
+        final Permit[] granted = new Permit[1];
+        Grant grant = new Grant() {
+            @Override
+            public void granted(Permit permit) {
+                synchronized (granted) {
+                    granted[0] = permit;
+                    granted.notifyAll();
+                }
+            }
+        };
+
+        Limit limit = acquire(url, grant);
+        synchronized (granted) {
+            while (granted[0] == null) {
+                if (future != null && future.isAborted()) break;
+                granted.wait(ABORT_CHECK_MILLIS);
+            }
+            if (granted[0] != null) return granted[0];
+        }
+
+        // aborted: the slot possibly granted meanwhile goes to the next one
+        if (!limit.cancel(grant)) {
+            synchronized (granted) {
+                while (granted[0] == null) granted.wait();
+                granted[0].release(null, null, true);
+            }
+        }
+
+        Throwable cause = future.getException();
+        if (cause instanceof Exception) throw (Exception) cause;
+        throw new IllegalStateException("Request aborted");
+    }
+
+    /**
+     * Get a slot for a request to <code>url</code>: <code>grant</code> is invoked immediately if
+     * there is one, otherwise from the thread of the request that frees it.
+     * @return Limit, to {@link Limit#cancel(Grant) cancel} the wait
+     */
+    Limit acquire(URL url, Grant grant) {
+        Limit limit = limit(url, true);
+        Permit permit;
+        synchronized (limit) {
+            if (limit.inFlight >= (int) limit.limit || !limit.waiting.isEmpty()) {
+                limit.waiting.add(grant);
+                return limit;
+            }
+            limit.inFlight++;
+            permit = new Permit(limit);
+        }
+
+        handOff(grant, permit);
+        return limit;
+    }
+
+    /**
+     * Invoke <code>grant</code> with <code>permit</code>. A grant may release its permit at once,
+     * e.g. when the send fails, which grants the next waiting request: the grants invoked
+     * meanwhile are queued and run by the outermost call, so that the stack doesn't grow with
+     * the requests waiting.
+     */
+    private static void handOff(Grant grant, Permit permit) {
+        ArrayDeque<Handoff> queue = HANDOFFS.get();
+        if (queue != null) {
+            queue.add(new Handoff(grant, permit));
+            return;
+        }
+
+        queue = new ArrayDeque<>();
+        HANDOFFS.set(queue);
+        try {
+            Handoff next = new Handoff(grant, permit);
+            do {
+                try {
+                    next.grant.granted(next.permit);
+                }
+                catch (RuntimeException e) {
+                    // a failing grant must not strand the others
+                }
+            } while ((next = queue.poll()) != null);
+        }
+        finally {
+            HANDOFFS.remove();
+        }
+    }
+
+    private Limit limit(URL url, boolean create) {
+        int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+        String host = url.getProtocol() + "://" + url.getHost() + ":" + port;
+
+        synchronized (limits) {
+            Limit limit = limits.get(host);
+            if (limit == null && create) {
+                limit = new Limit(initialLimit);
+                limits.put(host, limit);
+            }
+            return limit;
+        }
+    }
+
+    /**
+     * The slot of a request in flight.
+     */
+    final class Permit {
+        private final Limit limit;
+        private final int inFlight;
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        private Permit(Limit limit) {
+            this.limit = limit;
+            inFlight = limit.inFlight;
+        }
+
+        /**
+         * Free the slot and adjust the limit with the outcome of the request.
+         *
+         * @param response the response, null if the request failed
+         * @param exception the exception that prevented the response
+         * @param aborted true if the caller cancelled the request, which doesn't adjust the limit
+         */
+        void release(ElfWsResponse response, Throwable exception, boolean aborted) {
+            long rtt = System.nanoTime() - start;
+
+            List<Grant> next = new ArrayList<>();
+            List<Permit> nextPermits = new ArrayList<>();
+            synchronized (limit) {
+                if (released) return;
+                released = true;
+
+                limit.inFlight--;
+                if (!aborted) {
+                    if (exception instanceof IOException || (response != null
+                            && (response.getResponseCode() == 429 || response.getResponseCode() == 503))) {
+                        limit.dropped();
+                    }
+                    else if (exception == null && response != null) {
+                        limit.sample(rtt, inFlight);
+                    }
+                }
+
+                // the limit may have grown: all the slots free go to the waiting requests
+                while (limit.inFlight < (int) limit.limit && !limit.waiting.isEmpty()) {
+                    next.add(limit.waiting.poll());
+                    limit.inFlight++;
+                    nextPermits.add(new Permit(limit));
+                }
+            }
+
+            for (int i = 0; i < next.size(); i++) {
+                handOff(next.get(i), nextPermits.get(i));
+            }
+        }
+    }
+
+    private static final class Handoff {
+        final Grant grant;
+        final Permit permit;
+
+        Handoff(Grant grant, Permit permit) {
+            this.grant = grant;
+            this.permit = permit;
+        }
+    }
+
+    /**
+     * Limit of a host, guarded by itself.
+     */
+    final class Limit {
+        double limit;
+        int inFlight;
+        final ArrayDeque<Grant> waiting = new ArrayDeque<>();
+        double shortRtt;
+        double longRtt;
+        int samples;
+
+        private Limit(int initialLimit) {
+            limit = initialLimit;
+        }
+
+        /**
+         * Stop waiting for a slot.
+         * @return false if the slot has already been granted
+         */
+        synchronized boolean cancel(Grant grant) {
+            return waiting.remove(grant);
+        }
+
+        void dropped() {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        }
+
+        void sample(long rtt, int inFlight) {
+            if (samples++ == 0) {
+                shortRtt = rtt;
+                longRtt = rtt;
+            }
+            else {
+                shortRtt += (rtt - shortRtt) * SHORT_WEIGHT;
+                longRtt += (rtt - longRtt) * LONG_WEIGHT;
+            }
+
+            double gradient = Math.min(1, tolerance * longRtt / shortRtt);
+            if (samples > WARMUP_SAMPLES && gradient < 1) {
+                // queueing at the host: shrink in proportion to the latency increase
+                limit = Math.max(minLimit, limit * (1 - SMOOTHING + SMOOTHING * Math.max(0.5, gradient)));
+            }
+            else if (inFlight * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive configuration for the connections opened by {@link com.zagonico.elfws.ElfWsClient}.
+ *
+ * The sockets are kept by the platform keep-alive cache of <code>HttpURLConnection</code>, which
+ * reuses an idle connection to the same host (skipping TCP and TLS handshakes) as long as the
+ * previous response has been fully read and closed. This class configures that cache (maximum
+ * idle connections and idle eviction time) and bounds the concurrent connections per route, so
+ * that a burst of requests doesn't open more sockets than the cache can keep.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsConnectionPool {
+    public static final int DEFAULT_MAX_IDLE = 5;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_PER_ROUTE = 5;
+
+    /** how often a request waiting for a slot checks if it has been cancelled */
+    private static final long ABORT_CHECK_MILLIS = 100;
+
+    private static volatile ElfWsConnectionPool defaultPool;
+
+    private final int maxIdle;
+    private final long keepAliveMillis;
+    private final int maxPerRoute;
+
+    /**
+     * Permits for the concurrent connections of each route (scheme://host:port)
+     */
+    private final ConcurrentHashMap<String, Semaphore> routes = new ConcurrentHashMap<>();
+
+    public ElfWsConnectionPool() {
+        this(DEFAULT_MAX_IDLE, DEFAULT_KEEP_ALIVE_MILLIS, DEFAULT_MAX_PER_ROUTE);
+    }
+
+    /**
+     * @param maxIdle
+     *        idle connections kept by the platform keep-alive cache
+     *
+     * @param keepAliveMillis
+     *        time after which an idle connection is evicted
+     *
+     * @param maxPerRoute
+     *        concurrent connections to the same route, further requests wait for a free one
+     */
+    public ElfWsConnectionPool(int maxIdle, long keepAliveMillis, int maxPerRoute) {
+        if (maxIdle < 0 || keepAliveMillis < 0 || maxPerRoute <= 0)
+            throw new IllegalArgumentException("Invalid connection pool sizes");
+
+        this.maxIdle = maxIdle;
+        this.keepAliveMillis = keepAliveMillis;
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    /**
+     * The pool used by all the clients that don't have a specific one. The first call applies
+     * its settings to the platform keep-alive cache.
+     * @return ElfWsConnectionPool
+     */
+    public static ElfWsConnectionPool getDefault() {
+        ElfWsConnectionPool pool = defaultPool;
+        if (pool == null) {
+            synchronized (ElfWsConnectionPool.class) {
+                if (defaultPool == null) {
+                    defaultPool = new ElfWsConnectionPool();
+                    defaultPool.apply();
+                }
+                pool = defaultPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Replace the shared pool and apply its settings to the platform keep-alive cache.
+     * @param pool the new shared pool
+     */
+    public static void setDefault(ElfWsConnectionPool pool) {
+        if (pool == null) throw new IllegalArgumentException("Connection pool cannot be null");
+        synchronized (ElfWsConnectionPool.class) {
+            defaultPool = pool;
+            pool.apply();
+        }
+    }
+
+    /**
+     * Apply maximum idle connections and keep alive time to the platform keep-alive cache. The
+     * cache is global, so the last applied pool wins; it must be called before the first
+     * connection is opened.
+     */
+    public void apply() {
+        System.setProperty("http.keepAlive", maxIdle > 0 ? "true" : "false");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(maxIdle, 1)));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+    }
+
+    /**
+     * Wait for a free connection slot on the route of <code>url</code>, giving up if
+     * <code>future</code> is cancelled or expires meanwhile.
+     * @param url address of the request
+     * @param future the request, null if it cannot be aborted
+     * @throws InterruptedException if interrupted while waiting
+     * @throws Exception the cancellation or the timeout of <code>future</code>
+     */
+    void acquire(URL url, ElfWsFuture future) throws Exception {
+        Semaphore route = route(url);
+        if (future == null) {
+            route.acquire();
+            return;
+        }
+
+        while (!route.tryAcquire(ABORT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (future.isAborted()) {
+                Throwable cause = future.getException();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw new CancellationException("Request cancelled");
+            }
+        }
+    }
+
+    /**
+     * Give back the slot taken with {@link #acquire(URL, ElfWsFuture) acquire}.
+     * @param url address of the request
+     */
+    void release(URL url) {
+        route(url).release();
+    }
+
+    private Semaphore route(URL url) {
+        String key = routeKey(url);
+        Semaphore semaphore = routes.get(key);
+        if (semaphore == null) {
+            Semaphore created = new Semaphore(maxPerRoute, true);
+            semaphore = routes.putIfAbsent(key, created);
+            if (semaphore == null) semaphore = created;
+        }
+        return semaphore;
+    }
+
+    private static String routeKey(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.US) + ":" + port;
+    }
+
+    /**
+     * True if the exception is what a pooled connection closed by the server while idle
+     * produces on reuse, a reset or an end of stream: the request can be sent again on a fresh
+     * connection. Failures to connect and timeouts are not, the server itself is unreachable
+     * or slow.
+     * @param e exception thrown by the request
+     * @return boolean
+     */
+    static boolean isStaleConnection(Exception e) {
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException
+                || e instanceof PortUnreachableException || e instanceof SocketTimeoutException) return false;
+        if (e instanceof EOFException) return true;
+        if (!(e instanceof IOException) || e.getMessage() == null) return false;
+
+        String message = e.getMessage().toLowerCase(Locale.US);
+        return message.contains("connection reset") || message.contains("broken pipe")
+                || message.contains("unexpected end of stream") || message.contains("unexpected end of file");
+    }
+
+    /**
+     * Concurrent connections currently open on the route of <code>url</code>.
+     * @param url an address of the route
+     * @return int connections in use
+     */
+    public int getActiveConnections(URL url) {
+        return maxPerRoute - route(url).availablePermits();
+    }
+
+    /**
+     * Requests waiting for a free connection on the route of <code>url</code>.
+     * @param url an address of the route
+     * @return int waiting requests
+     */
+    public int getWaitingRequests(URL url) {
+        return route(url).getQueueLength();
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of worker threads that executes the requests of {@link com.zagonico.elfws.ElfWsClient}.
+ *
+ * All the clients share the {@link #getDefault() default} dispatcher unless a different one is
+ * set with {@link com.zagonico.elfws.ElfWsClient#setDispatcher(ElfWsDispatcher) setDispatcher}.
+ * Workers above <code>coreWorkers</code> are reaped after <code>keepAliveSeconds</code> of
+ * inactivity, the core ones too if {@link #setReapCoreWorkers(boolean) setReapCoreWorkers} is
+ * enabled.
+ *
+ * Requests waiting for a worker are taken by {@link com.zagonico.elfws.ElfWsRequest.Priority
+ * Priority}: an interactive request jumps ahead of the normal and background ones queued before
+ * it. A request waiting for {@link #setAgingMillis(long) agingMillis} is promoted by one priority,
+ * so background work is delayed but never starved.
+ *
+ * <code>
+ *     ElfWsDispatcher dispatcher = new ElfWsDispatcher(4, 16, 128, 30, ElfWsDispatcher.Rejection.CALLER_RUNS);
+ *     ElfWsDispatcher.setDefault(dispatcher);
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsDispatcher {
+    /**
+     * What to do with a request when all the workers are busy and the queue is full.
+     */
+    public enum Rejection {
+        /** throws a {@link java.util.concurrent.RejectedExecutionException RejectedExecutionException} */
+        ABORT,
+        /**
+         * executes the request in the thread that submitted it; a background request, or one
+         * submitted by the Android main thread or the timer of the library, is rejected like
+         * with ABORT instead
+         */
+        CALLER_RUNS,
+        /** discards the request, whose future fails */
+        DISCARD,
+        /**
+         * discards the oldest queued request of the lowest priority, or the new one if it is
+         * less urgent than all the queued ones; the future of the discarded request fails
+         */
+        DISCARD_OLDEST,
+    };
+
+    public static final int DEFAULT_CORE_WORKERS = 2;
+    public static final int DEFAULT_MAX_WORKERS = 8;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    public static final long DEFAULT_AGING_MILLIS = 1000;
+
+    private static volatile ElfWsDispatcher defaultDispatcher;
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final ElfWsPriorityQueue queue;
+
+    /**
+     * Dispatcher with default sizes and {@link Rejection#CALLER_RUNS CALLER_RUNS} policy.
+     */
+    public ElfWsDispatcher() {
+        this(DEFAULT_CORE_WORKERS, DEFAULT_MAX_WORKERS, DEFAULT_QUEUE_CAPACITY, DEFAULT_KEEP_ALIVE_SECONDS, Rejection.CALLER_RUNS);
+    }
+
+    /**
+     * @param coreWorkers
+     *        workers kept alive even when idle
+     *
+     * @param maxWorkers
+     *        maximum number of concurrent workers, used only when the queue is full
+     *
+     * @param queueCapacity
+     *        maximum number of requests waiting for a worker
+     *
+     * @param keepAliveSeconds
+     *        idle time after which a non-core worker is terminated
+     *
+     * @param rejection
+     *        policy applied when both workers and queue are saturated
+     */
+    public ElfWsDispatcher(int coreWorkers, int maxWorkers, int queueCapacity, long keepAliveSeconds, Rejection rejection) {
+        if (coreWorkers < 0 || maxWorkers <= 0 || maxWorkers < coreWorkers || queueCapacity <= 0 || keepAliveSeconds < 0)
+            throw new IllegalArgumentException("Invalid dispatcher sizes");
+
+        this.queueCapacity = queueCapacity;
+        queue = new ElfWsPriorityQueue(queueCapacity, DEFAULT_AGING_MILLIS);
+        executor = new ThreadPoolExecutor(coreWorkers, maxWorkers, keepAliveSeconds, TimeUnit.SECONDS,
+                queue, new WorkerFactory(), toHandler(rejection));
+    }
+
+    /**
+     * The dispatcher shared by all the clients that don't have a specific one. It is lazily
+     * created with default sizes.
+     * @return ElfWsDispatcher
+     */
+    public static ElfWsDispatcher getDefault() {
+        ElfWsDispatcher dispatcher = defaultDispatcher;
+        if (dispatcher == null) {
+            synchronized (ElfWsDispatcher.class) {
+                if (defaultDispatcher == null) defaultDispatcher = new ElfWsDispatcher();
+                dispatcher = defaultDispatcher;
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Replace the shared dispatcher. The previous one is not shut down, so requests already
+     * submitted to it are completed.
+     * @param dispatcher the new shared dispatcher
+     */
+    public static void setDefault(ElfWsDispatcher dispatcher) {
+        if (dispatcher == null) throw new IllegalArgumentException("Dispatcher cannot be null");
+        synchronized (ElfWsDispatcher.class) {
+            defaultDispatcher = dispatcher;
+        }
+    }
+
+    /**
+     * Submit a task to the workers with {@link ElfWsRequest.Priority#NORMAL NORMAL} priority,
+     * applying the rejection policy if the dispatcher is saturated.
+     * @param task the task to execute
+     */
+    public void execute(Runnable task) {
+        execute(task, ElfWsRequest.Priority.NORMAL);
+    }
+
+    /**
+     * Submit a task to the workers, applying the rejection policy if the dispatcher is saturated.
+     * If all the workers are busy the task waits behind the queued tasks of the same or a higher
+     * priority only.
+     * @param task the task to execute
+     * @param priority priority of the task, null for normal
+     */
+    public void execute(Runnable task, ElfWsRequest.Priority priority) {
+        execute(task, priority, null);
+    }
+
+    /**
+     * Submit the task of the request of <code>future</code>, see
+     * {@link #execute(Runnable, ElfWsRequest.Priority) execute}. If the task is discarded by the
+     * {@link Rejection#DISCARD DISCARD} or {@link Rejection#DISCARD_OLDEST DISCARD_OLDEST} policy,
+     * or by a shut down dispatcher, <code>future</code> fails with a
+     * <code>RejectedExecutionException</code>, so its callers don't wait forever.
+     * @param task the task to execute
+     * @param priority priority of the task, null for normal
+     * @param future future of the request executed by the task, may be null
+     */
+    public void execute(Runnable task, ElfWsRequest.Priority priority, ElfWsFuture future) {
+        if (task == null) throw new NullPointerException();
+        executor.execute(new ElfWsPriorityQueue.Task(task, priority != null ? priority : ElfWsRequest.Priority.NORMAL, future));
+    }
+
+    /**
+     * Time after which a queued task is considered as if it had the next higher priority; e.g.
+     * with 1000 a background task queued for more than 2 seconds is taken before an interactive
+     * task just queued. 0 disables the aging: lower priorities wait until there is nothing more urgent.
+     * @param agingMillis milliseconds, default {@link #DEFAULT_AGING_MILLIS}
+     */
+    public void setAgingMillis(long agingMillis) {
+        if (agingMillis < 0) throw new IllegalArgumentException("Aging cannot be negative");
+        queue.setAgingMillis(agingMillis);
+    }
+
+    public long getAgingMillis() {
+        return queue.getAgingMillis();
+    }
+
+    /**
+     * Allow also the core workers to be terminated when idle for more than the keep alive time.
+     * @param enabled true to reap idle core workers
+     */
+    public void setReapCoreWorkers(boolean enabled) {
+        if (enabled && executor.getKeepAliveTime(TimeUnit.NANOSECONDS) == 0)
+            throw new IllegalStateException("Keep alive time must be greater than zero to reap core workers");
+        executor.allowCoreThreadTimeOut(enabled);
+    }
+
+    /**
+     * Change the number of workers without recreating the dispatcher.
+     * @param coreWorkers workers kept alive even when idle
+     * @param maxWorkers maximum number of concurrent workers
+     */
+    public void setWorkers(int coreWorkers, int maxWorkers) {
+        if (coreWorkers < 0 || maxWorkers <= 0 || maxWorkers < coreWorkers)
+            throw new IllegalArgumentException("Invalid dispatcher sizes");
+
+        // the order avoids core > max in the intermediate state
+        if (maxWorkers >= executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxWorkers);
+            executor.setCorePoolSize(coreWorkers);
+        }
+        else {
+            executor.setCorePoolSize(coreWorkers);
+            executor.setMaximumPoolSize(maxWorkers);
+        }
+    }
+
+    /**
+     * Requests waiting for a free worker.
+     * @return int queue depth
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Requests of <code>priority</code> waiting for a free worker.
+     * @param priority the priority
+     * @return int queue depth
+     */
+    public int getQueueSize(ElfWsRequest.Priority priority) {
+        return queue.size(priority);
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Workers currently executing a request.
+     * @return int active workers
+     */
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Workers currently alive, busy or idle.
+     * @return int alive workers
+     */
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        return executor.getLargestPoolSize();
+    }
+
+    public long getCompletedTasks() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Stop accepting requests, the queued ones are still executed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    private static RejectedExecutionHandler toHandler(final Rejection rejection) {
+        return new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                ElfWsPriorityQueue.Task task = (ElfWsPriorityQueue.Task) r;
+                if (executor.isShutdown()) {
+                    if (rejection == Rejection.ABORT) throw new RejectedExecutionException("Dispatcher shut down");
+                    task.discard();
+                    return;
+                }
+
+                switch (rejection) {
+                    case CALLER_RUNS:
+                        // blocking there would freeze the UI, or every timer of the library, and
+                        // background work is never worth blocking its caller
+                        if (task.priority == ElfWsRequest.Priority.BACKGROUND
+                                || ElfWsUtil.isMainThread() || ElfWsScheduler.isSchedulerThread())
+                            throw new RejectedExecutionException("Dispatcher saturated, the request cannot run in this thread");
+                        task.run();
+                        break;
+                    case DISCARD:
+                        task.discard();
+                        break;
+                    case DISCARD_OLDEST:
+                        // the head of the queue would be the most urgent task
+                        ElfWsPriorityQueue.Task evicted = ((ElfWsPriorityQueue) executor.getQueue()).pollLeastUrgent(task.priority);
+                        if (evicted == null) {
+                            task.discard();
+                            break;
+                        }
+                        evicted.discard();
+                        executor.execute(task);
+                        break;
+                    case ABORT:
+                    default:
+                        throw new RejectedExecutionException("Dispatcher saturated");
+                }
+            }
+        };
+    }
+
+    /**
+     * Named daemon workers, so that pending requests don't keep the process alive.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String prefix = "elfws-" + POOL_NUMBER.getAndIncrement() + "-worker-";
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
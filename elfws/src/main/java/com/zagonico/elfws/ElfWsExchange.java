@@ -0,0 +1,284 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import com.zagonico.elfws.auth.ElfWsAuth;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request ready to be sent by an {@link com.zagonico.elfws.ElfWsTransport ElfWsTransport}: the
+ * {@link com.zagonico.elfws.ElfWsRequest ElfWsRequest} with the headers and the body decided by
+ * the client, and the code that turns the received status, headers and body into an
+ * {@link com.zagonico.elfws.ElfWsResponse ElfWsResponse}, shared by all the transports.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public final class ElfWsExchange {
+    private final URL url;
+    private final ElfWsRequest request;
+    private final Map<String, String> headers;
+    private final ElfWsBody body;
+    private final ElfWsAuth auth;
+    private final boolean decodeContent;
+    private final ElfWsFuture future;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    ElfWsExchange(URL url, ElfWsRequest request, Map<String, String> headers, ElfWsBody body, ElfWsAuth auth,
+                  boolean decodeContent, ElfWsFuture future, int connectTimeout, int readTimeout) {
+        this.url = url;
+        this.request = request;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+        this.auth = auth;
+        this.decodeContent = decodeContent;
+        this.future = future;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public ElfWsRequest getRequest() {
+        return request;
+    }
+
+    public String getMethod() {
+        return request.getMethod();
+    }
+
+    /**
+     * Request headers, auth excluded, in the order they must be applied.
+     * @return Map header - value
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Body to send, already compressed if the client decided so.
+     * @return ElfWsBody, null if the request has no body
+     */
+    public ElfWsBody getBody() {
+        return body;
+    }
+
+    /**
+     * Timeout of the connection to the server, decided by the request or the client.
+     * @return int milliseconds, 0 for no timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Maximum time without receiving data while waiting for the response.
+     * @return int milliseconds, 0 for no timeout
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Let the auth of the client modify <code>conn</code>, before the other headers are set.
+     * @param conn connection not yet connected
+     */
+    public void applyAuth(HttpURLConnection conn) {
+        if (auth == null) return;
+
+        synchronized (auth) {
+            auth.modifyConnection(conn);
+        }
+    }
+
+    /**
+     * Headers that the auth of the client adds to a connection, for transports that don't
+     * use <code>HttpURLConnection</code>.
+     * @return Map header - value
+     */
+    public Map<String, String> getAuthHeaders() {
+        HeaderRecorder recorder = new HeaderRecorder(url);
+        applyAuth(recorder);
+        return recorder.headers;
+    }
+
+    /**
+     * True if the request has been cancelled by its caller, or its deadline has expired.
+     * @return boolean
+     */
+    public boolean isCancelled() {
+        return future != null && future.isAborted();
+    }
+
+    /**
+     * Run <code>action</code> when the caller cancels the request or its deadline expires,
+     * immediately if already happened. Transports use it to abort the connection.
+     * @param action the action
+     */
+    public void onCancel(Runnable action) {
+        if (future != null) future.onCancel(action);
+    }
+
+    /**
+     * Build the response from what has been received, decompressing the body and, for a
+     * successful download, streaming it to the destination file. The stream is closed.
+     *
+     * @param code
+     *        status code
+     *
+     * @param receivedHeaders
+     *        response headers, the status line under the null key
+     *
+     * @param stream
+     *        body as received, null if there is none
+     *
+     * @param contentLength
+     *        size of the body as received, -1 if unknown
+     *
+     * @return ElfWsResponse
+     * @throws IOException if the body cannot be read or stored
+     */
+    public ElfWsResponse readResponse(int code, Map<String, List<String>> receivedHeaders, InputStream stream, long contentLength) throws IOException {
+        String contentEncoding = decodeContent ? header(receivedHeaders, "Content-Encoding") : null;
+        Map<String, List<String>> responseHeaders = receivedHeaders;
+        if (contentEncoding != null) {
+            // the body is given back decoded, its encoding and length no longer apply
+            responseHeaders = new LinkedHashMap<>(receivedHeaders);
+            Iterator<String> names = responseHeaders.keySet().iterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                if ("Content-Encoding".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)) names.remove();
+            }
+        }
+
+        ElfWsResponse elfWsResponse = new ElfWsResponse(code, responseHeaders);
+
+        String contentDisp = header(receivedHeaders, "Content-Disposition");
+        // raw = "attachment; filename=abc.jpg"
+        String fileName = "";
+        if (contentDisp != null && contentDisp.contains("=")) {
+            fileName = contentDisp.split("=")[1];
+            fileName = fileName.substring(1, fileName.length()-1);
+        }
+
+        String contentType = header(receivedHeaders, "Content-Type");
+        String mime = "";
+        if (contentType != null) {
+            mime = contentType;
+        }
+
+        stream = ElfWsUtil.decodeContent(stream, contentEncoding);
+
+        // reading until the end and closing gives the connection back to the keep-alive cache
+        if (code < HttpURLConnection.HTTP_BAD_REQUEST && request.isDownload()) {
+            File file = request.getDownloadFile();
+            boolean temporary = file == null;
+            if (temporary) file = File.createTempFile("elfws", ".download", request.getDownloadDirectory());
+
+            try {
+                if (stream != null)
+                    ElfWsUtil.copyToFile(stream, file);
+                else
+                    ElfWsUtil.copyToFile(new ByteArrayInputStream(new byte[0]), file);
+            }
+            catch (IOException e) {
+                if (temporary) file.delete();
+                throw e;
+            }
+
+            elfWsResponse.addContentInfo(fileName, mime, file);
+        }
+        else {
+            byte[] response = new byte[0];
+            if (stream != null) {
+                response = ElfWsUtil.readFully(stream, contentEncoding == null ? contentLength : -1);
+            }
+
+            elfWsResponse.addContentInfo(fileName, mime, response);
+        }
+
+        return elfWsResponse;
+    }
+
+    private static String header(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connection that is never opened, it only records the headers set on it.
+     */
+    private static final class HeaderRecorder extends HttpURLConnection {
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        HeaderRecorder(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            headers.put(key, value);
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            String previous = headers.get(key);
+            headers.put(key, previous != null ? previous + ", " + value : value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return headers.get(key);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of a request executed with {@link com.zagonico.elfws.ElfWsClient#executeAsync(ElfWsRequest) executeAsync}.
+ *
+ * Callbacks added with {@link #addCallback(ElfWsCallback) addCallback} are invoked when the
+ * request completes, in the thread that completes it (or immediately if it is already done), so
+ * many requests can be chained or fanned out without a thread blocked on each of them.
+ * {@link #cancel(boolean) cancel} aborts the underlying connection.
+ *
+ * <code>
+ *     ElfWsFuture future = client.executeAsync(request);
+ *     future.addCallback(new ElfWsCallback() {
+ *         public void processResponse(ElfWsResponse response) { ... }
+ *     });
+ * </code>
+ *
+ * This plays the role of a <code>CompletableFuture</code>, which is not available below API 24.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsFuture implements Future<ElfWsResponse> {
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    /** guarded by this */
+    private int state = PENDING;
+    private ElfWsResponse response;
+    private Throwable exception;
+    /** cancelled or expired: the request must be aborted */
+    private boolean aborted;
+    /** when the deadline of the request expires, System.currentTimeMillis() based, 0 if none */
+    private volatile long deadlineAt;
+    private List<ElfWsCallback> callbacks = new ArrayList<>();
+    private List<Runnable> cancelActions = new ArrayList<>();
+
+    /**
+     * Complete the future with <code>response</code>.
+     * @param response the response, may be null
+     * @return true if this call completed the future, false if it was already done
+     */
+    public boolean complete(ElfWsResponse response) {
+        return finish(COMPLETED, response, null, false);
+    }
+
+    /**
+     * Complete the future exceptionally.
+     * @param exception the cause of the failure
+     * @return true if this call completed the future, false if it was already done
+     */
+    public boolean fail(Throwable exception) {
+        return finish(FAILED, null, exception, false);
+    }
+
+    /**
+     * Cancel the request, closing its connection if it is running.
+     * @param mayInterruptIfRunning ignored, the connection is always aborted
+     * @return true if this call cancelled the request
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return abort(CANCELLED, new CancellationException("Request cancelled"));
+    }
+
+    /**
+     * Fail the request with <code>exception</code> (e.g. its deadline expired) and abort it like
+     * {@link #cancel(boolean) cancel} does.
+     * @param exception the cause of the failure
+     * @return true if this call completed the future
+     */
+    boolean expire(Throwable exception) {
+        return abort(FAILED, exception);
+    }
+
+    private boolean abort(int newState, Throwable exception) {
+        List<Runnable> actions;
+        synchronized (this) {
+            if (state != PENDING) return false;
+            actions = cancelActions;
+        }
+
+        if (!finish(newState, null, exception, true)) return false;
+
+        for (Runnable action : actions) {
+            runQuietly(action);
+        }
+        return true;
+    }
+
+    /**
+     * Register the action that aborts the running request (e.g. disconnecting its connection).
+     * If the future is already cancelled or expired it runs immediately.
+     * @param action the abort action
+     */
+    public void onCancel(Runnable action) {
+        synchronized (this) {
+            if (state == PENDING) {
+                cancelActions.add(action);
+                return;
+            }
+            if (!aborted) return;
+        }
+        runQuietly(action);
+    }
+
+    /**
+     * Invoke <code>callback</code> with the response when the request completes. If the request
+     * fails or is cancelled the response is null, like in
+     * {@link com.zagonico.elfws.ElfWsClient#httpRequest(String) httpRequest}.
+     * @param callback the callback to invoke
+     * @return this future
+     */
+    public ElfWsFuture addCallback(ElfWsCallback callback) {
+        synchronized (this) {
+            if (state == PENDING) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        invoke(callback);
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    /**
+     * True if the request has been cancelled or has expired, so its work must stop.
+     * @return boolean
+     */
+    synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    void setDeadlineAt(long deadlineAt) {
+        this.deadlineAt = deadlineAt;
+    }
+
+    /**
+     * Time when the deadline of the request expires.
+     * @return long milliseconds since the epoch, 0 if the request has no deadline
+     */
+    long getDeadlineAt() {
+        return deadlineAt;
+    }
+
+    /**
+     * Wait up to <code>millis</code> for the future to be done, without reporting its outcome.
+     * @return true if it is done
+     */
+    boolean await(long millis) throws InterruptedException {
+        return latch.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * True if the request failed with an exception (cancellation excluded).
+     * @return boolean
+     */
+    public synchronized boolean isFailed() {
+        return state == FAILED;
+    }
+
+    /**
+     * The exception that made the request fail or the CancellationException, null otherwise.
+     * @return Throwable
+     */
+    public synchronized Throwable getException() {
+        return exception;
+    }
+
+    /**
+     * The response if the request completed, <code>valueIfAbsent</code> otherwise. It never blocks.
+     * @param valueIfAbsent value returned if not completed
+     * @return ElfWsResponse
+     */
+    public synchronized ElfWsResponse getNow(ElfWsResponse valueIfAbsent) {
+        return state == COMPLETED ? response : valueIfAbsent;
+    }
+
+    @Override
+    public ElfWsResponse get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public ElfWsResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) throw new TimeoutException("Request not completed in " + timeout + " " + unit);
+        return report();
+    }
+
+    private synchronized ElfWsResponse report() throws ExecutionException {
+        if (state == CANCELLED) throw (CancellationException) exception;
+        if (state == FAILED) throw new ExecutionException(exception);
+        return response;
+    }
+
+    private boolean finish(int newState, ElfWsResponse response, Throwable exception, boolean aborted) {
+        List<ElfWsCallback> toInvoke;
+        synchronized (this) {
+            if (state != PENDING) return false;
+
+            state = newState;
+            this.aborted = aborted;
+            this.response = response;
+            this.exception = exception;
+            toInvoke = callbacks;
+            callbacks = null;
+            cancelActions = null;
+        }
+
+        latch.countDown();
+
+        for (ElfWsCallback callback : toInvoke) {
+            invoke(callback);
+        }
+        return true;
+    }
+
+    private void invoke(ElfWsCallback callback) {
+        try {
+            callback.processResponse(getNow(null));
+        }
+        catch (Exception e) {
+            // a failing callback must not prevent the others
+        }
+    }
+
+    private static void runQuietly(Runnable action) {
+        try {
+            action.run();
+        }
+        catch (Exception e) {
+            // the request is cancelled anyway
+        }
+    }
+
+    /**
+     * A future completed when all the <code>futures</code> are done, with a null response. The
+     * single responses are read from each future.
+     * @param futures the futures to wait for
+     * @return ElfWsFuture
+     */
+    public static ElfWsFuture allOf(Collection<ElfWsFuture> futures) {
+        final ElfWsFuture all = new ElfWsFuture();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+        if (futures.isEmpty()) {
+            all.complete(null);
+            return all;
+        }
+
+        ElfWsCallback countDown = new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (remaining.decrementAndGet() == 0) all.complete(null);
+            }
+        };
+        for (ElfWsFuture future : futures) {
+            future.addCallback(countDown);
+        }
+        return all;
+    }
+
+    /**
+     * A future completed with the response of the first of <code>futures</code> that completes
+     * successfully; it fails if all of them fail.
+     * @param futures the competing futures
+     * @return ElfWsFuture
+     */
+    public static ElfWsFuture anyOf(Collection<ElfWsFuture> futures) {
+        final ElfWsFuture any = new ElfWsFuture();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+        if (futures.isEmpty()) {
+            any.fail(new IllegalArgumentException("No futures"));
+            return any;
+        }
+
+        for (final ElfWsFuture future : futures) {
+            future.addCallback(new ElfWsCallback() {
+                @Override
+                public void processResponse(ElfWsResponse response) {
+                    if (future.isDone() && !future.isFailed() && !future.isCancelled()) {
+                        any.complete(response);
+                    }
+                    else if (remaining.decrementAndGet() == 0) {
+                        Throwable cause = future.getException();
+                        any.fail(cause != null ? cause : new CancellationException("All requests cancelled"));
+                    }
+                }
+            });
+        }
+        return any;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged requests, set on a client with
+ * {@link com.zagonico.elfws.ElfWsClient#setHedgePolicy(ElfWsHedgePolicy) setHedgePolicy}.
+ *
+ * When an idempotent request has not been answered after a delay, a second copy of it is sent:
+ * the first response received is given back and the connection of the other copy is aborted.
+ * The delay is fixed or, with {@link #setPercentile(double) setPercentile}, the observed latency
+ * percentile of the endpoint (url without GET parameters), so that only the slowest requests are
+ * hedged. The hedges are limited to <code>maxHedgeRatio</code> of the requests, so that a slow
+ * server doesn't receive twice the traffic.
+ *
+ * Copies are sent below the cache and the coalescer, each one on its own connection. Downloads
+ * are never hedged.
+ *
+ * <code>
+ *     ElfWsHedgePolicy hedgePolicy = new ElfWsHedgePolicy(100);
+ *     hedgePolicy.setPercentile(0.95);
+ *     client.setHedgePolicy(hedgePolicy);
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsHedgePolicy {
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+
+    /** latencies kept per endpoint */
+    private static final int LATENCY_SAMPLES = 128;
+    /** latencies needed before the percentile replaces the fixed delay */
+    private static final int MIN_SAMPLES = 20;
+    /** endpoints whose latencies are kept */
+    private static final int MAX_ENDPOINTS = 64;
+    /** hedges that can be sent in a burst */
+    private static final double MAX_TOKENS = 10;
+
+    /**
+     * Sends a hedge copy of the request, reporting its outcome to
+     * {@link Race#finished(ElfWsFuture, ElfWsResponse, Throwable) finished}.
+     */
+    interface Call {
+        void send(Race race, ElfWsFuture handle);
+    }
+
+    private volatile long delayMillis;
+    private volatile double percentile;
+
+    /** guarded by this */
+    private double maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+    private double tokens = MAX_TOKENS;
+    private final Map<String, Latencies> latencies = new LinkedHashMap<String, Latencies>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Latencies> eldest) {
+            return size() > MAX_ENDPOINTS;
+        }
+    };
+
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * @param delayMillis
+     *        time without response after which the copy is sent
+     */
+    public ElfWsHedgePolicy(long delayMillis) {
+        if (delayMillis < 0) throw new IllegalArgumentException("Invalid hedge delay");
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * True if <code>request</code> can be sent twice.
+     * @param request the request
+     * @return boolean
+     */
+    public static boolean isHedgeable(ElfWsRequest request) {
+        return request.isIdempotent() && !request.isDownload();
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Send the copy when the request has been waiting more than <code>percentile</code> of the
+     * recent requests to the same endpoint, e.g. 0.95. Until enough latencies are observed the
+     * fixed delay is used.
+     * @param percentile between 0 and 1, 0 to always use the fixed delay
+     */
+    public void setPercentile(double percentile) {
+        if (percentile < 0 || percentile >= 1) throw new IllegalArgumentException("Invalid percentile");
+        this.percentile = percentile;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Maximum hedges per request, e.g. 0.05 to hedge at most 5% of the requests.
+     * @param ratio between 0 and 1
+     */
+    public synchronized void setMaxHedgeRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("Invalid hedge ratio");
+        maxHedgeRatio = ratio;
+    }
+
+    public synchronized double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * Hedge copies sent.
+     * @return long
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Hedge copies that have been answered before the original request.
+     * @return long
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Current delay before hedging a request to <code>address</code>.
+     * @param address url of the request, GET parameters excluded
+     * @return long milliseconds
+     */
+    public synchronized long getDelayMillis(String address) {
+        Latencies endpoint = percentile > 0 ? latencies.get(endpoint(address)) : null;
+        if (endpoint == null || endpoint.count < MIN_SAMPLES) return delayMillis;
+
+        return endpoint.percentile(percentile);
+    }
+
+    /**
+     * Start the race of <code>request</code>: its {@link Race#getPrimary() primary} copy must be
+     * sent by the caller, the hedge is sent with <code>hedge</code> if the primary has not been
+     * answered in time.
+     *
+     * @param future
+     *        the future of the request, its cancellation aborts all the copies
+     */
+    Race start(ElfWsRequest request, ElfWsFuture future, final Call hedge) {
+        synchronized (this) {
+            tokens = Math.min(tokens + maxHedgeRatio, MAX_TOKENS);
+        }
+
+        String address = endpoint(request.getUrl());
+        final Race race = new Race(address, future);
+        final ScheduledFuture<?> timer = ElfWsScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (race.result.isDone() || !withdraw()) return;
+
+                ElfWsFuture handle = race.newCopy();
+                if (handle == null) return;
+
+                hedgeCount.incrementAndGet();
+                hedge.send(race, handle);
+            }
+        }, getDelayMillis(address));
+
+        race.result.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                timer.cancel(false);
+            }
+        });
+        return race;
+    }
+
+    /**
+     * The endpoint of <code>address</code>, whose latencies are tracked together.
+     */
+    private static String endpoint(String address) {
+        int query = address.indexOf('?');
+        return query < 0 ? address : address.substring(0, query);
+    }
+
+    private synchronized boolean withdraw() {
+        if (tokens < 1) return false;
+
+        tokens -= 1;
+        return true;
+    }
+
+    private synchronized void record(String address, long millis) {
+        Latencies endpoint = latencies.get(address);
+        if (endpoint == null) {
+            endpoint = new Latencies();
+            latencies.put(address, endpoint);
+        }
+        endpoint.add(millis);
+    }
+
+    /**
+     * The copies of one request, the first response wins.
+     */
+    final class Race {
+        private final String address;
+        private final ElfWsFuture future;
+        private final ElfWsFuture result = new ElfWsFuture();
+        private final ElfWsFuture primary;
+        /** when the primary copy was sent, System.nanoTime() based */
+        private final long start = System.nanoTime();
+
+        /** guarded by this */
+        private final List<ElfWsFuture> handles = new ArrayList<>();
+        private int pending;
+        private boolean closed;
+
+        private Race(String address, ElfWsFuture future) {
+            this.address = address;
+            this.future = future;
+            primary = newCopy();
+        }
+
+        /**
+         * Cancel handle of the first copy, sent by the caller of
+         * {@link #start(ElfWsRequest, ElfWsFuture, Call) start}.
+         */
+        ElfWsFuture getPrimary() {
+            return primary;
+        }
+
+        /**
+         * Completed with the first response, or the exception of the last copy failed.
+         */
+        ElfWsFuture getResult() {
+            return result;
+        }
+
+        /**
+         * Cancel handle of a new copy, null if the race is already over.
+         */
+        private ElfWsFuture newCopy() {
+            final ElfWsFuture handle = new ElfWsFuture();
+            synchronized (this) {
+                if (closed) return null;
+
+                handles.add(handle);
+                pending++;
+            }
+
+            if (future != null) {
+                future.onCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle.cancel(true);
+                    }
+                });
+            }
+            return handle;
+        }
+
+        /**
+         * Outcome of the copy of <code>handle</code>. A response ends the race, an exception
+         * only if no other copy is in flight.
+         */
+        void finished(ElfWsFuture handle, ElfWsResponse response, Throwable exception) {
+            List<ElfWsFuture> losers = new ArrayList<>();
+            synchronized (this) {
+                pending--;
+                if (closed || (exception != null && pending > 0)) return;
+
+                closed = true;
+                for (ElfWsFuture other : handles) {
+                    if (other != handle) losers.add(other);
+                }
+            }
+
+            for (ElfWsFuture loser : losers) {
+                loser.cancel(true);
+            }
+
+            if (exception != null) {
+                result.fail(exception);
+                return;
+            }
+
+            if (handle != primary) hedgeWinCount.incrementAndGet();
+            // the primary alone would have taken at least this long: timing a winning hedge from
+            // its own start would pull the percentile, and so the delay, down at every hedge
+            record(address, (System.nanoTime() - start) / 1000000);
+            result.complete(response);
+        }
+    }
+
+    /**
+     * Recent latencies of an endpoint, guarded by the policy.
+     */
+    private static final class Latencies {
+        final long[] samples = new long[LATENCY_SAMPLES];
+        int count;
+        int next;
+
+        void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) count++;
+        }
+
+        long percentile(double percentile) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))];
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for {@link com.zagonico.elfws.ElfWsHttp2Transport}: static
+ * and dynamic tables, integer and string representations, Huffman coding.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+final class ElfWsHpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" },
+    };
+
+    /** Huffman codes of the octets 0-255 and of EOS (256), right aligned */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff,
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30,
+    };
+
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Node HUFFMAN_TREE = new Node();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            Node node = HUFFMAN_TREE;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int branch = (HUFFMAN_CODES[symbol] >>> bit) & 1;
+                if (node.children[branch] == null) node.children[branch] = new Node();
+                node = node.children[branch];
+            }
+            node.symbol = symbol;
+        }
+    }
+
+    private ElfWsHpack() {
+    }
+
+    private static final class Node {
+        final Node[] children = new Node[2];
+        int symbol = -1;
+    }
+
+    /**
+     * Dynamic table: the newest entry has the lowest index.
+     */
+    static final class DynamicTable {
+        private final List<String[]> entries = new ArrayList<>();
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            if (entrySize > maxSize) {
+                // an entry larger than the table empties it
+                entries.clear();
+                size = 0;
+                return;
+            }
+
+            entries.add(new String[] { name, value });
+            size += entrySize;
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize && !entries.isEmpty()) {
+                String[] oldest = entries.remove(0);
+                size -= entrySize(oldest[0], oldest[1]);
+            }
+        }
+
+        int length() {
+            return entries.size();
+        }
+
+        /**
+         * Entry at <code>index</code> of the address space shared with the static table.
+         */
+        String[] get(int index) throws IOException {
+            if (index <= 0) throw new IOException("Invalid HPACK index " + index);
+            if (index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+
+            int dynamic = index - STATIC_TABLE.length;
+            if (dynamic > entries.size()) throw new IOException("Invalid HPACK index " + index);
+            return entries.get(entries.size() - dynamic);
+        }
+
+        /**
+         * Index of the entry with <code>name</code> and <code>value</code>, 0 if missing.
+         */
+        int indexOf(String name, String value) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                String[] entry = entries.get(i);
+                if (entry[0].equals(name) && entry[1].equals(value)) return STATIC_TABLE.length + entries.size() - i;
+            }
+            return 0;
+        }
+
+        int indexOfName(String name) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i)[0].equals(name)) return STATIC_TABLE.length + entries.size() - i;
+            }
+            return 0;
+        }
+    }
+
+    static int entrySize(String name, String value) {
+        return octets(name).length + octets(value).length + 32;
+    }
+
+    private static byte[] octets(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encoder of the header blocks sent on a connection. Its table must follow the order in
+     * which the blocks are written, so it is used under the write lock of the connection.
+     */
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int pendingSizeUpdate = -1;
+
+        /**
+         * Apply the SETTINGS_HEADER_TABLE_SIZE of the peer; the table never grows over the default.
+         */
+        void setMaxTableSize(int peerMaxSize) {
+            int newSize = Math.min(peerMaxSize, DEFAULT_TABLE_SIZE);
+            if (newSize == table.getMaxSize()) return;
+
+            table.setMaxSize(newSize);
+            pendingSizeUpdate = newSize;
+        }
+
+        /**
+         * Start a header block, with the pending table size update if any.
+         */
+        void begin(ByteArrayOutputStream out) {
+            if (pendingSizeUpdate >= 0) {
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+        }
+
+        /**
+         * Encode a header field. Sensitive values (credentials, cookies) are never indexed,
+         * so they cannot be probed through the compression state.
+         */
+        void encode(ByteArrayOutputStream out, String name, String value, boolean sensitive) {
+            if (!sensitive) {
+                Integer index = STATIC_FIELDS.get(name + '\0' + value);
+                int full = index != null ? index : table.indexOf(name, value);
+                if (full > 0) {
+                    writeInt(out, 0x80, 7, full);
+                    return;
+                }
+            }
+
+            Integer staticName = STATIC_NAMES.get(name);
+            int nameIndex = staticName != null ? staticName : table.indexOfName(name);
+
+            if (sensitive) {
+                writeInt(out, 0x10, 4, nameIndex);
+            }
+            else if (entrySize(name, value) <= table.getMaxSize()) {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            else {
+                writeInt(out, 0x00, 4, nameIndex);
+            }
+
+            if (nameIndex == 0) writeString(out, name);
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Decoder of the header blocks received on a connection, used by its reader thread.
+     */
+    static final class Decoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+
+        /**
+         * Decode a complete header block.
+         * @return List of name - value pairs, in order
+         */
+        List<String[]> decode(byte[] block, int length) throws IOException {
+            List<String[]> fields = new ArrayList<>();
+            int[] pos = { 0 };
+
+            while (pos[0] < length) {
+                int b = block[pos[0]] & 0xff;
+
+                if ((b & 0x80) != 0) {
+                    String[] field = table.get(readInt(block, length, pos, 7));
+                    fields.add(new String[] { field[0], field[1] });
+                }
+                else if ((b & 0x40) != 0) {
+                    String[] field = readLiteral(block, length, pos, 6);
+                    table.add(field[0], field[1]);
+                    fields.add(field);
+                }
+                else if ((b & 0x20) != 0) {
+                    int size = readInt(block, length, pos, 5);
+                    if (size > DEFAULT_TABLE_SIZE) throw new IOException("HPACK table size over the limit");
+                    table.setMaxSize(size);
+                }
+                else {
+                    // without indexing (0000) or never indexed (0001)
+                    fields.add(readLiteral(block, length, pos, 4));
+                }
+            }
+            return fields;
+        }
+
+        private String[] readLiteral(byte[] block, int length, int[] pos, int prefixBits) throws IOException {
+            int nameIndex = readInt(block, length, pos, prefixBits);
+            String name = nameIndex == 0 ? readString(block, length, pos) : table.get(nameIndex)[0];
+            return new String[] { name, readString(block, length, pos) };
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int first, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(first | value);
+            return;
+        }
+
+        out.write(first | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readInt(byte[] block, int length, int[] pos, int prefixBits) throws IOException {
+        if (pos[0] >= length) throw new IOException("Truncated HPACK integer");
+
+        int max = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) return value;
+
+        int shift = 0;
+        int b;
+        do {
+            if (pos[0] >= length) throw new IOException("Truncated HPACK integer");
+            if (shift > 21) throw new IOException("HPACK integer overflow");
+            b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Write a string literal, Huffman coded when shorter.
+     */
+    static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] raw = octets(s);
+        int huffmanLength = huffmanLength(raw);
+        if (huffmanLength < raw.length) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            huffmanEncode(out, raw);
+        }
+        else {
+            writeInt(out, 0x00, 7, raw.length);
+            out.write(raw, 0, raw.length);
+        }
+    }
+
+    static String readString(byte[] block, int length, int[] pos) throws IOException {
+        if (pos[0] >= length) throw new IOException("Truncated HPACK string");
+
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int size = readInt(block, length, pos, 7);
+        if (size > length - pos[0]) throw new IOException("Truncated HPACK string");
+
+        String s = huffman ? huffmanDecode(block, pos[0], size)
+                : new String(block, pos[0], size, StandardCharsets.ISO_8859_1);
+        pos[0] += size;
+        return s;
+    }
+
+    static int huffmanLength(byte[] raw) {
+        long bits = 0;
+        for (byte b : raw) bits += HUFFMAN_LENGTHS[b & 0xff];
+        return (int) ((bits + 7) / 8);
+    }
+
+    static void huffmanEncode(ByteArrayOutputStream out, byte[] raw) {
+        long current = 0;
+        int bits = 0;
+        for (byte b : raw) {
+            int symbol = b & 0xff;
+            current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            bits += HUFFMAN_LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (current >>> bits));
+            }
+            current &= (1L << bits) - 1;
+        }
+
+        // padded with the most significant bits of EOS
+        if (bits > 0) out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+    }
+
+    static String huffmanDecode(byte[] block, int offset, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size * 2);
+        Node node = HUFFMAN_TREE;
+        int pending = 0;
+
+        for (int i = offset; i < offset + size; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                node = node.children[(block[i] >>> bit) & 1];
+                if (node == null) throw new IOException("Invalid Huffman code");
+                pending++;
+
+                if (node.symbol >= 0) {
+                    if (node.symbol == 256) throw new IOException("EOS in Huffman string");
+                    out.write(node.symbol);
+                    node = HUFFMAN_TREE;
+                    pending = 0;
+                }
+            }
+        }
+
+        // only a padding shorter than a byte is allowed after the last symbol
+        if (pending > 7) throw new IOException("Invalid Huffman padding");
+
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
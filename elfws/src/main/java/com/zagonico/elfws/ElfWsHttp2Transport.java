@@ -0,0 +1,1339 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import com.zagonico.elfws.exception.ElfWsStreamRefusedException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * HTTP/2 transport: all the requests to the same host are multiplexed as streams of a single
+ * connection, with HPACK header compression and flow control, so parallel calls don't pay a
+ * connection setup each and a slow response doesn't block the others.
+ *
+ * Plain http uses HTTP/2 with prior knowledge (h2c), https negotiates h2 with ALPN, available
+ * from Android 10 (API 29). A host that doesn't speak HTTP/2, and downloads, go to the
+ * <code>HttpURLConnection</code> transport; the hosts found without HTTP/2 are remembered.
+ *
+ * Each connection has a reader thread that dispatches the frames; responses are built, and the
+ * futures completed, by a small pool of completion threads. Connections are opened, and request
+ * bodies written as flow control allows, by a small pool of sender threads, so
+ * {@link #send(ElfWsExchange) send} never waits for the network: a request finding the handshake
+ * of its host in progress, or no stream free on the connection, is parked without a thread until
+ * it can go. The requests sent with HTTP/1.1 run in a worker of the default
+ * {@link com.zagonico.elfws.ElfWsDispatcher ElfWsDispatcher}.
+ *
+ * <code>
+ *     client.setTransport(new ElfWsHttp2Transport());
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsHttp2Transport implements ElfWsTransport {
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int FRAME_SIZE = 16384;
+    /** receive windows advertised to the server */
+    private static final int STREAM_WINDOW = 1024 * 1024;
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+    /** threads opening connections and writing request bodies */
+    private static final int SENDERS = 8;
+
+    private final long keepAliveMillis;
+    private final int connectTimeoutMillis;
+    private final ElfWsUrlConnectionTransport fallback = ElfWsUrlConnectionTransport.getDefault();
+
+    private final Map<String, Connection> connections = new HashMap<>();
+    /** routes whose handshake is in progress, with the requests waiting for it; guarded by connections */
+    private final Map<String, List<Open>> connecting = new HashMap<>();
+    private final Set<String> http1Routes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ThreadPoolExecutor completions;
+    private final ThreadPoolExecutor senders;
+    private volatile boolean shutdown;
+
+    public ElfWsHttp2Transport() {
+        this(DEFAULT_KEEP_ALIVE_MILLIS, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param keepAliveMillis
+     *        time after which a connection without streams is closed
+     *
+     * @param connectTimeoutMillis
+     *        timeout of the connection and of its handshakes for the requests without a connect
+     *        timeout
+     */
+    public ElfWsHttp2Transport(long keepAliveMillis, int connectTimeoutMillis) {
+        if (keepAliveMillis <= 0 || connectTimeoutMillis < 0) throw new IllegalArgumentException("Invalid transport timeouts");
+
+        this.keepAliveMillis = keepAliveMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        completions = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonFactory("ElfWs HTTP/2 completion"));
+        completions.allowCoreThreadTimeOut(true);
+        senders = new ThreadPoolExecutor(SENDERS, SENDERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonFactory("ElfWs HTTP/2 sender"));
+        senders.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public ElfWsFuture send(final ElfWsExchange exchange) {
+        if (exchange.getRequest().isDownload() || http1Routes.contains(route(exchange.getUrl()))) return fallback.sendInWorker(exchange);
+
+        final ElfWsFuture future = new ElfWsFuture();
+        // a request parked or queued fails at once, the stream is reset when open
+        exchange.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                future.fail(new CancellationException("Request cancelled"));
+            }
+        });
+        submit(new Open(exchange, future));
+        return future;
+    }
+
+    /**
+     * Close all the connections, failing the streams in flight.
+     */
+    public void shutdown() {
+        shutdown = true;
+
+        List<Connection> open;
+        synchronized (connections) {
+            open = new ArrayList<>(connections.values());
+            connections.clear();
+        }
+        for (Connection conn : open) conn.close(new IOException("Transport shut down"), true);
+        senders.shutdown();
+        completions.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Connections currently open.
+     * @return int
+     */
+    public int getOpenConnections() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Streams in flight on all the connections.
+     * @return int
+     */
+    public int getActiveStreams() {
+        int active = 0;
+        synchronized (connections) {
+            for (Connection conn : connections.values()) active += conn.activeStreams();
+        }
+        return active;
+    }
+
+    /**
+     * True if the host of <code>url</code> has been found without HTTP/2 support, so its requests
+     * go to the <code>HttpURLConnection</code> transport.
+     * @param url the url
+     * @return boolean
+     */
+    public boolean isHttp1Only(URL url) {
+        return http1Routes.contains(route(url));
+    }
+
+    private static String route(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * The open connection of the route, connected in the calling thread if missing. If another
+     * thread is already connecting the route, <code>open</code> is parked and sent again when that
+     * handshake ends, so that concurrent requests share one connection.
+     * @return Connection, null if <code>open</code> has been parked
+     */
+    private Connection connection(URL url, String route, Open open) throws IOException {
+        synchronized (connections) {
+            Connection conn = connections.get(route);
+            if (conn != null && conn.isUsable()) return conn;
+
+            List<Open> waiting = connecting.get(route);
+            if (waiting != null) {
+                waiting.add(open);
+                return null;
+            }
+            connecting.put(route, new ArrayList<Open>());
+        }
+
+        Exception failure = null;
+        try {
+            Connection conn = new Connection(route, url);
+            int connectTimeout = open.exchange.getConnectTimeout();
+            try {
+                conn.connect(connectTimeout > 0 ? connectTimeout : connectTimeoutMillis);
+            }
+            catch (NotHttp2Exception e) {
+                http1Routes.add(route);
+                throw e;
+            }
+
+            synchronized (connections) {
+                if (shutdown) {
+                    conn.close(new IOException("Transport shut down"), true);
+                    throw new IOException("Transport shut down");
+                }
+                connections.put(route, conn);
+            }
+            conn.startReader();
+            return conn;
+        }
+        catch (IOException | RuntimeException e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            List<Open> waiting;
+            synchronized (connections) {
+                waiting = connecting.remove(route);
+            }
+            for (Open parked : waiting) {
+                // a host without HTTP/2 takes them too; otherwise they would fail a handshake each
+                if (failure == null || failure instanceof NotHttp2Exception)
+                    submit(parked);
+                else
+                    parked.future.fail(failure);
+            }
+        }
+    }
+
+    /**
+     * Run <code>open</code> in a sender thread.
+     */
+    private void submit(Open open) {
+        try {
+            senders.execute(open);
+        }
+        catch (RejectedExecutionException e) {
+            open.future.fail(new IOException("Transport shut down"));
+        }
+    }
+
+    private static void forward(final ElfWsFuture source, final ElfWsFuture target) {
+        source.addCallback(new ElfWsCallback() {
+            @Override
+            public void processResponse(ElfWsResponse response) {
+                if (source.getException() != null)
+                    target.fail(source.getException());
+                else
+                    target.complete(response);
+            }
+        });
+    }
+
+    private void removeConnection(Connection conn) {
+        synchronized (connections) {
+            if (connections.get(conn.route) == conn) connections.remove(conn.route);
+        }
+    }
+
+    private void completeLater(Runnable completion) {
+        try {
+            completions.execute(completion);
+        }
+        catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * The server doesn't speak HTTP/2.
+     */
+    private static final class NotHttp2Exception extends IOException {
+        NotHttp2Exception() {
+            super("HTTP/2 not supported by the server");
+        }
+    }
+
+    /**
+     * Stops the body writer when the stream ended first: the future is settled by whoever ended it.
+     */
+    private static final class StreamEndedException extends IOException {
+        StreamEndedException() {
+            super("Stream already ended");
+        }
+    }
+
+    /**
+     * Opening of the stream of a request, run by a sender thread: connection, headers and body.
+     */
+    private final class Open implements Runnable {
+        final ElfWsExchange exchange;
+        final ElfWsFuture future;
+        /** connection where a stream slot has been reserved for this request, guarded by it */
+        Connection reserved;
+        private boolean retried;
+
+        Open(ElfWsExchange exchange, ElfWsFuture future) {
+            this.exchange = exchange;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                // cancelled while parked
+                Connection conn = reserved;
+                if (conn != null) conn.unreserve(this);
+                return;
+            }
+
+            URL url = exchange.getUrl();
+            String route = route(url);
+            try {
+                if (shutdown) throw new IOException("Transport shut down");
+                if (http1Routes.contains(route)) {
+                    forward(fallback.sendInWorker(exchange), future);
+                    return;
+                }
+
+                Connection conn = reserved != null ? reserved : connection(url, route, this);
+                if (conn == null) return;
+
+                Stream stream = conn.newStream(this);
+                if (stream == null) return;
+                stream.connection.writeBody(stream);
+            }
+            catch (NotHttp2Exception e) {
+                forward(fallback.sendInWorker(exchange), future);
+            }
+            catch (ElfWsStreamRefusedException e) {
+                // the connection is going away: a new one takes the request
+                reserved = null;
+                if (retried) {
+                    future.fail(e);
+                    return;
+                }
+                retried = true;
+                run();
+            }
+            catch (Exception e) {
+                future.fail(e);
+            }
+        }
+    }
+
+    /**
+     * A request and the response received so far.
+     */
+    private static final class Stream {
+        final Connection connection;
+        final int id;
+        final ElfWsExchange exchange;
+        final ElfWsFuture future;
+        /** guarded by the connection */
+        long sendWindow;
+        int unacknowledged;
+        boolean done;
+        /** the response arrived complete, guarded by the connection */
+        boolean responded;
+        /** last time data of the stream was sent or received, for the read timeout */
+        long lastActivity = System.currentTimeMillis();
+        /** used only by the reader thread */
+        int status;
+        final Map<String, List<String>> headers = new LinkedHashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Stream(Connection connection, int id, ElfWsExchange exchange, ElfWsFuture future, long sendWindow) {
+            this.connection = connection;
+            this.id = id;
+            this.exchange = exchange;
+            this.future = future;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    private final class Connection implements Runnable {
+        final String route;
+        final URL url;
+        private Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+
+        /** the write lock keeps frames whole and the encoder in the order of the blocks */
+        private final Object writeLock = new Object();
+        private final ElfWsHpack.Encoder encoder = new ElfWsHpack.Encoder();
+        private final ElfWsHpack.Decoder decoder = new ElfWsHpack.Decoder();
+        private final byte[] frameHeader = new byte[9];
+
+        /** guarded by this */
+        private final Map<Integer, Stream> streams = new HashMap<>();
+        /** requests waiting for a stream slot, in order */
+        private final ArrayDeque<Open> waiting = new ArrayDeque<>();
+        private int nextStreamId = 1;
+        /** slots taken by streams whose HEADERS are being written, or reserved for waiting requests */
+        private int opening;
+        private long sendWindow = DEFAULT_WINDOW;
+        private int peerInitialWindow = DEFAULT_WINDOW;
+        private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+        private int connectionUnacknowledged;
+        private boolean goingAway;
+        private boolean closed;
+
+        Connection(String route, URL url) {
+            this.route = route;
+            this.url = url;
+        }
+
+        /**
+         * Open the socket, send the preface and wait for the SETTINGS of the server.
+         * @param connectTimeout
+         *        timeout of the connection and of its handshakes: the request's one, otherwise the
+         *        transport's
+         */
+        void connect(int connectTimeout) throws IOException {
+            String host = url.getHost();
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+            Socket plain = new Socket();
+            try {
+                plain.connect(new InetSocketAddress(host, port), connectTimeout);
+                plain.setTcpNoDelay(true);
+                // also bounds the TLS handshake, a stalled peer must not hold the route forever
+                plain.setSoTimeout(connectTimeout);
+                socket = "https".equals(url.getProtocol()) ? handshake(plain, host, port) : plain;
+
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), FRAME_SIZE + 9));
+                out = new BufferedOutputStream(socket.getOutputStream(), FRAME_SIZE + 9);
+
+                synchronized (writeLock) {
+                    out.write(PREFACE);
+                    byte[] settings = new byte[18];
+                    putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+                    putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+                    putSetting(settings, 12, SETTINGS_MAX_FRAME_SIZE, FRAME_SIZE);
+                    writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+                    writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+                    out.flush();
+                }
+
+                // the first frame of a server is SETTINGS, anything else isn't HTTP/2
+                try {
+                    in.readFully(frameHeader);
+                }
+                catch (EOFException e) {
+                    throw new NotHttp2Exception();
+                }
+                int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+                if (frameHeader[3] != SETTINGS || (frameHeader[4] & FLAG_ACK) != 0 || length % 6 != 0 || length > FRAME_SIZE)
+                    throw new NotHttp2Exception();
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                onSettings(0, payload, length);
+                socket.setSoTimeout((int) Math.min(keepAliveMillis, Integer.MAX_VALUE));
+            }
+            catch (IOException e) {
+                closeQuietly(socket != null ? socket : plain);
+                throw e;
+            }
+        }
+
+        /**
+         * TLS handshake negotiating h2 with ALPN, through reflection since the API is recent. Uses the
+         * same socket factory and hostname verifier as HttpsURLConnection, so the trust configured
+         * for the other transports applies here too.
+         */
+        private Socket handshake(Socket plain, String host, int port) throws IOException {
+            SSLSocket ssl = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory().createSocket(plain, host, port, true);
+            try {
+                Method setProtocols = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+                SSLParameters parameters = ssl.getSSLParameters();
+                setProtocols.invoke(parameters, (Object) new String[] { "h2", "http/1.1" });
+                ssl.setSSLParameters(parameters);
+            }
+            catch (Exception e) {
+                closeQuietly(ssl);
+                throw new NotHttp2Exception();
+            }
+
+            ssl.startHandshake();
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, ssl.getSession())) {
+                closeQuietly(ssl);
+                throw new IOException("Hostname " + host + " not verified");
+            }
+
+            String protocol = null;
+            try {
+                protocol = (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(ssl);
+            }
+            catch (Exception e) {
+                // no ALPN support
+            }
+            if (!"h2".equals(protocol)) {
+                closeQuietly(ssl);
+                throw new NotHttp2Exception();
+            }
+            return ssl;
+        }
+
+        void startReader() {
+            new DaemonFactory("ElfWs HTTP/2 " + route).newThread(this).start();
+        }
+
+        synchronized boolean isUsable() {
+            return !closed && !goingAway;
+        }
+
+        synchronized int activeStreams() {
+            return streams.size();
+        }
+
+        /**
+         * Send again the requests parked for a stream slot, as many as the free slots, or all of
+         * them if the connection no longer takes streams: they go to a new one.
+         */
+        void resume() {
+            List<Open> ready = new ArrayList<>();
+            synchronized (this) {
+                boolean available = !closed && !goingAway;
+                while (!waiting.isEmpty() && (!available || streams.size() + opening < peerMaxConcurrentStreams)) {
+                    Open open = waiting.poll();
+                    if (available) {
+                        opening++;
+                        open.reserved = this;
+                    }
+                    ready.add(open);
+                }
+            }
+            for (Open open : ready) submit(open);
+        }
+
+        /**
+         * Give back the slot reserved for <code>open</code>, which will not use it.
+         */
+        void unreserve(Open open) {
+            synchronized (this) {
+                if (open.reserved != this) return;
+                open.reserved = null;
+                opening--;
+            }
+            resume();
+        }
+
+        /**
+         * Open a stream and write its headers; the body, if any, is written by
+         * {@link #writeBody(Stream) writeBody}. Without a stream slot free the request is parked
+         * and sent again by {@link #resume() resume}.
+         * @return Stream, null if <code>open</code> has been parked
+         */
+        Stream newStream(Open open) throws IOException {
+            final ElfWsExchange exchange = open.exchange;
+            ElfWsBody body = exchange.getBody();
+            List<String[]> fields = requestFields(exchange, body);
+
+            // the slot is taken before the write lock, which the reader needs to make progress
+            synchronized (this) {
+                if (open.reserved == this) {
+                    open.reserved = null;
+                }
+                else {
+                    if (closed || goingAway) throw new ElfWsStreamRefusedException("Connection going away");
+                    if (!waiting.isEmpty() || streams.size() + opening >= peerMaxConcurrentStreams) {
+                        waiting.add(open);
+                        return null;
+                    }
+                    opening++;
+                }
+            }
+
+            final Stream stream;
+            try {
+                synchronized (writeLock) {
+                    synchronized (this) {
+                        opening--;
+                        if (closed || goingAway) {
+                            notifyAll();
+                            throw new ElfWsStreamRefusedException("Connection going away");
+                        }
+
+                        // stream ids must grow in the order the HEADERS frames are written
+                        stream = new Stream(this, nextStreamId, exchange, open.future, peerInitialWindow);
+                        nextStreamId += 2;
+                        streams.put(stream.id, stream);
+                    }
+
+                    ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+                    encoder.begin(block);
+                    for (String[] field : fields) {
+                        boolean sensitive = "authorization".equals(field[0]) || "cookie".equals(field[0])
+                                || "proxy-authorization".equals(field[0]);
+                        encoder.encode(block, field[0], field[1], sensitive);
+                    }
+                    writeHeaderBlock(stream.id, block.toByteArray(), body == null);
+                    out.flush();
+                }
+            }
+            catch (ElfWsStreamRefusedException e) {
+                throw e;
+            }
+            catch (IOException e) {
+                // a header block half written leaves the connection unusable
+                close(e, false);
+                throw e;
+            }
+
+            exchange.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    reset(stream, ERROR_CANCEL, new CancellationException("Request cancelled"));
+                }
+            });
+            if (exchange.getReadTimeout() > 0) watch(stream, exchange.getReadTimeout());
+            return stream;
+        }
+
+        /**
+         * Reset <code>stream</code> when nothing is sent or received for its read timeout.
+         */
+        private void watch(final Stream stream, long delay) {
+            ElfWsScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long idle;
+                    synchronized (Connection.this) {
+                        if (stream.done) return;
+                        idle = System.currentTimeMillis() - stream.lastActivity;
+                    }
+
+                    int timeout = stream.exchange.getReadTimeout();
+                    if (idle < timeout) {
+                        watch(stream, timeout - idle);
+                        return;
+                    }
+                    // the reset writes on the socket, never on the scheduler thread
+                    completeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            reset(stream, ERROR_CANCEL, new SocketTimeoutException("Read timed out"));
+                        }
+                    });
+                }
+            }, delay);
+        }
+
+        private List<String[]> requestFields(ElfWsExchange exchange, ElfWsBody body) {
+            URL url = exchange.getUrl();
+            String target = url.getFile();
+            if (target.isEmpty()) target = "/";
+            String authority = url.getHost();
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) authority += ":" + url.getPort();
+
+            Map<String, String> headers = new LinkedHashMap<>();
+            putHeaders(headers, exchange.getAuthHeaders());
+            putHeaders(headers, exchange.getHeaders());
+            if (!headers.containsKey("user-agent")) headers.put("user-agent", "ElfWs");
+            if (body != null && body.getContentLength() >= 0) headers.put("content-length", Long.toString(body.getContentLength()));
+
+            List<String[]> fields = new ArrayList<>(headers.size() + 4);
+            fields.add(new String[] { ":method", exchange.getMethod() });
+            fields.add(new String[] { ":scheme", url.getProtocol() });
+            fields.add(new String[] { ":authority", authority });
+            fields.add(new String[] { ":path", target });
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                fields.add(new String[] { header.getKey(), header.getValue() });
+            }
+            return fields;
+        }
+
+        private void putHeaders(Map<String, String> headers, Map<String, String> values) {
+            for (Map.Entry<String, String> header : values.entrySet()) {
+                String name = header.getKey().toLowerCase(Locale.US);
+                // connection specific headers are forbidden in HTTP/2, the framing is the transport's
+                if ("host".equals(name) || "connection".equals(name) || "keep-alive".equals(name)
+                        || "proxy-connection".equals(name) || "transfer-encoding".equals(name)
+                        || "upgrade".equals(name) || "te".equals(name) || "expect".equals(name)
+                        || "content-length".equals(name)) continue;
+
+                headers.put(name, header.getValue() != null ? header.getValue() : "");
+            }
+        }
+
+        /**
+         * Write the body of <code>stream</code> in DATA frames, as the send windows allow.
+         */
+        void writeBody(Stream stream) throws IOException {
+            ElfWsBody body = stream.exchange.getBody();
+            if (body == null) return;
+
+            DataFrameStream data = new DataFrameStream(stream);
+            try {
+                body.writeTo(data);
+                data.close();
+            }
+            catch (StreamEndedException e) {
+                // an early response (413, 401...) ends the exchange: close our half of the stream too
+                if (stream.responded) writeReset(stream.id, ERROR_NO_ERROR);
+            }
+            catch (IOException e) {
+                reset(stream, ERROR_CANCEL, e);
+                throw e;
+            }
+        }
+
+        /**
+         * Send <code>length</code> bytes of the body, waiting for the flow control windows.
+         */
+        void writeData(Stream stream, byte[] buffer, int offset, int length, boolean endStream) throws IOException {
+            do {
+                int chunk;
+                synchronized (this) {
+                    while (!closed && !stream.done && length > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException e) {
+                            throw new InterruptedIOException("Interrupted waiting for the flow control window");
+                        }
+                    }
+                    if (closed) throw new IOException("Connection closed");
+                    if (stream.done) throw new StreamEndedException();
+
+                    chunk = (int) Math.min(length, Math.min(FRAME_SIZE, Math.min(sendWindow, stream.sendWindow)));
+                    sendWindow -= chunk;
+                    stream.sendWindow -= chunk;
+                    stream.lastActivity = System.currentTimeMillis();
+                }
+
+                synchronized (writeLock) {
+                    boolean last = endStream && chunk == length;
+                    writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, buffer, offset, chunk);
+                    if (last) out.flush();
+                }
+                offset += chunk;
+                length -= chunk;
+            } while (length > 0);
+        }
+
+        void flush() throws IOException {
+            synchronized (writeLock) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Abort <code>stream</code> with RST_STREAM and fail its future.
+         */
+        void reset(Stream stream, int errorCode, Exception cause) {
+            synchronized (this) {
+                if (stream.done) return;
+                stream.done = true;
+                streams.remove(stream.id);
+                notifyAll();
+            }
+            resume();
+
+            writeReset(stream.id, errorCode);
+            fail(stream, cause);
+        }
+
+        private void writeReset(int streamId, int errorCode) {
+            try {
+                byte[] payload = new byte[4];
+                putInt(payload, 0, errorCode);
+                synchronized (writeLock) {
+                    writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                // the connection is failing, its reader closes it
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    try {
+                        readFrame();
+                    }
+                    catch (SocketTimeoutException e) {
+                        // idle for the keep alive time: close if there is nothing in flight
+                        synchronized (this) {
+                            if (streams.isEmpty()) {
+                                goingAway = true;
+                                break;
+                            }
+                        }
+                    }
+                    synchronized (this) {
+                        if (closed || (goingAway && streams.isEmpty())) break;
+                    }
+                }
+                close(new IOException("Connection closed"), true);
+            }
+            catch (IOException e) {
+                close(e, false);
+            }
+        }
+
+        private void readFrame() throws IOException {
+            in.readFully(frameHeader);
+            int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            int type = frameHeader[3] & 0xff;
+            int flags = frameHeader[4] & 0xff;
+            int streamId = getInt(frameHeader, 5) & 0x7fffffff;
+            if (length > FRAME_SIZE) throw new IOException("Frame too large: " + length);
+
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload, length);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload, length);
+                    break;
+                case RST_STREAM:
+                    onReset(streamId, payload, length);
+                    break;
+                case SETTINGS:
+                    onSettings(flags, payload, length);
+                    break;
+                case PUSH_PROMISE:
+                    // push has been disabled in our SETTINGS
+                    throw new IOException("Unexpected PUSH_PROMISE");
+                case PING:
+                    if ((flags & FLAG_ACK) == 0) {
+                        synchronized (writeLock) {
+                            writeFrame(PING, FLAG_ACK, 0, payload, 0, length);
+                            out.flush();
+                        }
+                    }
+                    break;
+                case GOAWAY:
+                    onGoAway(payload, length);
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload, length);
+                    break;
+                case CONTINUATION:
+                    throw new IOException("CONTINUATION without HEADERS");
+                default:
+                    // unknown frame types are ignored
+            }
+        }
+
+        private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+            int offset = 0;
+            int dataLength = length;
+            if ((flags & FLAG_PADDED) != 0) {
+                if (length < 1) throw new IOException("Invalid padded DATA");
+                int padding = payload[0] & 0xff;
+                offset = 1;
+                dataLength = length - 1 - padding;
+                if (dataLength < 0) throw new IOException("Invalid padding");
+            }
+
+            Stream stream;
+            int streamIncrement = 0;
+            int connectionIncrement = 0;
+            synchronized (this) {
+                stream = streams.get(streamId);
+                if (stream != null) stream.lastActivity = System.currentTimeMillis();
+
+                // the whole frame counts for flow control, also for streams already reset
+                connectionUnacknowledged += length;
+                if (connectionUnacknowledged >= CONNECTION_WINDOW / 2) {
+                    connectionIncrement = connectionUnacknowledged;
+                    connectionUnacknowledged = 0;
+                }
+
+                if (stream != null && (flags & FLAG_END_STREAM) == 0) {
+                    stream.unacknowledged += length;
+                    if (stream.unacknowledged >= STREAM_WINDOW / 2) {
+                        streamIncrement = stream.unacknowledged;
+                        stream.unacknowledged = 0;
+                    }
+                }
+            }
+
+            if (connectionIncrement > 0 || streamIncrement > 0) {
+                synchronized (writeLock) {
+                    if (connectionIncrement > 0) writeWindowUpdate(0, connectionIncrement);
+                    if (streamIncrement > 0) writeWindowUpdate(streamId, streamIncrement);
+                    out.flush();
+                }
+            }
+
+            if (stream == null) return;
+            stream.body.write(payload, offset, dataLength);
+            if ((flags & FLAG_END_STREAM) != 0) finish(stream);
+        }
+
+        private void onHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+            int offset = 0;
+            int end = length;
+            if ((flags & FLAG_PADDED) != 0) {
+                if (length < 1) throw new IOException("Invalid padded HEADERS");
+                offset = 1;
+                end -= payload[0] & 0xff;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) offset += 5;
+            if (end < offset) throw new IOException("Invalid HEADERS");
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(end - offset);
+            block.write(payload, offset, end - offset);
+
+            // the block goes on in CONTINUATION frames of the same stream
+            boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+            while (!endHeaders) {
+                in.readFully(frameHeader);
+                int continuationLength = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+                if ((frameHeader[3] & 0xff) != CONTINUATION || (getInt(frameHeader, 5) & 0x7fffffff) != streamId
+                        || continuationLength > FRAME_SIZE) throw new IOException("Invalid CONTINUATION");
+
+                byte[] continuation = new byte[continuationLength];
+                in.readFully(continuation);
+                block.write(continuation, 0, continuationLength);
+                endHeaders = (frameHeader[4] & FLAG_END_HEADERS) != 0;
+            }
+
+            // decoded also for unknown streams, the table state is shared by the connection
+            byte[] bytes = block.toByteArray();
+            List<String[]> fields = decoder.decode(bytes, bytes.length);
+
+            Stream stream;
+            synchronized (this) {
+                stream = streams.get(streamId);
+                if (stream != null) stream.lastActivity = System.currentTimeMillis();
+            }
+            if (stream == null) return;
+
+            int status = 0;
+            for (String[] field : fields) {
+                if (":status".equals(field[0])) {
+                    try {
+                        status = Integer.parseInt(field[1]);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Invalid :status " + field[1]);
+                    }
+                }
+            }
+
+            if (stream.status == 0) {
+                // interim responses (100 Continue) are followed by the real one
+                if (status >= 100 && status < 200) return;
+                if (status == 0) throw new IOException("Response without :status");
+
+                stream.status = status;
+                stream.headers.put(null, Collections.singletonList("HTTP/2 " + status));
+            }
+
+            // the fields of the trailers are added to the headers
+            for (String[] field : fields) {
+                if (field[0].startsWith(":")) continue;
+                List<String> values = stream.headers.get(field[0]);
+                if (values == null) {
+                    values = new ArrayList<>(1);
+                    stream.headers.put(field[0], values);
+                }
+                values.add(field[1]);
+            }
+
+            if ((flags & FLAG_END_STREAM) != 0) finish(stream);
+        }
+
+        private void onReset(int streamId, byte[] payload, int length) throws IOException {
+            if (length != 4) throw new IOException("Invalid RST_STREAM");
+
+            Stream stream;
+            synchronized (this) {
+                stream = streams.remove(streamId);
+                if (stream == null || stream.done) return;
+                stream.done = true;
+                notifyAll();
+            }
+            resume();
+            int error = getInt(payload, 0);
+            if (error == ERROR_REFUSED_STREAM)
+                fail(stream, new ElfWsStreamRefusedException("Stream refused by the server"));
+            else
+                fail(stream, new IOException("Stream reset by the server, error " + error));
+        }
+
+        private void onSettings(int flags, byte[] payload, int length) throws IOException {
+            if ((flags & FLAG_ACK) != 0) return;
+            if (length % 6 != 0) throw new IOException("Invalid SETTINGS");
+
+            int tableSize = -1;
+            synchronized (this) {
+                for (int i = 0; i < length; i += 6) {
+                    int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                    int value = getInt(payload, i + 2);
+                    switch (id) {
+                        case SETTINGS_HEADER_TABLE_SIZE:
+                            tableSize = value;
+                            break;
+                        case SETTINGS_MAX_CONCURRENT_STREAMS:
+                            peerMaxConcurrentStreams = value;
+                            break;
+                        case SETTINGS_INITIAL_WINDOW_SIZE:
+                            if (value < 0) throw new IOException("Invalid initial window size");
+                            // the difference applies to the streams already open
+                            int delta = value - peerInitialWindow;
+                            peerInitialWindow = value;
+                            for (Stream stream : streams.values()) stream.sendWindow += delta;
+                            break;
+                        default:
+                            // frame size: we never send frames over the minimum
+                    }
+                }
+                notifyAll();
+            }
+            // a higher MAX_CONCURRENT_STREAMS frees slots
+            resume();
+
+            synchronized (writeLock) {
+                // the size update goes in the next header block, after the ACK
+                if (tableSize >= 0) encoder.setMaxTableSize(tableSize);
+                writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+                out.flush();
+            }
+        }
+
+        private void onGoAway(byte[] payload, int length) throws IOException {
+            if (length < 8) throw new IOException("Invalid GOAWAY");
+            int lastStreamId = getInt(payload, 0) & 0x7fffffff;
+
+            List<Stream> refused = new ArrayList<>();
+            synchronized (this) {
+                goingAway = true;
+                for (Stream stream : new ArrayList<>(streams.values())) {
+                    if (stream.id > lastStreamId) {
+                        streams.remove(stream.id);
+                        stream.done = true;
+                        refused.add(stream);
+                    }
+                }
+                notifyAll();
+            }
+            removeConnection(this);
+            resume();
+
+            // never processed by the server, the retry policy sends them again even if not idempotent
+            for (Stream stream : refused) fail(stream, new ElfWsStreamRefusedException("Stream refused by GOAWAY, error " + getInt(payload, 4)));
+        }
+
+        private void onWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+            if (length != 4) throw new IOException("Invalid WINDOW_UPDATE");
+            int increment = getInt(payload, 0) & 0x7fffffff;
+
+            synchronized (this) {
+                if (streamId == 0) {
+                    sendWindow += increment;
+                }
+                else {
+                    Stream stream = streams.get(streamId);
+                    if (stream != null) stream.sendWindow += increment;
+                }
+                notifyAll();
+            }
+        }
+
+        private void finish(final Stream stream) {
+            synchronized (this) {
+                if (stream.done) return;
+                stream.done = true;
+                stream.responded = true;
+                streams.remove(stream.id);
+                notifyAll();
+            }
+            resume();
+
+            completeLater(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] body = stream.body.toByteArray();
+                        stream.future.complete(stream.exchange.readResponse(stream.status, stream.headers,
+                                new ByteArrayInputStream(body), body.length));
+                    }
+                    catch (Exception e) {
+                        stream.future.fail(e);
+                    }
+                }
+            });
+        }
+
+        private void fail(final Stream stream, final Exception cause) {
+            completeLater(new Runnable() {
+                @Override
+                public void run() {
+                    stream.future.fail(cause);
+                }
+            });
+        }
+
+        /**
+         * Close the socket and fail the streams still open.
+         * @param graceful true to send GOAWAY first
+         */
+        void close(IOException cause, boolean graceful) {
+            List<Stream> open;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                open = new ArrayList<>(streams.values());
+                streams.clear();
+                for (Stream stream : open) stream.done = true;
+                notifyAll();
+            }
+            removeConnection(this);
+            resume();
+
+            if (graceful) {
+                try {
+                    byte[] payload = new byte[8];
+                    // last stream id 0: the server never opens streams towards us
+                    putInt(payload, 0, 0);
+                    putInt(payload, 4, ERROR_NO_ERROR);
+                    synchronized (writeLock) {
+                        writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+                        out.flush();
+                    }
+                }
+                catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            closeQuietly(socket);
+
+            for (Stream stream : open) fail(stream, cause);
+        }
+
+        private void writeHeaderBlock(int streamId, byte[] block, boolean endStream) throws IOException {
+            int offset = 0;
+            boolean first = true;
+            do {
+                int chunk = Math.min(FRAME_SIZE, block.length - offset);
+                boolean last = offset + chunk == block.length;
+                int flags = last ? FLAG_END_HEADERS : 0;
+                if (first && endStream) flags |= FLAG_END_STREAM;
+
+                writeFrame(first ? HEADERS : CONTINUATION, flags, streamId, block, offset, chunk);
+                offset += chunk;
+                first = false;
+            } while (offset < block.length);
+        }
+
+        private void writeWindowUpdate(int streamId, int increment) throws IOException {
+            byte[] payload = new byte[4];
+            putInt(payload, 0, increment);
+            writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+        }
+
+        /** called holding the write lock */
+        private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+            byte[] header = new byte[9];
+            header[0] = (byte) (length >>> 16);
+            header[1] = (byte) (length >>> 8);
+            header[2] = (byte) length;
+            header[3] = (byte) type;
+            header[4] = (byte) flags;
+            putInt(header, 5, streamId & 0x7fffffff);
+            out.write(header);
+            out.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Body of a stream written as DATA frames of at most {@link #FRAME_SIZE FRAME_SIZE} bytes.
+     */
+    private static final class DataFrameStream extends OutputStream {
+        private final Stream stream;
+        private final byte[] buffer = new byte[FRAME_SIZE];
+        private int count;
+        private boolean closed;
+
+        DataFrameStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) drain(false);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) drain(false);
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) drain(false);
+            stream.connection.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            drain(true);
+        }
+
+        private void drain(boolean endStream) throws IOException {
+            stream.connection.writeData(stream, buffer, 0, count, endStream);
+            count = 0;
+        }
+    }
+
+    private static void putSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        putInt(buffer, offset + 2, value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // nothing to release
+        }
+    }
+
+    private static final class DaemonFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String name;
+
+        DaemonFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary <code>multipart/form-data</code> body: POST parameters and files of an
+ * {@link com.zagonico.elfws.ElfWsRequest ElfWsRequest}. Files are written as raw bytes, without
+ * any transfer encoding, straight to the output stream of the connection, reading their sources
+ * one buffer at a time.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsMultipart extends ElfWsBody {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] DASHES = { '-', '-' };
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String boundary;
+    private final Map<String, String> fields;
+    private final List<ElfWsUpload> uploads;
+
+    /**
+     * @param fields
+     *        POST parameters, written as form-data parts before the files
+     *
+     * @param uploads
+     *        files to be posted
+     */
+    public ElfWsMultipart(Map<String, String> fields, List<ElfWsUpload> uploads) {
+        this.boundary = "ElfWsBoundary" + Long.toHexString(RANDOM.nextLong()) + Long.toHexString(System.currentTimeMillis());
+        this.fields = fields;
+        this.uploads = uploads;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    @Override
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * Size of the body, computed from the part headers and the sizes of the files.
+     * @return long length, -1 if the size of a file is unknown
+     */
+    @Override
+    public long getContentLength() {
+        long delimiter = DASHES.length + ascii(boundary).length + CRLF.length;
+        long length = 0;
+
+        for (String key : fields.keySet()) {
+            length += delimiter + utf8(fieldHeader(key)).length + utf8(fields.get(key)).length + CRLF.length;
+        }
+
+        for (ElfWsUpload upload : uploads) {
+            long size = upload.getLength();
+            if (size < 0) return -1;
+            length += delimiter + utf8(fileHeader(upload)).length + size + CRLF.length;
+        }
+
+        return length + DASHES.length + ascii(boundary).length + DASHES.length + CRLF.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] boundaryBytes = ascii(boundary);
+        byte[] buffer = ElfWsUtil.threadBuffer();
+
+        for (String key : fields.keySet()) {
+            writeDelimiter(out, boundaryBytes);
+            out.write(utf8(fieldHeader(key)));
+            out.write(utf8(fields.get(key)));
+            out.write(CRLF);
+        }
+
+        for (ElfWsUpload upload : uploads) {
+            writeDelimiter(out, boundaryBytes);
+            out.write(utf8(fileHeader(upload)));
+            upload.writeTo(out, buffer);
+            out.write(CRLF);
+        }
+
+        out.write(DASHES);
+        out.write(boundaryBytes);
+        out.write(DASHES);
+        out.write(CRLF);
+        out.flush();
+    }
+
+    private static String fieldHeader(String key) {
+        return "Content-Disposition: form-data; name=\"" + key + "\"\r\n\r\n";
+    }
+
+    private static String fileHeader(ElfWsUpload upload) {
+        String mime = upload.getMime() != null ? upload.getMime() : "application/octet-stream";
+
+        return "Content-Disposition: form-data; name=\"" + upload.getFieldName() +
+                "\"; filename=\"" + upload.getFileName() + "\"\r\n" +
+                "Content-Type: " + mime + "\r\n" +
+                "\r\n";
+    }
+
+    private static void writeDelimiter(OutputStream out, byte[] boundaryBytes) throws IOException {
+        out.write(DASHES);
+        out.write(boundaryBytes);
+        out.write(CRLF);
+    }
+
+    private static byte[] utf8(String s) {
+        return (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
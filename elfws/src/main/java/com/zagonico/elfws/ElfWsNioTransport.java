@@ -0,0 +1,1108 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non blocking HTTP/1.1 transport: a single selector thread drives all the connections, so
+ * thousands of requests can be in flight without a thread each.
+ *
+ * Connections are kept alive and reused per route (host and port), at most
+ * <code>maxPerRoute</code> at a time; further requests wait in a queue of the route. An idle
+ * connection closed by the server is detected and a request without body that finds it stale is
+ * sent again on a new one. Responses are built, and the futures completed, by a small pool of
+ * completion threads, so callbacks never run on the selector thread.
+ *
+ * Host names are resolved, and request bodies encoded, by a small pool of resolver threads, so
+ * that neither the caller nor the selector waits for DNS. Https, multipart uploads, bodies of
+ * unknown length and downloads are delegated to the <code>HttpURLConnection</code> transport, in
+ * a worker of the default {@link com.zagonico.elfws.ElfWsDispatcher ElfWsDispatcher}.
+ *
+ * With a <code>pipelineDepth</code> greater than 1, when all the connections of a route are busy
+ * the GET and HEAD requests are written behind the ones in flight on a connection that has already
+ * been kept alive, up to <code>pipelineDepth</code> requests per connection, and the responses are
+ * matched back in order: a sequence of small GETs costs about one round trip instead of one each.
+ * The requests still unanswered when a connection closes are sent again, and a route whose
+ * pipelined connection fails isn't pipelined anymore.
+ *
+ * <code>
+ *     ElfWsNioTransport transport = new ElfWsNioTransport(16, 60 * 1000);
+ *     client.setTransport(transport);
+ *
+ *     // sequential GETs on one connection, at most 8 in flight
+ *     client.setTransport(new ElfWsNioTransport(1, 60 * 1000, 8));
+ *     List&lt;ElfWsFuture&gt; futures = new ArrayList&lt;&gt;();
+ *     for (ElfWsRequest request : requests) futures.add(client.executeAsync(request));
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsNioTransport implements ElfWsTransport {
+    public static final int DEFAULT_MAX_PER_ROUTE = 6;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_PIPELINE_DEPTH = 1;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    /** threads resolving host names */
+    private static final int RESOLVERS = 4;
+
+    private final int maxPerRoute;
+    private final long keepAliveMillis;
+    private final int pipelineDepth;
+    private final ElfWsUrlConnectionTransport fallback = ElfWsUrlConnectionTransport.getDefault();
+
+    /** work for the selector thread, posted by the other threads */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ThreadPoolExecutor completions;
+    private final ThreadPoolExecutor resolvers;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private Selector selector;
+    private Thread loop;
+    private volatile boolean shutdown;
+
+    /** state of the selector thread, never accessed by the others */
+    private final Map<String, Route> routes = new HashMap<>();
+    /** on the heap, so that response bytes are copied in bulk from its array */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    public ElfWsNioTransport() {
+        this(DEFAULT_MAX_PER_ROUTE, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * @param maxPerRoute
+     *        concurrent connections to the same host and port, further requests wait for a free one
+     *
+     * @param keepAliveMillis
+     *        time after which an idle connection is closed
+     */
+    public ElfWsNioTransport(int maxPerRoute, long keepAliveMillis) {
+        this(maxPerRoute, keepAliveMillis, DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * @param maxPerRoute
+     *        concurrent connections to the same host and port, further requests wait for a free one
+     *
+     * @param keepAliveMillis
+     *        time after which an idle connection is closed
+     *
+     * @param pipelineDepth
+     *        GET and HEAD requests in flight on the same connection, 1 disables pipelining
+     */
+    public ElfWsNioTransport(int maxPerRoute, long keepAliveMillis, int pipelineDepth) {
+        if (maxPerRoute <= 0 || keepAliveMillis < 0 || pipelineDepth <= 0) throw new IllegalArgumentException("Invalid transport sizes");
+
+        this.maxPerRoute = maxPerRoute;
+        this.keepAliveMillis = keepAliveMillis;
+        this.pipelineDepth = pipelineDepth;
+        completions = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonFactory("ElfWs NIO completion"));
+        completions.allowCoreThreadTimeOut(true);
+        resolvers = new ThreadPoolExecutor(RESOLVERS, RESOLVERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonFactory("ElfWs NIO resolver"));
+        resolvers.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    /**
+     * True if the exchange can be sent by the selector, otherwise it goes to the
+     * <code>HttpURLConnection</code> transport.
+     */
+    private static boolean supports(ElfWsExchange exchange) {
+        if (!"http".equals(exchange.getUrl().getProtocol())) return false;
+        if (exchange.getRequest().isDownload()) return false;
+
+        ElfWsBody body = exchange.getBody();
+        return body == null || (!(body instanceof ElfWsMultipart) && body.getContentLength() >= 0);
+    }
+
+    @Override
+    public ElfWsFuture send(final ElfWsExchange exchange) {
+        if (!supports(exchange)) return fallback.sendInWorker(exchange);
+
+        final ElfWsFuture future = new ElfWsFuture();
+        try {
+            if (shutdown) throw new IOException("Transport shut down");
+
+            // until the request reaches the selector, a cancellation only fails it
+            exchange.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    future.fail(new CancellationException("Request cancelled"));
+                }
+            });
+            resolvers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prepare(exchange, future);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.fail(new IOException("Transport shut down"));
+        }
+        catch (Exception e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Resolve the host and encode the request, in a resolver thread, then hand it to the selector.
+     */
+    private void prepare(ElfWsExchange exchange, ElfWsFuture future) {
+        if (future.isDone()) return;
+
+        try {
+            if (shutdown) throw new IOException("Transport shut down");
+
+            URL url = exchange.getUrl();
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+            if (address.isUnresolved()) throw new UnknownHostException(url.getHost());
+
+            final Call call = new Call(exchange, future, url.getHost() + ":" + port, address, encode(exchange));
+            activeRequests.incrementAndGet();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    enqueue(call);
+                }
+            });
+            exchange.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancel(call);
+                        }
+                    });
+                }
+            });
+        }
+        catch (Exception e) {
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Stop the selector thread, closing all the connections and failing the requests in flight.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (this) {
+            if (selector != null) selector.wakeup();
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Connections currently open, busy or idle.
+     * @return int
+     */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Requests sent and not yet completed, waiting for a connection included.
+     * @return int
+     */
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Request line, headers and body, ready to be written.
+     */
+    private static ByteBuffer encode(ElfWsExchange exchange) throws IOException {
+        URL url = exchange.getUrl();
+        String target = url.getFile();
+        if (target.isEmpty()) target = "/";
+
+        // auth first, so that the headers of the request override it like HttpURLConnection does
+        Map<String, String[]> headers = new LinkedHashMap<>();
+        putHeaders(headers, exchange.getAuthHeaders());
+        putHeaders(headers, exchange.getHeaders());
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(exchange.getMethod()).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) head.append(':').append(url.getPort());
+        head.append("\r\n");
+        if (!headers.containsKey("user-agent")) head.append("User-Agent: ElfWs\r\n");
+
+        for (String[] header : headers.values()) {
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+
+        byte[] body = new byte[0];
+        if (exchange.getBody() != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) exchange.getBody().getContentLength());
+            exchange.getBody().writeTo(out);
+            body = out.toByteArray();
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer request = ByteBuffer.allocate(headBytes.length + body.length);
+        request.put(headBytes).put(body);
+        request.flip();
+        return request;
+    }
+
+    private static void putHeaders(Map<String, String[]> headers, Map<String, String> values) {
+        for (Map.Entry<String, String> header : values.entrySet()) {
+            String name = header.getKey();
+            String value = header.getValue() != null ? header.getValue() : "";
+            if (name.indexOf('\r') >= 0 || name.indexOf('\n') >= 0 || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)
+                throw new IllegalArgumentException("Invalid header " + name);
+
+            String key = name.toLowerCase(Locale.US);
+            // framing and connection management belong to the transport
+            if ("host".equals(key) || "connection".equals(key) || "expect".equals(key)
+                    || "content-length".equals(key) || "transfer-encoding".equals(key)) continue;
+
+            headers.put(key, new String[] { name, value });
+        }
+    }
+
+    private void post(Runnable task) {
+        Selector selector;
+        try {
+            selector = start();
+        }
+        catch (IOException e) {
+            throw new RejectedExecutionException(e);
+        }
+
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private synchronized Selector start() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            loop = new DaemonFactory("ElfWs NIO").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            });
+            loop.start();
+        }
+        return selector;
+    }
+
+    private void loop() {
+        long wait = SELECT_TIMEOUT_MILLIS;
+        while (!shutdown) {
+            try {
+                selector.select(wait);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key, (Connection) key.attachment());
+                }
+
+                long now = System.currentTimeMillis();
+                evictIdle(now);
+                wait = checkTimeouts(now);
+            }
+            catch (Exception e) {
+                // a failure of a single connection is handled by handle(), this keeps the loop alive
+            }
+        }
+
+        IOException closed = new IOException("Transport shut down");
+        for (Route route : routes.values()) {
+            for (Call call : new ArrayList<>(route.waiting)) fail(call, closed);
+            route.waiting.clear();
+            for (Connection conn : new ArrayList<>(route.connections)) {
+                List<Call> calls = new ArrayList<>(conn.calls);
+                conn.calls.clear();
+                close(conn);
+                for (Call call : calls) fail(call, closed);
+            }
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            // requests posted while shutting down are failed by enqueue
+            task.run();
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            // nothing left to release
+        }
+        resolvers.shutdown();
+        completions.shutdown();
+    }
+
+    private void enqueue(Call call) {
+        if (shutdown) {
+            fail(call, new IOException("Transport shut down"));
+            return;
+        }
+
+        Route route = routes.get(call.route);
+        if (route == null) {
+            route = new Route();
+            routes.put(call.route, route);
+        }
+        route.waiting.add(call);
+        dispatch(route);
+    }
+
+    /**
+     * Give the waiting requests to the idle connections, opening new ones within the limit, or
+     * pipelining them when allowed.
+     */
+    private void dispatch(Route route) {
+        while (!route.waiting.isEmpty() && !shutdown) {
+            // the most recently used connection is the least likely to be closed by the server
+            Connection conn = route.idle.pollLast();
+            if (conn != null) {
+                start(conn, route.waiting.poll());
+                continue;
+            }
+
+            if (route.connections.size() < maxPerRoute) {
+                Call call = route.waiting.poll();
+                try {
+                    open(route, call);
+                }
+                catch (IOException e) {
+                    fail(call, e);
+                }
+                continue;
+            }
+
+            // all the connections are busy: idempotent requests can queue behind the ones in flight
+            conn = pipelineTarget(route, route.waiting.peek());
+            if (conn == null) return;
+            start(conn, route.waiting.poll());
+        }
+    }
+
+    /**
+     * The busy connection with the fewest requests that <code>call</code> can be pipelined on.
+     * @return Connection, null if there is none
+     */
+    private Connection pipelineTarget(Route route, Call call) {
+        if (pipelineDepth <= 1 || route.noPipelining || !call.idempotent) return null;
+
+        Connection target = null;
+        for (Connection conn : route.connections) {
+            // only connections that have already kept a response alive, carrying idempotent requests
+            if (!conn.reused || conn.calls.size() >= pipelineDepth || !conn.acceptsPipelined()) continue;
+            if (target == null || conn.calls.size() < target.calls.size()) target = conn;
+        }
+        return target;
+    }
+
+    private void open(Route route, Call call) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            Connection conn = new Connection(route, channel);
+            conn.connected = channel.connect(call.address);
+            int connectTimeout = call.exchange.getConnectTimeout();
+            if (!conn.connected && connectTimeout > 0) conn.connectDeadline = System.currentTimeMillis() + connectTimeout;
+            conn.key = channel.register(selector, conn.connected ? 0 : SelectionKey.OP_CONNECT, conn);
+            route.connections.add(conn);
+            openConnections.incrementAndGet();
+
+            start(conn, call);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Queue <code>call</code> on the connection, behind the requests already in flight.
+     */
+    private void start(Connection conn, Call call) {
+        if (conn.calls.isEmpty()) {
+            conn.parser = new ResponseParser(call.head);
+            conn.received = false;
+            conn.lastActivity = System.currentTimeMillis();
+        }
+        conn.calls.add(call);
+        conn.out.add(call.request.duplicate());
+        call.connection = conn;
+        interest(conn);
+    }
+
+    private void interest(Connection conn) {
+        if (!conn.connected || conn.closed) return;
+        // always reading: it detects the connections closed by the server and early responses
+        conn.key.interestOps(conn.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void handle(SelectionKey key, Connection conn) {
+        try {
+            if (!key.isValid()) return;
+
+            if (key.isConnectable()) {
+                if (conn.channel.finishConnect()) {
+                    conn.connected = true;
+                    conn.lastActivity = System.currentTimeMillis();
+                    interest(conn);
+                }
+                return;
+            }
+            if (key.isWritable()) write(conn);
+            if (key.isValid() && key.isReadable()) read(conn);
+        }
+        catch (IOException e) {
+            broken(conn, e);
+        }
+    }
+
+    private void write(Connection conn) throws IOException {
+        while (!conn.out.isEmpty()) {
+            ByteBuffer out = conn.out.peek();
+            if (conn.channel.write(out) > 0) conn.lastActivity = System.currentTimeMillis();
+            if (out.hasRemaining()) return;
+            conn.out.poll();
+        }
+        interest(conn);
+    }
+
+    private void read(Connection conn) throws IOException {
+        readBuffer.clear();
+        int read = conn.channel.read(readBuffer);
+        if (read == -1) {
+            if (!conn.calls.isEmpty() && conn.parser.isUntilClose()) {
+                conn.parser.finishAtClose();
+                finish(conn, false);
+                return;
+            }
+            broken(conn, new EOFException("Connection closed by server"));
+            return;
+        }
+
+        // data on an idle connection isn't a response to anything
+        if (conn.calls.isEmpty()) {
+            close(conn);
+            return;
+        }
+
+        readBuffer.flip();
+        if (read > 0) {
+            conn.received = true;
+            conn.lastActivity = System.currentTimeMillis();
+        }
+        // a single read can carry the end of a response and the following pipelined ones
+        while (!conn.closed && !conn.calls.isEmpty() && conn.parser.feed(readBuffer)) {
+            finish(conn, conn.parser.keepAlive);
+            if (readBuffer.hasRemaining()) conn.received = true;
+        }
+        if (!conn.closed && conn.calls.isEmpty() && readBuffer.hasRemaining()) close(conn);
+    }
+
+    private void finish(Connection conn, boolean keepAlive) {
+        Call call = conn.calls.poll();
+        ResponseParser parser = conn.parser;
+        conn.parser = null;
+        call.connection = null;
+
+        if (keepAlive) {
+            conn.reused = true;
+            Call next = conn.calls.peek();
+            if (next != null) {
+                conn.parser = new ResponseParser(next.head);
+                conn.received = false;
+            }
+            else {
+                conn.idleSince = System.currentTimeMillis();
+                conn.route.idle.add(conn);
+            }
+        }
+        else {
+            // the server closes after this response: the pipelined requests go to another connection
+            requeue(conn.route, unanswered(conn));
+            close(conn);
+        }
+
+        complete(call, parser);
+        dispatch(conn.route);
+    }
+
+    /**
+     * The connection failed or was closed before the end of the response.
+     */
+    private void broken(Connection conn, IOException e) {
+        broken(conn, e, true);
+    }
+
+    /**
+     * @param retry false if the first request must not be sent again even if it looks safe
+     */
+    private void broken(Connection conn, IOException e, boolean retry) {
+        List<Call> calls = unanswered(conn);
+        close(conn);
+
+        if (!calls.isEmpty()) {
+            Call call = calls.remove(0);
+            // the server may not support pipelining: its requests are sent one at a time from now on
+            if (!calls.isEmpty()) conn.route.noPipelining = true;
+            requeue(conn.route, calls);
+
+            // a kept-alive connection closed by the server while idle: without a body the request
+            // is safe to send again on a fresh connection
+            if (retry && conn.reused && !conn.received && !call.retried && call.exchange.getBody() == null) {
+                call.retried = true;
+                conn.route.waiting.addFirst(call);
+            }
+            else {
+                fail(call, e);
+            }
+        }
+
+        dispatch(conn.route);
+    }
+
+    private void cancel(Call call) {
+        if (call.done) return;
+
+        Route route = routes.get(call.route);
+        if (route != null) route.waiting.remove(call);
+
+        Connection conn = call.connection;
+        if (conn != null) {
+            conn.calls.remove(call);
+            // the response may be half read: the other requests of the connection start again
+            requeue(conn.route, unanswered(conn));
+            close(conn);
+        }
+
+        fail(call, new CancellationException("Request cancelled"));
+        if (route != null) dispatch(route);
+    }
+
+    /**
+     * Detach the requests of <code>conn</code> still waiting for their response.
+     */
+    private static List<Call> unanswered(Connection conn) {
+        List<Call> calls = new ArrayList<>(conn.calls);
+        conn.calls.clear();
+        conn.out.clear();
+        conn.parser = null;
+        for (Call call : calls) call.connection = null;
+        return calls;
+    }
+
+    /**
+     * Put <code>calls</code> back at the head of the route queue, in their order. Only idempotent
+     * requests are ever behind another one on a connection.
+     */
+    private static void requeue(Route route, List<Call> calls) {
+        for (int i = calls.size() - 1; i >= 0; i--) route.waiting.addFirst(calls.get(i));
+    }
+
+    private void close(Connection conn) {
+        if (conn.closed) return;
+        conn.closed = true;
+
+        conn.route.connections.remove(conn);
+        conn.route.idle.remove(conn);
+        openConnections.decrementAndGet();
+        if (conn.key != null) conn.key.cancel();
+        try {
+            conn.channel.close();
+        }
+        catch (IOException e) {
+            // already unusable
+        }
+    }
+
+    /**
+     * Fail the connections that exceeded the connect timeout, or the read timeout of the request
+     * they are answering.
+     * @return long milliseconds until the next timeout, at most the select timeout
+     */
+    private long checkTimeouts(long now) {
+        long wait = SELECT_TIMEOUT_MILLIS;
+        List<Connection> expired = null;
+
+        for (Route route : routes.values()) {
+            for (Connection conn : route.connections) {
+                long timeout;
+                if (!conn.connected) {
+                    timeout = conn.connectDeadline > 0 ? conn.connectDeadline - now : SELECT_TIMEOUT_MILLIS;
+                }
+                else if (!conn.calls.isEmpty() && conn.calls.peek().exchange.getReadTimeout() > 0) {
+                    timeout = conn.lastActivity + conn.calls.peek().exchange.getReadTimeout() - now;
+                }
+                else {
+                    continue;
+                }
+
+                if (timeout <= 0) {
+                    if (expired == null) expired = new ArrayList<>();
+                    expired.add(conn);
+                }
+                else {
+                    wait = Math.min(wait, timeout);
+                }
+            }
+        }
+
+        if (expired != null) {
+            for (Connection conn : expired) {
+                // a server that doesn't answer isn't tried again by the transport
+                broken(conn, new SocketTimeoutException(conn.connected ? "Read timed out" : "Connect timed out"), false);
+            }
+        }
+        return wait;
+    }
+
+    private void evictIdle(long now) {
+        for (Route route : routes.values()) {
+            Iterator<Connection> idle = route.idle.iterator();
+            while (idle.hasNext()) {
+                Connection conn = idle.next();
+                if (now - conn.idleSince >= keepAliveMillis) {
+                    idle.remove();
+                    close(conn);
+                }
+            }
+        }
+    }
+
+    private void complete(final Call call, final ResponseParser parser) {
+        call.done = true;
+        completeLater(call, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] body = parser.body.toByteArray();
+                    call.future.complete(call.exchange.readResponse(parser.code, parser.headers(),
+                            new ByteArrayInputStream(body), body.length));
+                }
+                catch (Exception e) {
+                    call.future.fail(e);
+                }
+            }
+        });
+    }
+
+    private void fail(final Call call, final Exception e) {
+        call.done = true;
+        completeLater(call, new Runnable() {
+            @Override
+            public void run() {
+                call.future.fail(e);
+            }
+        });
+    }
+
+    private void completeLater(Call call, Runnable completion) {
+        activeRequests.decrementAndGet();
+        try {
+            completions.execute(completion);
+        }
+        catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * A request waiting for, or using, a connection.
+     */
+    private static final class Call {
+        final ElfWsExchange exchange;
+        final ElfWsFuture future;
+        final String route;
+        final InetSocketAddress address;
+        final ByteBuffer request;
+        /** safe to send again, so it can be pipelined */
+        final boolean idempotent;
+        /** the response has no body */
+        final boolean head;
+        Connection connection;
+        boolean retried;
+        boolean done;
+
+        Call(ElfWsExchange exchange, ElfWsFuture future, String route, InetSocketAddress address, ByteBuffer request) {
+            this.exchange = exchange;
+            this.future = future;
+            this.route = route;
+            this.address = address;
+            this.request = request;
+            head = "HEAD".equals(exchange.getMethod());
+            idempotent = exchange.getBody() == null && (head || "GET".equals(exchange.getMethod()));
+        }
+    }
+
+    private static final class Route {
+        final List<Connection> connections = new ArrayList<>();
+        final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        final ArrayDeque<Call> waiting = new ArrayDeque<>();
+        boolean noPipelining;
+    }
+
+    private static final class Connection {
+        final Route route;
+        final SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        /** requests sent or being sent, in the order of their responses */
+        final ArrayDeque<Call> calls = new ArrayDeque<>();
+        /** requests still to write */
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        /** parser of the response to the first of the calls */
+        ResponseParser parser;
+        /** bytes of the current response have been received */
+        boolean received;
+        /** the connection already carried a response */
+        boolean reused;
+        boolean closed;
+        long idleSince;
+        /** when the connection attempt fails, 0 if there is no connect timeout */
+        long connectDeadline;
+        /** last time bytes were written or read, for the read timeout */
+        long lastActivity;
+
+        Connection(Route route, SocketChannel channel) {
+            this.route = route;
+            this.channel = channel;
+        }
+
+        /**
+         * True if a GET can be written behind the requests in flight.
+         */
+        boolean acceptsPipelined() {
+            for (Call call : calls) {
+                if (!call.idempotent) return false;
+            }
+            return parser == null || parser.mayKeepAlive();
+        }
+    }
+
+    /**
+     * Incremental parser of an HTTP/1.1 response, fed with the bytes as they arrive.
+     */
+    static final class ResponseParser {
+        private static final int STATUS = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;
+        private static final int TRAILERS = 6;
+        private static final int UNTIL_CLOSE = 7;
+        private static final int DONE = 8;
+
+        private final boolean head;
+        private int state = STATUS;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        private long remaining;
+        private String statusLine;
+        private String version;
+        private final Map<String, List<String>> fields = new LinkedHashMap<>();
+
+        int code;
+        boolean keepAlive;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        /**
+         * @param head true for the response to a HEAD request, which never has a body
+         */
+        ResponseParser(boolean head) {
+            this.head = head;
+        }
+
+        /**
+         * Consume the bytes of <code>in</code> that belong to this response.
+         * @return true when the response is complete
+         */
+        boolean feed(ByteBuffer in) throws IOException {
+            while (in.hasRemaining() && state != DONE) {
+                switch (state) {
+                    case BODY:
+                    case CHUNK_DATA: {
+                        int n = (int) Math.min(remaining, in.remaining());
+                        copy(in, n);
+                        remaining -= n;
+                        if (remaining == 0) state = state == BODY ? DONE : CHUNK_END;
+                        break;
+                    }
+                    case UNTIL_CLOSE:
+                        copy(in, in.remaining());
+                        break;
+                    default: {
+                        String text = readLine(in);
+                        if (text != null) onLine(text);
+                    }
+                }
+            }
+            return state == DONE;
+        }
+
+        /**
+         * False once the headers say the connection is closed after this response.
+         */
+        boolean mayKeepAlive() {
+            return state == STATUS || state == HEADERS || keepAlive;
+        }
+
+        boolean isUntilClose() {
+            return state == UNTIL_CLOSE;
+        }
+
+        void finishAtClose() {
+            state = DONE;
+        }
+
+        /**
+         * Headers in the form of <code>HttpURLConnection</code>, the status line under the null key.
+         */
+        Map<String, List<String>> headers() {
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            headers.put(null, Collections.singletonList(statusLine));
+            for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+                headers.put(field.getKey(), Collections.unmodifiableList(field.getValue()));
+            }
+            return headers;
+        }
+
+        private void copy(ByteBuffer in, int n) {
+            if (in.hasArray()) {
+                body.write(in.array(), in.arrayOffset() + in.position(), n);
+                in.position(in.position() + n);
+            }
+            else {
+                byte[] buffer = ElfWsUtil.threadBuffer();
+                while (n > 0) {
+                    int chunk = Math.min(n, buffer.length);
+                    in.get(buffer, 0, chunk);
+                    body.write(buffer, 0, chunk);
+                    n -= chunk;
+                }
+            }
+        }
+
+        private String readLine(ByteBuffer in) throws IOException {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    line.reset();
+                    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+                }
+                line.write(b);
+                if (line.size() > MAX_LINE_LENGTH) throw new IOException("Response line too long");
+            }
+            return null;
+        }
+
+        private void onLine(String text) throws IOException {
+            switch (state) {
+                case STATUS:
+                    if (text.isEmpty()) return;
+                    String[] parts = text.split(" ", 3);
+                    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) throw new IOException("Invalid status line: " + text);
+                    try {
+                        code = Integer.parseInt(parts[1]);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Invalid status line: " + text);
+                    }
+                    statusLine = text;
+                    version = parts[0];
+                    state = HEADERS;
+                    return;
+
+                case HEADERS:
+                    if (text.isEmpty()) {
+                        endOfHeaders();
+                        return;
+                    }
+                    int colon = text.indexOf(':');
+                    if (colon <= 0) throw new IOException("Invalid header: " + text);
+                    String name = text.substring(0, colon).trim();
+                    List<String> values = fields.get(name);
+                    if (values == null) {
+                        values = new ArrayList<>(1);
+                        fields.put(name, values);
+                    }
+                    values.add(text.substring(colon + 1).trim());
+                    return;
+
+                case CHUNK_SIZE:
+                    int extension = text.indexOf(';');
+                    String size = (extension >= 0 ? text.substring(0, extension) : text).trim();
+                    try {
+                        remaining = Long.parseLong(size, 16);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("Invalid chunk size: " + text);
+                    }
+                    state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                    return;
+
+                case CHUNK_END:
+                    if (!text.isEmpty()) throw new IOException("Invalid chunk end");
+                    state = CHUNK_SIZE;
+                    return;
+
+                case TRAILERS:
+                    if (text.isEmpty()) state = DONE;
+                    return;
+
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private void endOfHeaders() throws IOException {
+            // interim responses (100 Continue) are followed by the real one
+            if (code >= 100 && code < 200 && code != 101) {
+                fields.clear();
+                state = STATUS;
+                return;
+            }
+
+            String connection = field("Connection");
+            if ("HTTP/1.0".equals(version))
+                keepAlive = connection != null && connection.toLowerCase(Locale.US).contains("keep-alive");
+            else
+                keepAlive = connection == null || !connection.toLowerCase(Locale.US).contains("close");
+
+            String transferEncoding = field("Transfer-Encoding");
+            String contentLength = field("Content-Length");
+            if (head || code == 204 || code == 304) {
+                state = DONE;
+            }
+            else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                state = CHUNK_SIZE;
+            }
+            else if (contentLength != null) {
+                try {
+                    remaining = Long.parseLong(contentLength.trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + contentLength);
+                }
+                state = remaining > 0 ? BODY : DONE;
+            }
+            else {
+                state = UNTIL_CLOSE;
+                keepAlive = false;
+            }
+        }
+
+        private String field(String name) {
+            for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+                if (name.equalsIgnoreCase(field.getKey()) && !field.getValue().isEmpty()) return field.getValue().get(0);
+            }
+            return null;
+        }
+    }
+
+    private static final class DaemonFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String name;
+
+        DaemonFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the tasks waiting for a worker of an
+ * {@link com.zagonico.elfws.ElfWsDispatcher ElfWsDispatcher}: the most urgent
+ * {@link com.zagonico.elfws.ElfWsRequest.Priority Priority} first, in submission order within
+ * the same priority. A task waiting for <code>agingMillis</code> is treated as if it had the next
+ * higher priority, so that a steady flow of urgent tasks cannot starve the others forever.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+final class ElfWsPriorityQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    /**
+     * A task with its priority and the future of its request, failed if the task is discarded.
+     */
+    static final class Task implements Runnable {
+        final Runnable task;
+        final ElfWsRequest.Priority priority;
+        final ElfWsFuture future;
+        /** guarded by the lock of the queue */
+        long enqueuedAt;
+
+        Task(Runnable task, ElfWsRequest.Priority priority, ElfWsFuture future) {
+            this.task = task;
+            this.priority = priority;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        /**
+         * The task will never run: its request fails.
+         */
+        void discard() {
+            if (future != null) future.fail(new RejectedExecutionException("Request discarded by the dispatcher"));
+        }
+    }
+
+    private final int capacity;
+    private volatile long agingMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /** a queue per priority, guarded by lock */
+    private final List<ArrayDeque<Task>> levels = new ArrayList<>();
+    private int count;
+
+    ElfWsPriorityQueue(int capacity, long agingMillis) {
+        this.capacity = capacity;
+        this.agingMillis = agingMillis;
+        for (int i = 0; i < ElfWsRequest.Priority.values().length; i++) {
+            levels.add(new ArrayDeque<Task>());
+        }
+    }
+
+    void setAgingMillis(long agingMillis) {
+        this.agingMillis = agingMillis;
+    }
+
+    long getAgingMillis() {
+        return agingMillis;
+    }
+
+    /**
+     * Tasks of <code>priority</code> waiting.
+     */
+    int size(ElfWsRequest.Priority priority) {
+        lock.lock();
+        try {
+            return levels.get(priority.ordinal()).size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the oldest task of the lowest priority waiting, the one that can best be discarded,
+     * if it is not more urgent than <code>priority</code>.
+     * @return Runnable, null if there is no such task
+     */
+    Task pollLeastUrgent(ElfWsRequest.Priority priority) {
+        lock.lock();
+        try {
+            for (int level = levels.size() - 1; level >= priority.ordinal(); level--) {
+                Task task = levels.get(level).pollFirst();
+                if (task != null) {
+                    removed(task);
+                    return task;
+                }
+            }
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        if (runnable == null) throw new NullPointerException();
+
+        lock.lock();
+        try {
+            if (count == capacity) return false;
+
+            enqueue(runnable);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        if (runnable == null) throw new NullPointerException();
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0) return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(runnable);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) throws InterruptedException {
+        if (runnable == null) throw new NullPointerException();
+
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) notFull.await();
+            enqueue(runnable);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) notEmpty.await();
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            int level = nextLevel();
+            return level < 0 ? null : levels.get(level).peekFirst();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+
+        lock.lock();
+        try {
+            for (ArrayDeque<Task> level : levels) {
+                Iterator<Task> tasks = level.iterator();
+                while (tasks.hasNext()) {
+                    Task task = tasks.next();
+                    if (task == o) {
+                        tasks.remove();
+                        removed(task);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+
+        lock.lock();
+        try {
+            int drained = 0;
+            while (count > 0 && drained < maxElements) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterator on a snapshot of the queue, in no particular order.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (ArrayDeque<Task> level : levels) {
+                snapshot.addAll(level);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        return new Iterator<Runnable>() {
+            private final Iterator<Runnable> iterator = snapshot.iterator();
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = iterator.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                ElfWsPriorityQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private void enqueue(Runnable runnable) {
+        Task task = runnable instanceof Task ? (Task) runnable : new Task(runnable, ElfWsRequest.Priority.NORMAL, null);
+        task.enqueuedAt = System.nanoTime();
+        levels.get(task.priority.ordinal()).addLast(task);
+        count++;
+        notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        return removed(levels.get(nextLevel()).pollFirst());
+    }
+
+    private Runnable removed(Task task) {
+        count--;
+        notFull.signal();
+        return task;
+    }
+
+    /**
+     * Priority of the task to run next: the most urgent one, counting the aging of the oldest
+     * task of each priority. The rank of a task drops continuously with its wait, one level per
+     * <code>agingMillis</code>; on a tie the more urgent priority wins.
+     * @return int index of the level, -1 if the queue is empty
+     */
+    private int nextLevel() {
+        long now = System.nanoTime();
+        long aging = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+
+        int best = -1;
+        double bestRank = Double.MAX_VALUE;
+        for (int level = 0; level < levels.size(); level++) {
+            Task head = levels.get(level).peekFirst();
+            if (head == null) continue;
+
+            double rank = aging > 0 ? level - (now - head.enqueuedAt) / (double) aging : level;
+            if (rank < bestRank) {
+                bestRank = rank;
+                best = level;
+            }
+        }
+        return best;
+    }
+}
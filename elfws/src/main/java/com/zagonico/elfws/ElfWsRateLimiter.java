@@ -0,0 +1,273 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import com.zagonico.elfws.exception.ElfWsRateLimitException;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side rate limiter, set on a client with
+ * {@link com.zagonico.elfws.ElfWsClient#setRateLimiter(ElfWsRateLimiter) setRateLimiter}.
+ *
+ * The requests whose url starts with the prefix of a {@link #setLimit(String, double, int) limit}
+ * take a token from its bucket, refilled at <code>permitsPerSecond</code> up to
+ * <code>burst</code> tokens. Without a token the request waits for the next one, or fails with
+ * an {@link com.zagonico.elfws.exception.ElfWsRateLimitException ElfWsRateLimitException} if the
+ * wait would be longer than {@link #setMaxWait(long) maxWait}. The longest matching prefix
+ * applies, so a limit can cover a whole host or a single path.
+ *
+ * A <code>429 Too Many Requests</code> means the real limit of the server is lower: the bucket
+ * pauses for the <code>Retry-After</code> of the response and its rate is reduced by a quarter,
+ * then raised back by 1% of the configured rate at every other response. Hosts without a limit
+ * are only paused. Waits happen before the connection is opened, in the thread of the request
+ * for a blocking transport, without holding a thread for a non blocking one.
+ *
+ * <code>
+ *     ElfWsRateLimiter rateLimiter = new ElfWsRateLimiter();
+ *     rateLimiter.setLimit("https://api.mydomain.com/", 10, 20);
+ *     rateLimiter.setLimit("https://api.mydomain.com/search", 1, 2);
+ *     client.setRateLimiter(rateLimiter);
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsRateLimiter {
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10 * 1000;
+
+    /** the rate after a 429 is this fraction of the previous one */
+    private static final double DECREASE_FACTOR = 0.75;
+    /** every other response raises the rate by this fraction of the configured one */
+    private static final double RECOVERY_STEP = 0.01;
+    /** the rate is never reduced below this fraction of the configured one */
+    private static final double MIN_RATE_FACTOR = 0.05;
+    /** hosts without a limit paused by a 429 that are remembered */
+    private static final int MAX_PAUSED_HOSTS = 64;
+
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+
+    /** buckets by url prefix, guarded by this */
+    private final Map<String, Bucket> buckets = new LinkedHashMap<>();
+    private final Map<String, Long> pausedHosts = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_PAUSED_HOSTS;
+        }
+    };
+
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**
+     * Limit the requests whose url starts with <code>urlPrefix</code>, replacing its previous
+     * limit.
+     *
+     * @param urlPrefix
+     *        prefix of the urls, e.g. <code>https://api.mydomain.com/</code>
+     *
+     * @param permitsPerSecond
+     *        requests per second in the long run
+     *
+     * @param burst
+     *        requests that can be sent at once after a quiet period
+     */
+    public synchronized void setLimit(String urlPrefix, double permitsPerSecond, int burst) {
+        if (urlPrefix == null) throw new IllegalArgumentException("Url prefix cannot be null");
+        if (permitsPerSecond <= 0 || burst < 1) throw new IllegalArgumentException("Invalid rate limit");
+
+        buckets.put(urlPrefix, new Bucket(permitsPerSecond, burst));
+    }
+
+    public synchronized void removeLimit(String urlPrefix) {
+        buckets.remove(urlPrefix);
+    }
+
+    /**
+     * Longest wait for a token: a request that should wait more fails immediately.
+     * @param millis milliseconds, 0 to never wait
+     */
+    public void setMaxWait(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Invalid wait");
+        maxWaitMillis = millis;
+    }
+
+    public long getMaxWait() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Current rate of the requests to <code>address</code>, lower than the configured one after
+     * a 429.
+     * @param address url of a request
+     * @return double requests per second, -1 if not limited
+     */
+    public synchronized double getRate(String address) {
+        Bucket bucket = bucket(address);
+        return bucket != null ? bucket.rate : -1;
+    }
+
+    /**
+     * Requests that waited for a token.
+     * @return long
+     */
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    /**
+     * Requests failed because the wait for a token was too long.
+     * @return long
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * <code>429 Too Many Requests</code> responses received.
+     * @return long
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * Take a token for a request to <code>url</code>.
+     * @return long milliseconds the request must wait before being sent
+     * @throws ElfWsRateLimitException if the wait would be longer than the maximum
+     */
+    long reserve(URL url) {
+        String address = url.toString();
+        long now = System.nanoTime();
+        long wait;
+        synchronized (this) {
+            wait = pauseMillis(host(url), System.currentTimeMillis());
+
+            Bucket bucket = bucket(address);
+            if (bucket != null) wait = Math.max(wait, bucket.waitMillis(now));
+
+            if (wait > maxWaitMillis) {
+                rejectedCount.incrementAndGet();
+                throw new ElfWsRateLimitException("Rate limit exceeded for " + address);
+            }
+            if (bucket != null) bucket.take();
+        }
+
+        if (wait > 0) delayedCount.incrementAndGet();
+        return wait;
+    }
+
+    /**
+     * Adapt the limits to the response received from <code>url</code>.
+     */
+    void onResponse(URL url, ElfWsResponse response) {
+        boolean throttled = response.getResponseCode() == 429;
+        long retryAfter = throttled ? ElfWsRetryPolicy.retryAfter(response) : -1;
+        if (throttled) throttledCount.incrementAndGet();
+
+        synchronized (this) {
+            Bucket bucket = bucket(url.toString());
+            if (bucket != null) {
+                if (throttled)
+                    bucket.throttled(System.nanoTime(), retryAfter);
+                else
+                    bucket.recover();
+            }
+            else if (throttled && retryAfter > 0) {
+                pausedHosts.put(host(url), System.currentTimeMillis() + retryAfter);
+            }
+        }
+    }
+
+    private Bucket bucket(String address) {
+        Bucket bucket = null;
+        int length = -1;
+        for (Map.Entry<String, Bucket> prefix : buckets.entrySet()) {
+            if (address.startsWith(prefix.getKey()) && prefix.getKey().length() > length) {
+                bucket = prefix.getValue();
+                length = prefix.getKey().length();
+            }
+        }
+        return bucket;
+    }
+
+    private long pauseMillis(String host, long now) {
+        Long until = pausedHosts.get(host);
+        if (until == null) return 0;
+
+        if (until <= now) {
+            pausedHosts.remove(host);
+            return 0;
+        }
+        return until - now;
+    }
+
+    private static String host(URL url) {
+        int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * Token bucket of a limit, guarded by the limiter. Tokens go below zero when requests are
+     * waiting for them.
+     */
+    private static final class Bucket {
+        final double configuredRate;
+        final int burst;
+        double rate;
+        double tokens;
+        long lastRefill = System.nanoTime();
+
+        Bucket(double rate, int burst) {
+            configuredRate = rate;
+            this.rate = rate;
+            this.burst = burst;
+            tokens = burst;
+        }
+
+        long waitMillis(long now) {
+            tokens = Math.min(burst, tokens + rate * (now - lastRefill) / 1e9);
+            lastRefill = now;
+
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * 1000);
+        }
+
+        void take() {
+            tokens -= 1;
+        }
+
+        void throttled(long now, long retryAfterMillis) {
+            waitMillis(now);
+            rate = Math.max(configuredRate * MIN_RATE_FACTOR, rate * DECREASE_FACTOR);
+            // the next request waits for Retry-After, or at least one token
+            tokens = Math.min(tokens, retryAfterMillis > 0 ? 1 - rate * retryAfterMillis / 1000 : 0);
+        }
+
+        void recover() {
+            rate = Math.min(configuredRate, rate + configuredRate * RECOVERY_STEP);
+        }
+    }
+}
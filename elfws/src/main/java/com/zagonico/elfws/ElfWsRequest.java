@@ -0,0 +1,664 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import android.content.Context;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+
+import com.zagonico.elfws.ElfWsClient.ElfWsAction;
+import com.zagonico.elfws.exception.ElfWsException;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable description of a request to a web service. Since it has no state, a request can be
+ * executed many times and by many threads at once with the same
+ * {@link com.zagonico.elfws.ElfWsClient ElfWsClient}.
+ *
+ * <code>
+ *     ElfWsRequest request = new ElfWsRequest.Builder("http://mydomain.com/ws")
+ *             .addGet(getMap)
+ *             .addPost(postMap)
+ *             .addFile(file, null, "attachment")
+ *             .build();
+ *
+ *     ElfWsResponse response = client.execute(request);
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public final class ElfWsRequest {
+    /**
+     * Urgency of a request, deciding the order in which the requests waiting for a worker of the
+     * {@link com.zagonico.elfws.ElfWsDispatcher ElfWsDispatcher} are sent.
+     */
+    public enum Priority {
+        /** a user is waiting for the response */
+        INTERACTIVE,
+        /** ordinary traffic */
+        NORMAL,
+        /** bulk work, prefetch and synchronization that can wait, never run in the caller's thread */
+        BACKGROUND,
+    };
+
+    private final String url;
+    private final Set<ElfWsAction> actions;
+    private final Map<String, String> getParameters;
+    private final Map<String, String> postParameters;
+    private final Map<String, String> addictionalHeaders;
+    private final String jsonData;
+    private final String xmlData;
+    private final List<ElfWsUpload> uploads;
+    private final ElfWsBody body;
+    private final File downloadFile;
+    private final File downloadDirectory;
+    private final boolean download;
+    private final long connectTimeout;
+    private final long readTimeout;
+    private final long deadline;
+    private final Boolean idempotent;
+    private final Priority priority;
+
+    private ElfWsRequest(Builder builder) {
+        url = builder.url;
+        actions = Collections.unmodifiableSet(EnumSet.copyOf(builder.actions));
+        getParameters = Collections.unmodifiableMap(new LinkedHashMap<>(builder.getParameters));
+        postParameters = Collections.unmodifiableMap(new LinkedHashMap<>(builder.postParameters));
+        addictionalHeaders = Collections.unmodifiableMap(new LinkedHashMap<>(builder.addictionalHeaders));
+        jsonData = builder.jsonData;
+        xmlData = builder.xmlData;
+        uploads = Collections.unmodifiableList(new ArrayList<>(builder.uploads));
+        body = builder.body;
+        downloadFile = builder.downloadFile;
+        downloadDirectory = builder.downloadDirectory;
+        download = builder.download;
+        connectTimeout = builder.connectTimeout;
+        readTimeout = builder.readTimeout;
+        deadline = builder.deadline;
+        idempotent = builder.idempotent;
+        priority = builder.priority;
+    }
+
+    /**
+     * Base url of the web service, without GET parameters.
+     * @return String url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Url of the web service with GET parameters.
+     * @return String address
+     */
+    public String getAddress() {
+        if (!isGet()) return url;
+
+        return ElfWsUtil.addGetsToAddress(url, getParameters);
+    }
+
+    /**
+     * Http method of the request: POST if it has a body, otherwise GET.
+     * @return String method
+     */
+    public String getMethod() {
+        return hasBody() ? "POST" : "GET";
+    }
+
+    public Set<ElfWsAction> getActions() {
+        return actions;
+    }
+
+    public Map<String, String> getGetParameters() {
+        return getParameters;
+    }
+
+    public Map<String, String> getPostParameters() {
+        return postParameters;
+    }
+
+    public Map<String, String> getAddictionalHeaders() {
+        return addictionalHeaders;
+    }
+
+    public String getJsonData() {
+        return jsonData;
+    }
+
+    public String getXmlData() {
+        return xmlData;
+    }
+
+    public List<ElfWsUpload> getUploads() {
+        return uploads;
+    }
+
+    /**
+     * Body set with {@link Builder#addBody(ElfWsBody) addBody}, sent instead of the parameters.
+     * @return ElfWsBody, null if the body is made of parameters, json, xml or files
+     */
+    public ElfWsBody getBody() {
+        return body;
+    }
+
+    /**
+     * True if a successful response body is streamed to a file instead of being kept in memory.
+     * @return boolean
+     */
+    public boolean isDownload() {
+        return download;
+    }
+
+    /**
+     * File that receives the response body, null to use a temporary file.
+     * @return File
+     */
+    public File getDownloadFile() {
+        return downloadFile;
+    }
+
+    /**
+     * Directory of the temporary file that receives the response body, null for the default
+     * temporary directory.
+     * @return File
+     */
+    public File getDownloadDirectory() {
+        return downloadDirectory;
+    }
+
+    /**
+     * Timeout of the connection to the server.
+     * @return long milliseconds, 0 for no timeout, -1 for the default of the client
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Maximum time without receiving data while waiting for the response.
+     * @return long milliseconds, 0 for no timeout, -1 for the default of the client
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Maximum time of the whole request, from its submission to the end of the response.
+     * @return long milliseconds, 0 for no deadline, -1 for the default of the client
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * True if sending the request twice has the same effect as sending it once, so it can be
+     * retried: requests without a body, unless declared otherwise with
+     * {@link Builder#setIdempotent(boolean) setIdempotent}.
+     * @return boolean
+     */
+    public boolean isIdempotent() {
+        return idempotent != null ? idempotent : !hasBody();
+    }
+
+    /**
+     * Priority of the request while it waits for a worker.
+     * @return Priority, null for the default of the client
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public boolean isGet() {
+        return actions.contains(ElfWsAction.GET);
+    }
+
+    public boolean isPost() {
+        return actions.contains(ElfWsAction.POST);
+    }
+
+    public boolean isJson() {
+        return actions.contains(ElfWsAction.JSON_REQUEST);
+    }
+
+    public boolean isXml() {
+        return actions.contains(ElfWsAction.XML_REQUEST);
+    }
+
+    public boolean isUpload() {
+        return actions.contains(ElfWsAction.FILE_UPLOAD);
+    }
+
+    /**
+     * True if the request sends a body (POST parameters, files, json, xml or a prepared body).
+     * @return boolean
+     */
+    public boolean hasBody() {
+        return isPost() || isUpload() || isJson() || isXml() || body != null;
+    }
+
+    /**
+     * A builder initialized with the content of this request, to derive a modified copy.
+     * @return Builder
+     */
+    public Builder newBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Builder of {@link com.zagonico.elfws.ElfWsRequest ElfWsRequest}. Calls of the add methods
+     * are cumulative, like the ones of {@link com.zagonico.elfws.ElfWsClient ElfWsClient}. A
+     * builder is not thread safe, the requests it builds are.
+     */
+    public static final class Builder {
+        private String url;
+        private final Set<ElfWsAction> actions = EnumSet.noneOf(ElfWsAction.class);
+        private final Map<String, String> getParameters = new LinkedHashMap<>();
+        private final Map<String, String> postParameters = new LinkedHashMap<>();
+        private final Map<String, String> addictionalHeaders = new LinkedHashMap<>();
+        private String jsonData;
+        private String xmlData;
+        private final List<ElfWsUpload> uploads = new ArrayList<>();
+        private ElfWsBody body;
+        private File downloadFile;
+        private File downloadDirectory;
+        private boolean download;
+        private long connectTimeout = -1;
+        private long readTimeout = -1;
+        private long deadline = -1;
+        private Boolean idempotent;
+        private Priority priority;
+
+        public Builder() {
+            this((String) null);
+        }
+
+        /**
+         * @param url the ws url
+         */
+        public Builder(String url) {
+            this.url = url;
+        }
+
+        private Builder(ElfWsRequest request) {
+            url = request.url;
+            actions.addAll(request.actions);
+            getParameters.putAll(request.getParameters);
+            postParameters.putAll(request.postParameters);
+            addictionalHeaders.putAll(request.addictionalHeaders);
+            jsonData = request.jsonData;
+            xmlData = request.xmlData;
+            uploads.addAll(request.uploads);
+            body = request.body;
+            downloadFile = request.downloadFile;
+            downloadDirectory = request.downloadDirectory;
+            download = request.download;
+            connectTimeout = request.connectTimeout;
+            readTimeout = request.readTimeout;
+            deadline = request.deadline;
+            idempotent = request.idempotent;
+            priority = request.priority;
+        }
+
+        public Builder setUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Add GET parameters.
+         * @param args get params to be added
+         * @return this builder
+         */
+        public Builder addGet(Map<String, String> args) {
+            actions.add(ElfWsAction.GET);
+            if (args != null) getParameters.putAll(args);
+            return this;
+        }
+
+        /**
+         * Add POST parameters.
+         * @param args post params to be added
+         * @return this builder
+         */
+        public Builder addPost(Map<String, String> args) {
+            actions.add(ElfWsAction.POST);
+            if (args != null) postParameters.putAll(args);
+            return this;
+        }
+
+        /**
+         * Enqueue a file (from File).
+         *
+         * @param file
+         *        the file to be posted
+         *
+         * @param fileName
+         *        file name for this file. If null uses <code>file</code>'s filename
+         *
+         * @param fieldName
+         *        field name for this file
+         *
+         * @return this builder
+         * @throws ElfWsException if the file doesn't exist
+         */
+        public Builder addFile(File file, String fileName, String fieldName) {
+            if (file == null || !file.exists() || file.isDirectory()) throw new ElfWsException("File not found: " + file);
+
+            return addUpload(new ElfWsUpload(ElfWsUpload.fromFile(file), fieldName,
+                    fileName != null ? fileName : file.getName(),
+                    ElfWsUtil.getMimeType(file.getAbsolutePath())));
+        }
+
+        /**
+         * Enqueue a file (from String).
+         *
+         * @param content
+         *        the file content to be posted
+         *
+         * @param fileName
+         *        file name for this file
+         *
+         * @param fieldName
+         *        field name for this file
+         *
+         * @param mime
+         *        mime for this file
+         *
+         * @return this builder
+         */
+        public Builder addFile(String content, String fileName, String fieldName, String mime) {
+            if (content == null) throw new ElfWsException("File content cannot be null");
+
+            return addUpload(new ElfWsUpload(content.getBytes(StandardCharsets.UTF_8), fieldName, fileName, mime));
+        }
+
+        /**
+         * Enqueue a file (from InputStream). The stream is read only while the request is sent
+         * and can be read once, so the request cannot be sent again.
+         *
+         * @param inputStream
+         *        inputStream with the file content to be posted
+         *
+         * @param fileName
+         *        file name for this file
+         *
+         * @param fieldName
+         *        field name for this file
+         *
+         * @param mime
+         *        mime for this file
+         *
+         * @return this builder
+         */
+        public Builder addFile(InputStream inputStream, String fileName, String fieldName, String mime) {
+            if (inputStream == null) throw new ElfWsException("Input stream cannot be null");
+
+            return addUpload(new ElfWsUpload(ElfWsUpload.fromStream(inputStream, -1), fieldName, fileName, mime));
+        }
+
+        /**
+         * Enqueue a file (from Uri). If <code>fileName</code> is null it uses the
+         * <code>file</code>'s filename. Context is necessary to solve the Uri.
+         *
+         * @param context
+         *        context to resolve uri properties
+         *
+         * @param file
+         *        the file to be posted
+         *
+         * @param fileName
+         *        file name for this file
+         *
+         * @param fieldName
+         *        field name for this file
+         *
+         * @return this builder
+         * @throws ElfWsException if the uri properties cannot be resolved
+         */
+        public Builder addFile(Context context, Uri file, String fileName, String fieldName) {
+            if (file == null) throw new ElfWsException("Uri cannot be null");
+
+            try {
+                return addUpload(new ElfWsUpload(ElfWsUpload.fromUri(context, file), fieldName,
+                        fileName != null ? fileName : ElfWsUtil.getInfoFromUri(context, file, OpenableColumns.DISPLAY_NAME),
+                        ElfWsUtil.getMimeFromUri(context, file)));
+            }
+            catch (Exception e) {
+                throw new ElfWsException("Cannot resolve uri " + file + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Enqueue an already prepared upload.
+         * @param upload the file to be posted
+         * @return this builder
+         */
+        public Builder addUpload(ElfWsUpload upload) {
+            if (upload == null) throw new ElfWsException("Upload cannot be null");
+
+            actions.add(ElfWsAction.FILE_UPLOAD);
+            uploads.add(upload);
+            return this;
+        }
+
+        /**
+         * Add JSON data that will be posted. The object is serialized now, later changes to it
+         * don't affect the request.
+         * @param json the json object
+         * @return this builder
+         */
+        public Builder addJson(JSONObject json) {
+            if (json == null) throw new ElfWsException("Json cannot be null");
+
+            actions.add(ElfWsAction.JSON_REQUEST);
+            jsonData = json.toString();
+            return this;
+        }
+
+        /**
+         * Add XML data that will be posted.
+         * @param xml the xml object
+         * @return this builder
+         */
+        public Builder addXml(String xml) {
+            if (xml == null) throw new ElfWsException("Xml cannot be null");
+
+            actions.add(ElfWsAction.XML_REQUEST);
+            xmlData = xml;
+            return this;
+        }
+
+        /**
+         * Post a body already prepared, with its own Content-Type (e.g. a multipart/mixed batch).
+         * It is sent as is, instead of POST parameters, files, json or xml.
+         * @param body the body
+         * @return this builder
+         */
+        public Builder addBody(ElfWsBody body) {
+            if (body == null) throw new ElfWsException("Body cannot be null");
+
+            this.body = body;
+            return this;
+        }
+
+        /**
+         * Add addictional headers to be added to the request.
+         * @param headers couples header - value
+         * @return this builder
+         */
+        public Builder setAddictionalHeaders(Map<String, String> headers) {
+            if (headers != null) addictionalHeaders.putAll(headers);
+            return this;
+        }
+
+        /**
+         * Stream the body of a successful response into <code>file</code>, overwriting it,
+         * instead of keeping it in memory. Error responses are still kept in memory.
+         * @param file the destination file
+         * @return this builder
+         */
+        public Builder downloadTo(File file) {
+            if (file == null) throw new ElfWsException("Download file cannot be null");
+
+            download = true;
+            downloadFile = file;
+            downloadDirectory = null;
+            return this;
+        }
+
+        /**
+         * Stream the body of a successful response into a new temporary file of
+         * <code>directory</code> (e.g. <code>context.getCacheDir()</code>). The caller deletes it.
+         * @param directory the directory, null for the default temporary directory
+         * @return this builder
+         */
+        public Builder downloadToTempFile(File directory) {
+            download = true;
+            downloadFile = null;
+            downloadDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Timeout of the connection to the server, instead of the one of the client.
+         * @param millis milliseconds, 0 for no timeout, -1 for the default of the client
+         * @return this builder
+         */
+        public Builder setConnectTimeout(long millis) {
+            connectTimeout = millis < 0 ? -1 : millis;
+            return this;
+        }
+
+        /**
+         * Maximum time without receiving data while waiting for the response, instead of the
+         * one of the client.
+         * @param millis milliseconds, 0 for no timeout, -1 for the default of the client
+         * @return this builder
+         */
+        public Builder setReadTimeout(long millis) {
+            readTimeout = millis < 0 ? -1 : millis;
+            return this;
+        }
+
+        /**
+         * Maximum time of the whole request, queueing in the dispatcher included, instead of the
+         * one of the client. When it expires the connection is closed and the request fails with
+         * a <code>TimeoutException</code>.
+         * @param millis milliseconds, 0 for no deadline, -1 for the default of the client
+         * @return this builder
+         */
+        public Builder setDeadline(long millis) {
+            deadline = millis < 0 ? -1 : millis;
+            return this;
+        }
+
+        /**
+         * Declare whether the request can be sent more than once, e.g. a POST carrying an
+         * idempotency key, or a GET with side effects. By default only requests without a body
+         * are idempotent.
+         * @param idempotent true if the request can be retried
+         * @return this builder
+         */
+        public Builder setIdempotent(boolean idempotent) {
+            this.idempotent = idempotent;
+            return this;
+        }
+
+        /**
+         * Priority of the request instead of the one of the client: an
+         * {@link Priority#INTERACTIVE INTERACTIVE} request is sent before the normal and
+         * background ones waiting for a worker.
+         * @param priority the priority, null for the default of the client
+         * @return this builder
+         */
+        public Builder setPriority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Reset specific parts of the request, see
+         * {@link com.zagonico.elfws.ElfWsClient#resetRequest(boolean, boolean, boolean, boolean, boolean, boolean) resetRequest}.
+         * @return this builder
+         */
+        public Builder reset(boolean get, boolean post, boolean file, boolean json, boolean xml, boolean headers) {
+            if (get) {
+                actions.remove(ElfWsAction.GET);
+                getParameters.clear();
+            }
+            if (post) {
+                actions.remove(ElfWsAction.POST);
+                postParameters.clear();
+                body = null;
+            }
+            if (file) {
+                actions.remove(ElfWsAction.FILE_UPLOAD);
+                uploads.clear();
+            }
+            if (json) {
+                actions.remove(ElfWsAction.JSON_REQUEST);
+                jsonData = null;
+            }
+            if (xml) {
+                actions.remove(ElfWsAction.XML_REQUEST);
+                xmlData = null;
+            }
+            if (headers) {
+                addictionalHeaders.clear();
+            }
+            return this;
+        }
+
+        /**
+         * Reset the parameters, the bodies and the headers, like all the parts of
+         * {@link #reset(boolean, boolean, boolean, boolean, boolean, boolean) reset}. The url, the
+         * download mode, the timeouts, the deadline, idempotency and priority are kept.
+         * @return this builder
+         */
+        public Builder reset() {
+            return reset(true, true, true, true, true, true);
+        }
+
+        public ElfWsRequest build() {
+            if (url == null || "".equals(url)) throw new IllegalStateException("No url specified");
+
+            return new ElfWsRequest(this);
+        }
+    }
+}
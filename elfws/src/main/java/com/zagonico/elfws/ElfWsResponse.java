@@ -25,8 +25,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -43,12 +54,19 @@ public class ElfWsResponse {
 
     private String filename;
     private String mime;
+    private byte[] body;
+    private File file;
     private String content;
     private JSONObject jsonObject;
     private JSONArray jsonArray;
     private int type;
+    /**
+     * True when json parsing has been done, or must be skipped.
+     */
+    private boolean jsonChecked;
     private int responseCode;
     private Map<String, List<String>> headers;
+    private boolean fromCache;
 
     public ElfWsResponse(int code, Map<String, List<String>> headers) {
         this.responseCode = code;
@@ -57,7 +75,8 @@ public class ElfWsResponse {
 
     /**
      * Add to response Content-Disposition with <code>filename</code>, Content-Type with
-     * <code>mime</code> and <code>content</code> body. This check for json in response.
+     * <code>mime</code> and <code>content</code> body. The json in response is parsed when
+     * first requested.
      * @param filename
      * @param mime
      * @param content
@@ -66,6 +85,40 @@ public class ElfWsResponse {
         addContentInfo(filename, mime, content, false);
     }
 
+    /**
+     * Add to response Content-Disposition with <code>filename</code>, Content-Type with
+     * <code>mime</code> and the raw <code>body</code> bytes. The text content is decoded
+     * from the body with the charset of <code>mime</code>. The json in response is parsed when
+     * first requested.
+     * @param filename
+     * @param mime
+     * @param body
+     */
+    protected synchronized void addContentInfo(String filename, String mime, byte[] body) {
+        this.filename = filename;
+        this.mime = mime;
+        this.body = body;
+        this.content = null;
+        resetJson(false);
+    }
+
+    /**
+     * Add to response Content-Disposition with <code>filename</code>, Content-Type with
+     * <code>mime</code> and the <code>file</code> where the body has been downloaded. The body
+     * is not loaded in memory, so content and json are not available.
+     * @param filename
+     * @param mime
+     * @param file
+     */
+    protected synchronized void addContentInfo(String filename, String mime, File file) {
+        this.filename = filename;
+        this.mime = mime;
+        this.file = file;
+        this.body = null;
+        this.content = null;
+        resetJson(true);
+    }
+
     /**
      * Add to response Content-Disposition with <code>filename</code>, Content-Type with
      * <code>mime</code> and <code>content</code> body. In this constructor you can skip
@@ -75,25 +128,98 @@ public class ElfWsResponse {
      * @param content
      * @param skipJsonCheck
      */
-    protected void addContentInfo(String filename, String mime, String content, boolean skipJsonCheck) {
+    protected synchronized void addContentInfo(String filename, String mime, String content, boolean skipJsonCheck) {
         this.filename = filename;
         this.mime = mime;
         this.content = content;
+        this.body = content != null ? content.getBytes(charset(mime)) : null;
+        resetJson(skipJsonCheck);
+    }
+
+    /**
+     * Copy of this response with its own headers and body, for a caller that must not see the
+     * changes made by the others to the same response.
+     */
+    synchronized ElfWsResponse copy() {
+        Map<String, List<String>> headersCopy = null;
+        if (headers != null) {
+            headersCopy = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                headersCopy.put(header.getKey(), header.getValue() != null ? new ArrayList<>(header.getValue()) : null);
+            }
+        }
+
+        ElfWsResponse copy = new ElfWsResponse(responseCode, headersCopy);
+        copy.filename = filename;
+        copy.mime = mime;
+        copy.body = body != null ? Arrays.copyOf(body, body.length) : null;
+        copy.file = file;
+        copy.content = content;
+        // the json is parsed again, its objects are mutable
+        copy.resetJson(jsonChecked && jsonObject == null && jsonArray == null);
+        copy.fromCache = fromCache;
+        return copy;
+    }
+
+    private void resetJson(boolean skipJsonCheck) {
         type = TYPE_FILE;
+        jsonObject = null;
+        jsonArray = null;
+        jsonChecked = skipJsonCheck;
+    }
+
+    /**
+     * Parse the body as json the first time type or json are requested. The Content-Type
+     * decides: json types are parsed, binary types are not, other types only if the body starts
+     * like a json object or array, so xml or files never pay a failed parse.
+     */
+    private void checkJson() {
+        if (jsonChecked) return;
+        jsonChecked = true;
+
+        if (body == null || isBinaryMime(mime)) return;
+
+        int first = firstSignificantByte(body);
+        if (first != '{' && first != '[') return;
 
-        if (!skipJsonCheck) {
-            try {
-                jsonObject = new JSONObject(content);
+        try {
+            if (first == '{') {
+                jsonObject = new JSONObject(getContent());
                 type = TYPE_JSON;
-            } catch (JSONException ex) {
-                try {
-                    jsonArray = new JSONArray(content);
-                    type = TYPE_JSONARRAY;
-                } catch (JSONException ex1) {
-                    type = TYPE_FILE;
-                }
             }
+            else {
+                jsonArray = new JSONArray(getContent());
+                type = TYPE_JSONARRAY;
+            }
+        }
+        catch (JSONException ex) {
+            type = TYPE_FILE;
+        }
+    }
+
+    private static boolean isBinaryMime(String mime) {
+        if (mime == null) return false;
+
+        String m = mime.toLowerCase(Locale.US);
+        if (m.contains("json")) return false;
+
+        return m.startsWith("image/") || m.startsWith("audio/") || m.startsWith("video/") || m.startsWith("font/")
+                || m.startsWith("application/octet-stream") || m.startsWith("application/pdf")
+                || m.startsWith("application/zip") || m.startsWith("application/gzip");
+    }
+
+    /**
+     * First byte that is not whitespace or part of a UTF-8 byte order mark, -1 if none.
+     */
+    private static int firstSignificantByte(byte[] body) {
+        int i = 0;
+        if (body.length >= 3 && (body[0] & 0xff) == 0xef && (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf) i = 3;
+
+        for (; i < body.length; i++) {
+            byte b = body[i];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return b;
         }
+        return -1;
     }
 
     /**
@@ -104,6 +230,35 @@ public class ElfWsResponse {
         return headers;
     }
 
+    /**
+     * First value of the header <code>name</code>, case insensitive.
+     * @param name header name
+     * @return String value, null if missing
+     */
+    public String getHeader(String name) {
+        if (headers == null || name == null) return null;
+
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True if the response has been served by the {@link com.zagonico.elfws.ElfWsCache ElfWsCache},
+     * with no request or with a conditional request answered 304.
+     * @return boolean
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    void setFromCache(boolean fromCache) {
+        this.fromCache = fromCache;
+    }
+
     /**
      * Response code
      * @return int response code
@@ -124,19 +279,100 @@ public class ElfWsResponse {
         return mime;
     }
 
-    public String getContent() {
+    /**
+     * Body of the response decoded as text, with the charset declared in the Content-Type
+     * (UTF-8 if missing). It is decoded on first use.
+     * @return String content
+     */
+    public synchronized String getContent() {
+        if (content == null && body != null) {
+            content = new String(body, charset(mime));
+        }
         return content;
     }
 
-    public JSONObject getJsonObject() {
+    /**
+     * Raw bytes of the body, as received. Use this for binary content.
+     * @return byte[] body, null if it has been downloaded to a {@link #getFile() file}
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * File that contains the body, when the request was made in download mode.
+     * @return File, null if the body is in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Map the downloaded file read-only in memory. Pages are loaded by the system on access,
+     * so this doesn't use heap whatever the size of the file.
+     * @return MappedByteBuffer, null if the body has not been downloaded to a file
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedByteBuffer mapFile() throws IOException {
+        if (file == null) return null;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Charset of the <code>charset</code> parameter of a Content-Type value.
+     * @param contentType Content-Type header value
+     * @return Charset, UTF-8 if missing or unsupported
+     */
+    static Charset charset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                String[] pair = param.trim().split("=", 2);
+                if (pair.length == 2 && "charset".equalsIgnoreCase(pair[0].trim())) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    }
+                    catch (Exception e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * The body as json object, parsed on first call.
+     * @return JSONObject, null if the body is not a json object
+     */
+    public synchronized JSONObject getJsonObject() {
+        checkJson();
         return jsonObject;
     }
 
-    public JSONArray getJsonArray() {
+    /**
+     * The body as json array, parsed on first call.
+     * @return JSONArray, null if the body is not a json array
+     */
+    public synchronized JSONArray getJsonArray() {
+        checkJson();
         return jsonArray;
     }
 
-    public int getType() {
+    /**
+     * Type of the body: {@link #TYPE_JSON TYPE_JSON}, {@link #TYPE_JSONARRAY TYPE_JSONARRAY} or
+     * {@link #TYPE_FILE TYPE_FILE}. Asking for it parses the json, if not done yet.
+     * @return int type
+     */
+    public synchronized int getType() {
+        checkJson();
         return type;
     }
 }
@@ -0,0 +1,318 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import com.zagonico.elfws.exception.ElfWsStreamRefusedException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * When and after how long a failed request is sent again, set on a client with
+ * {@link com.zagonico.elfws.ElfWsClient#setRetryPolicy(ElfWsRetryPolicy) setRetryPolicy}.
+ *
+ * A request is retried, up to <code>maxAttempts</code> attempts, when it fails with an
+ * <code>IOException</code> or its response has a retryable status code (408, 429, 502, 503 and
+ * 504 by default). Only idempotent requests are retried (see
+ * {@link com.zagonico.elfws.ElfWsRequest#isIdempotent() isIdempotent}), unless the connection
+ * could not be opened at all or the server refused the HTTP/2 stream, so it has never processed
+ * the request.
+ *
+ * The wait before attempt <i>n</i> is a random value between 0 and
+ * <code>initialBackoff * 2^(n-2)</code>, capped at <code>maxBackoff</code> ("full jitter"), so
+ * that the clients failing together don't retry together. A <code>Retry-After</code> header of
+ * the response is honoured instead, if not longer than <code>maxRetryAfter</code>.
+ *
+ * The retries are limited by a budget shared by all the clients using the policy: every request
+ * earns <code>budgetRatio</code> retries and every retry spends one, with
+ * <code>minRetriesPerSecond</code> granted anyway for low traffic. When the server is down the
+ * retries are then at most a fraction of the traffic, instead of multiplying it.
+ *
+ * <code>
+ *     ElfWsRetryPolicy retryPolicy = new ElfWsRetryPolicy(4, 500, 10000);
+ *     retryPolicy.setBudget(0.2, 5);
+ *     client.setRetryPolicy(retryPolicy);
+ * </code>
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsRetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+    public static final long DEFAULT_MAX_RETRY_AFTER_MILLIS = 60000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 5;
+
+    /** unused budget is kept for at most this many seconds of minimum retries */
+    private static final int BUDGET_CAP_SECONDS = 10;
+
+    private volatile int maxAttempts;
+    private volatile long initialBackoffMillis;
+    private volatile long maxBackoffMillis;
+    private volatile long maxRetryAfterMillis = DEFAULT_MAX_RETRY_AFTER_MILLIS;
+    private volatile Set<Integer> retryableStatusCodes = statusCodes(408, 429, 502, 503, 504);
+
+    /** budget, guarded by this */
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int minRetriesPerSecond = DEFAULT_MIN_RETRIES_PER_SECOND;
+    private double balance = BUDGET_CAP_SECONDS * DEFAULT_MIN_RETRIES_PER_SECOND;
+    private long lastRefill = System.nanoTime();
+
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong budgetRejectedCount = new AtomicLong();
+
+    public ElfWsRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param maxAttempts
+     *        attempts of a request, the first one included
+     *
+     * @param initialBackoffMillis
+     *        maximum wait before the first retry, doubled at each further retry
+     *
+     * @param maxBackoffMillis
+     *        maximum wait before a retry
+     */
+    public ElfWsRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("Invalid number of attempts");
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) throw new IllegalArgumentException("Invalid backoff");
+
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Status codes of the responses that are retried.
+     * @param codes the status codes, none to retry only on exceptions
+     */
+    public void setRetryableStatusCodes(int... codes) {
+        retryableStatusCodes = statusCodes(codes);
+    }
+
+    public Set<Integer> getRetryableStatusCodes() {
+        return retryableStatusCodes;
+    }
+
+    /**
+     * Longest <code>Retry-After</code> that is waited: a server asking for more gets its response
+     * given back to the caller without retry.
+     * @param millis milliseconds
+     */
+    public void setMaxRetryAfter(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Invalid Retry-After limit");
+        maxRetryAfterMillis = millis;
+    }
+
+    public long getMaxRetryAfter() {
+        return maxRetryAfterMillis;
+    }
+
+    /**
+     * Set the retry budget.
+     *
+     * @param ratio
+     *        retries earned by every request, e.g. 0.1 to allow retries for 10% of the requests
+     *
+     * @param minRetriesPerSecond
+     *        retries allowed per second whatever the traffic
+     */
+    public synchronized void setBudget(double ratio, int minRetriesPerSecond) {
+        if (ratio < 0 || minRetriesPerSecond < 0) throw new IllegalArgumentException("Invalid retry budget");
+
+        budgetRatio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        balance = Math.min(balance, budgetCap());
+    }
+
+    public synchronized double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public synchronized int getMinRetriesPerSecond() {
+        return minRetriesPerSecond;
+    }
+
+    /**
+     * Retries performed.
+     * @return long
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Retries not performed because the budget was exhausted.
+     * @return long
+     */
+    public long getBudgetRejectedCount() {
+        return budgetRejectedCount.get();
+    }
+
+    /**
+     * Account a new request in the budget, before its first attempt.
+     */
+    synchronized void onRequest() {
+        refill();
+        balance = Math.min(balance + budgetRatio, budgetCap());
+    }
+
+    /**
+     * Decide whether attempt number <code>attempt</code> of <code>request</code>, which ended
+     * with <code>response</code> or <code>exception</code>, is followed by another one. A positive
+     * answer spends a retry of the budget.
+     *
+     * @param remainingMillis
+     *        time left before the deadline of the request, the wait must be shorter
+     *
+     * @return long milliseconds to wait before the next attempt, -1 for no retry
+     */
+    long retryDelay(ElfWsRequest request, int attempt, ElfWsResponse response, Exception exception, long remainingMillis) {
+        if (attempt >= maxAttempts) return -1;
+
+        long delay;
+        if (exception != null) {
+            if (!isRetryable(exception) || !(request.isIdempotent() || isNotSent(exception))) return -1;
+            delay = backoff(attempt);
+        }
+        else {
+            if (response == null || !retryableStatusCodes.contains(response.getResponseCode()) || !request.isIdempotent()) return -1;
+
+            delay = retryAfter(response);
+            if (delay > maxRetryAfterMillis) return -1;
+            if (delay < 0) delay = backoff(attempt);
+        }
+        if (delay >= remainingMillis) return -1;
+
+        if (!withdraw()) {
+            budgetRejectedCount.incrementAndGet();
+            return -1;
+        }
+        retryCount.incrementAndGet();
+        return delay;
+    }
+
+    /**
+     * Random wait before the retry following attempt number <code>attempt</code>.
+     */
+    private long backoff(int attempt) {
+        long ceiling = initialBackoffMillis;
+        for (int i = 1; i < attempt && ceiling < maxBackoffMillis; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxBackoffMillis);
+
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * The wait asked by the <code>Retry-After</code> header, in seconds or as a date.
+     * @return long milliseconds, -1 if absent or invalid
+     */
+    static long retryAfter(ElfWsResponse response) {
+        String value = response.getHeader("Retry-After");
+        if (value == null) return -1;
+
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        }
+        catch (NumberFormatException e) {
+            long date = ElfWsUtil.parseHttpDate(value);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * True if the failure can be transient: network errors, but not invalid urls or certificates.
+     */
+    private static boolean isRetryable(Exception exception) {
+        return exception instanceof IOException
+                && !(exception instanceof MalformedURLException)
+                && !(exception instanceof SSLHandshakeException)
+                && !(exception instanceof SSLPeerUnverifiedException);
+    }
+
+    /**
+     * True if the request failed before reaching the server, so sending it again is safe.
+     */
+    private static boolean isNotSent(Exception exception) {
+        return exception instanceof ConnectException
+                || exception instanceof NoRouteToHostException
+                || exception instanceof UnknownHostException
+                || exception instanceof ElfWsStreamRefusedException;
+    }
+
+    private synchronized boolean withdraw() {
+        refill();
+        if (balance < 1) return false;
+
+        balance -= 1;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        balance = Math.min(balance + minRetriesPerSecond * ((now - lastRefill) / 1e9), budgetCap());
+        lastRefill = now;
+    }
+
+    private double budgetCap() {
+        return BUDGET_CAP_SECONDS * Math.max(1, minRetriesPerSecond);
+    }
+
+    private static Set<Integer> statusCodes(int... codes) {
+        Set<Integer> set = new HashSet<>();
+        for (int code : codes) {
+            set.add(code);
+        }
+        return Collections.unmodifiableSet(set);
+    }
+}
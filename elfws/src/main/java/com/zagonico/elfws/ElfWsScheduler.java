@@ -0,0 +1,82 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer shared by the library for delayed work (batch windows, timeouts, retries). A single
+ * daemon thread runs the tasks, which must be short: anything that blocks is handed to a
+ * dispatcher.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+final class ElfWsScheduler {
+    private static volatile ScheduledThreadPoolExecutor executor;
+    private static volatile Thread thread;
+
+    private ElfWsScheduler() {
+    }
+
+    /**
+     * Run <code>task</code> after <code>delayMillis</code>.
+     * @return ScheduledFuture to cancel the task
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return executor().schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * True if the current thread is the one of the scheduler, which must never run a request.
+     */
+    static boolean isSchedulerThread() {
+        return thread == Thread.currentThread();
+    }
+
+    private static ScheduledThreadPoolExecutor executor() {
+        ScheduledThreadPoolExecutor scheduler = executor;
+        if (scheduler == null) {
+            synchronized (ElfWsScheduler.class) {
+                if (executor == null) {
+                    scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread worker = new Thread(runnable, "ElfWs scheduler");
+                            worker.setDaemon(true);
+                            thread = worker;
+                            return worker;
+                        }
+                    });
+                    // cancelled timeouts are the norm, they must not pile up in the queue
+                    scheduler.setRemoveOnCancelPolicy(true);
+                    executor = scheduler;
+                }
+                scheduler = executor;
+            }
+        }
+        return scheduler;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+/**
+ * Sends an {@link com.zagonico.elfws.ElfWsExchange ElfWsExchange} and reads its response. The
+ * client delegates the network to its transport, set with
+ * {@link com.zagonico.elfws.ElfWsClient#setTransport(ElfWsTransport) setTransport}; the default
+ * one is {@link com.zagonico.elfws.ElfWsUrlConnectionTransport ElfWsUrlConnectionTransport}.
+ *
+ * A blocking transport uses the calling thread for the whole request and returns a future
+ * already completed. A non blocking one returns at once and completes the future from its own
+ * threads, so the worker of the dispatcher is released while the request is in flight.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public interface ElfWsTransport {
+    /**
+     * Send the exchange. Transports abort the request when the exchange is cancelled, see
+     * {@link com.zagonico.elfws.ElfWsExchange#onCancel(Runnable) onCancel}.
+     * @param exchange the request to send
+     * @return ElfWsFuture completed with the response, or failed with the exception that
+     *         prevented it
+     */
+    ElfWsFuture send(ElfWsExchange exchange);
+
+    /**
+     * True if {@link #send(ElfWsExchange) send} returns before the response is received.
+     * @return boolean
+     */
+    boolean isNonBlocking();
+}
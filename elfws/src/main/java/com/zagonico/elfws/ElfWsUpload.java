@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A file enqueued in an {@link com.zagonico.elfws.ElfWsRequest ElfWsRequest}, with the
+ * information of its multipart section.
+ *
+ * The content is not read when the upload is created: its {@link Source Source} is opened only
+ * while the body of the request is written, and copied in chunks, so the memory used doesn't
+ * depend on the size of the file.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public final class ElfWsUpload {
+    /**
+     * Content of an upload, opened lazily.
+     */
+    public interface Source {
+        /**
+         * Open a new stream on the content. The caller closes it.
+         * @return InputStream
+         * @throws IOException if the content cannot be opened
+         */
+        InputStream open() throws IOException;
+
+        /**
+         * Size in bytes of the content.
+         * @return long length, -1 if unknown
+         */
+        long length();
+    }
+
+    private final Source source;
+    private final String fieldName;
+    private final String fileName;
+    private final String mime;
+
+    public ElfWsUpload(Source source, String fieldName, String fileName, String mime) {
+        if (source == null) throw new IllegalArgumentException("Source cannot be null");
+
+        this.source = source;
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.mime = mime;
+    }
+
+    public ElfWsUpload(byte[] content, String fieldName, String fileName, String mime) {
+        this(fromBytes(content), fieldName, fileName, mime);
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * Size in bytes of the content.
+     * @return long length, -1 if unknown
+     */
+    public long getLength() {
+        return source.length();
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    /**
+     * Copy the content to <code>out</code>, <code>buffer.length</code> bytes at a time.
+     * @param out destination stream
+     * @param buffer buffer used for the copy
+     * @return long number of bytes copied
+     * @throws IOException if reading or writing fails
+     */
+    public long writeTo(OutputStream out, byte[] buffer) throws IOException {
+        long total = 0;
+        InputStream in = source.open();
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return total;
+    }
+
+    /**
+     * Content already in memory.
+     * @param content the bytes to upload
+     * @return Source
+     */
+    public static Source fromBytes(final byte[] content) {
+        if (content == null) throw new IllegalArgumentException("Content cannot be null");
+
+        return new Source() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(content);
+            }
+
+            @Override
+            public long length() {
+                return content.length;
+            }
+        };
+    }
+
+    /**
+     * Content of a file, opened every time the request is sent.
+     * @param file the file to upload
+     * @return Source
+     */
+    public static Source fromFile(final File file) {
+        if (file == null) throw new IllegalArgumentException("File cannot be null");
+
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public long length() {
+                return file.length();
+            }
+        };
+    }
+
+    /**
+     * Content of an Uri, opened with the content resolver every time the request is sent.
+     * @param context context to resolve the uri
+     * @param uri the uri to upload
+     * @return Source
+     */
+    public static Source fromUri(Context context, final Uri uri) {
+        if (uri == null) throw new IllegalArgumentException("Uri cannot be null");
+
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        final long length = ElfWsUtil.getSizeFromUri(appContext, uri);
+
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                InputStream in = appContext.getContentResolver().openInputStream(uri);
+                if (in == null) throw new IOException("Cannot open " + uri);
+                return in;
+            }
+
+            @Override
+            public long length() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Content of a stream. A stream can be read only once, so a request with this source can be
+     * sent only once; further attempts fail.
+     * @param inputStream the stream to upload, closed after the upload
+     * @param length size of the content, -1 if unknown
+     * @return Source
+     */
+    public static Source fromStream(final InputStream inputStream, final long length) {
+        if (inputStream == null) throw new IllegalArgumentException("Input stream cannot be null");
+
+        final AtomicBoolean opened = new AtomicBoolean(false);
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                if (opened.getAndSet(true)) throw new IOException("Input stream already consumed");
+                return inputStream;
+            }
+
+            @Override
+            public long length() {
+                return length;
+            }
+        };
+    }
+}
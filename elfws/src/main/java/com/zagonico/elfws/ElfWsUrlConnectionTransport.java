@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2021 Nicola Zago
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.zagonico.elfws;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Blocking transport based on <code>HttpURLConnection</code> and <code>HttpsURLConnection</code>,
+ * with the keep-alive cache of the platform configured by
+ * {@link com.zagonico.elfws.ElfWsConnectionPool ElfWsConnectionPool}. It is the default transport
+ * of {@link com.zagonico.elfws.ElfWsClient ElfWsClient}.
+ *
+ * @author zagonico
+ * @version 1.0
+ */
+public class ElfWsUrlConnectionTransport implements ElfWsTransport {
+    private static final ElfWsUrlConnectionTransport DEFAULT = new ElfWsUrlConnectionTransport();
+
+    /**
+     * The shared instance, the transport has no state.
+     * @return ElfWsUrlConnectionTransport
+     */
+    public static ElfWsUrlConnectionTransport getDefault() {
+        return DEFAULT;
+    }
+
+    @Override
+    public ElfWsFuture send(ElfWsExchange exchange) {
+        ElfWsFuture future = new ElfWsFuture();
+        try {
+            future.complete(execute(exchange));
+        }
+        catch (Exception e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return false;
+    }
+
+    /**
+     * Send the exchange from a worker of the default {@link com.zagonico.elfws.ElfWsDispatcher
+     * ElfWsDispatcher}, for the non blocking transports that hand a request over to this one:
+     * their callers must not wait for the network.
+     * @param exchange the request to send
+     * @return ElfWsFuture completed with the response
+     */
+    ElfWsFuture sendInWorker(final ElfWsExchange exchange) {
+        final ElfWsFuture future = new ElfWsFuture();
+        exchange.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                future.fail(new CancellationException("Request cancelled"));
+            }
+        });
+
+        try {
+            ElfWsDispatcher.getDefault().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) return;
+
+                    try {
+                        future.complete(execute(exchange));
+                    }
+                    catch (Exception e) {
+                        future.fail(e);
+                    }
+                }
+            }, exchange.getRequest().getPriority(), future);
+        }
+        catch (RejectedExecutionException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Send the request on a (possibly reused) connection and read the whole response, so that
+     * the connection can go back to the keep-alive cache.
+     * @param exchange the request to send
+     * @return ElfWsResponse
+     * @throws Exception if the request fails
+     */
+    public ElfWsResponse execute(ElfWsExchange exchange) throws Exception {
+        URL url = exchange.getUrl();
+        final HttpURLConnection conn;
+        if ("https".equals(url.getProtocol()))
+            conn = (HttpsURLConnection) url.openConnection();
+        else
+            conn = (HttpURLConnection) url.openConnection();
+
+        exchange.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                conn.disconnect();
+            }
+        });
+        if (exchange.isCancelled()) throw new CancellationException("Request cancelled");
+
+        ElfWsBody body = exchange.getBody();
+        conn.setDoOutput(body != null);
+        conn.setRequestMethod(exchange.getMethod());
+
+        exchange.applyAuth(conn);
+
+        Map<String, String> headers = exchange.getHeaders();
+        for (String header : headers.keySet()) {
+            conn.setRequestProperty(header, headers.get(header));
+        }
+
+        conn.setDoInput(true);
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(exchange.getConnectTimeout());
+        conn.setReadTimeout(exchange.getReadTimeout());
+
+        if (body != null) {
+            if (!exchange.getRequest().isXml()) {
+                conn.setRequestProperty("Expect", "100-continue");
+            }
+
+            // the body goes to the socket while it is written instead of being buffered whole
+            long contentLength = body.getContentLength();
+            if (contentLength >= 0)
+                conn.setFixedLengthStreamingMode(contentLength);
+            else
+                conn.setChunkedStreamingMode(0);
+
+            OutputStream out = new BufferedOutputStream(conn.getOutputStream(), ElfWsClient.BUFFER_SIZE);
+            try {
+                body.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+
+        int code = conn.getResponseCode();
+
+        InputStream stream;
+        if (code < HttpURLConnection.HTTP_BAD_REQUEST) {
+            stream = conn.getInputStream();
+        }
+        else {
+            stream = conn.getErrorStream();
+        }
+
+        return exchange.readResponse(code, conn.getHeaderFields(), stream, conn.getContentLength());
+    }
+}
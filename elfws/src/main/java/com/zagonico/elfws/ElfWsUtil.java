@@ -25,25 +25,37 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Looper;
+import android.provider.OpenableColumns;
 import android.webkit.MimeTypeMap;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Class with miscellaneous methods useful in the library or working with web services.
@@ -52,6 +64,45 @@ import java.util.Scanner;
  * @version 1.0
  */
 public class ElfWsUtil {
+    /**
+     * Largest buffer allocated upfront from an announced length, beyond it the buffer grows with
+     * the bytes actually received.
+     */
+    private static final int MAX_INITIAL_SIZE = 1024 * 1024;
+
+    /**
+     * Copy buffer of each worker thread, reused by all the requests it performs.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[ElfWsClient.BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * The copy buffer of the current thread. It must not be kept after the copy.
+     * @return byte[] buffer
+     */
+    static byte[] threadBuffer() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * True if the current thread is the Android main thread, where no network call may run.
+     * @return boolean, false outside Android
+     */
+    static boolean isMainThread() {
+        try {
+            Looper main = Looper.getMainLooper();
+            return main != null && main.getThread() == Thread.currentThread();
+        }
+        catch (RuntimeException e) {
+            // the stubs of the unit tests
+            return false;
+        }
+    }
+
     /**
      * Encodes the passed String as UTF-8 using an algorithm that's compatible
      * with JavaScript's <code>encodeURIComponent</code> function. Returns
@@ -147,28 +198,116 @@ public class ElfWsUtil {
     }
 
     public static byte[] readBinaryFile(String pathname) throws IOException {
+        return readTextFromInputStream(new FileInputStream(new File(pathname)));
+    }
 
-        File file = new File(pathname);
-        byte[] outb = new byte[((int)file.length())];
-        InputStream inputStream = new FileInputStream(file);
-
-        int offset = 0;
-        inputStream.read(outb);
+    /**
+     * Read the whole stream as bytes, line endings included, and close it.
+     * @param inputStream the stream to read
+     * @return byte[] content
+     * @throws IOException if reading fails
+     */
+    public static byte[] readTextFromInputStream(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Objects.requireNonNull(inputStream)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
 
-        return outb;
+    /**
+     * Read the whole stream as bytes through the copy buffer of the current thread, in time
+     * linear with its size, and close it.
+     * @param inputStream the stream to read
+     * @param expectedLength the expected size (e.g. from Content-Length), -1 if unknown; at most
+     *                       1 MB is allocated before the bytes arrive
+     * @return byte[] content
+     * @throws IOException if reading fails
+     */
+    public static byte[] readFully(InputStream inputStream, long expectedLength) throws IOException {
+        int initialSize = expectedLength > 0 ? (int) Math.min(expectedLength, MAX_INITIAL_SIZE) : ElfWsClient.BUFFER_SIZE;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(initialSize);
+        byte[] buffer = threadBuffer();
+        try (InputStream in = Objects.requireNonNull(inputStream)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
     }
 
-    public static byte[] readTextFromInputStream(InputStream inputStream) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-        try (
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(Objects.requireNonNull(inputStream)))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line);
+    /**
+     * Copy the whole stream into <code>file</code> through the copy buffer of the current
+     * thread, and close it. The memory used doesn't depend on the size of the stream.
+     * @param inputStream the stream to read
+     * @param file the destination, overwritten
+     * @return long number of bytes copied
+     * @throws IOException if reading or writing fails
+     */
+    public static long copyToFile(InputStream inputStream, File file) throws IOException {
+        long total = 0;
+        byte[] buffer = threadBuffer();
+        try (InputStream in = Objects.requireNonNull(inputStream);
+             OutputStream out = new FileOutputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
             }
         }
-        return stringBuilder.toString().getBytes();
+        return total;
+    }
+
+    /**
+     * Stream that decompresses <code>inputStream</code> while it is read, according to the
+     * Content-Encoding of the response. Deflate is accepted both zlib wrapped and raw, since
+     * servers send both.
+     * @param inputStream the body as received
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     * @return InputStream the decoded body, <code>inputStream</code> itself if not compressed
+     * @throws IOException if the compressed header is invalid
+     */
+    public static InputStream decodeContent(InputStream inputStream, String contentEncoding) throws IOException {
+        if (inputStream == null || contentEncoding == null) return inputStream;
+
+        String encoding = contentEncoding.trim().toLowerCase(Locale.US);
+        boolean gzip = "gzip".equals(encoding) || "x-gzip".equals(encoding);
+        if (!gzip && !"deflate".equals(encoding)) return inputStream;
+
+        // an empty body (HEAD, 204, 304) can still declare the encoding
+        BufferedInputStream in = new BufferedInputStream(inputStream, ElfWsClient.BUFFER_SIZE);
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first == -1) return in;
+
+        if (gzip) return new GZIPInputStream(in, ElfWsClient.BUFFER_SIZE);
+
+        boolean zlib = second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(in, new Inflater(!zlib), ElfWsClient.BUFFER_SIZE);
+    }
+
+    /**
+     * Gzip <code>content</code> in memory.
+     * @param content the bytes to compress
+     * @return byte[] gzip stream
+     */
+    public static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, ElfWsClient.BUFFER_SIZE)) {
+            gzip.write(content);
+        }
+        catch (IOException e) {
+            // a ByteArrayOutputStream doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
     }
 
     public static String concatenateParameters(Map<String, String> params) {
@@ -228,12 +367,74 @@ public class ElfWsUtil {
         return result;
     }
 
+    /**
+     * Size of the content of <code>uri</code>, as reported by its provider.
+     * @param context context to resolve the uri
+     * @param uri the uri
+     * @return long size in bytes, -1 if unknown
+     */
+    public static long getSizeFromUri(Context context, Uri uri) {
+        long size = -1;
+        if ("content".equals(uri.getScheme())) {
+            Cursor cursor = context.getContentResolver().query(uri, new String[] { OpenableColumns.SIZE }, null, null, null);
+            if (cursor != null) {
+                try {
+                    int index = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    if (cursor.moveToFirst() && index >= 0 && !cursor.isNull(index)) {
+                        size = cursor.getLong(index);
+                    }
+                }
+                finally {
+                    cursor.close();
+                }
+            }
+        }
+        else if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            if (file.isFile()) size = file.length();
+        }
+        return size;
+    }
+
     public static String getMimeFromUri(Context context, Uri uri) {
         ContentResolver cR = context.getContentResolver();
         MimeTypeMap mime = MimeTypeMap.getSingleton();
         return mime.getExtensionFromMimeType(cR.getType(uri));
     }
 
+    /**
+     * Parse a date of an http header (RFC 1123, RFC 850 or asctime format).
+     * @param value header value
+     * @return long milliseconds since epoch, -1 if missing or invalid
+     */
+    public static long parseHttpDate(String value) {
+        if (value == null) return -1;
+
+        String[] patterns = { "EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return format.parse(value.trim()).getTime();
+            }
+            catch (ParseException e) {
+                // try next format
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Format a date for an http header (RFC 1123).
+     * @param millis milliseconds since epoch
+     * @return String date
+     */
+    public static String formatHttpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
     public static String YyyymmddHHiiss(int seconds) {
         Calendar calendar = Calendar.getInstance(); // gets a calendar using the default time zone and locale.
         calendar.add(Calendar.SECOND, seconds);
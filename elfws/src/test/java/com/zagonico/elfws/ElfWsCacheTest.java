@@ -0,0 +1,209 @@
+package com.zagonico.elfws;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Freshness, Vary and ownership of the responses kept by {@link ElfWsCache}.
+ */
+public class ElfWsCacheTest {
+    private static final String URL = "https://example.com/items?page=1";
+
+    private static ElfWsRequest request(String... headers) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < headers.length; i += 2) map.put(headers[i], headers[i + 1]);
+        return new ElfWsRequest.Builder(URL).setAddictionalHeaders(map).build();
+    }
+
+    private static ElfWsResponse response(String... headers) {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        map.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+        for (int i = 0; i < headers.length; i += 2) map.put(headers[i], Collections.singletonList(headers[i + 1]));
+
+        ElfWsResponse response = new ElfWsResponse(200, map);
+        response.addContentInfo(null, "application/json", "{\"page\":1}".getBytes(StandardCharsets.UTF_8));
+        return response;
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    @Test
+    public void maxAge_decidesFreshness() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        cache.stored(request(), null, response("Cache-Control", "max-age=60"), now, now);
+
+        ElfWsCache.Entry entry = cache.lookup(request(), null);
+        assertNotNull(entry);
+        assertTrue(entry.isFresh(now + 59 * 1000));
+        assertFalse(entry.isFresh(now + 61 * 1000));
+        assertEquals("{\"page\":1}", cache.serve(entry).getContent());
+        assertTrue(cache.serve(entry).isFromCache());
+    }
+
+    @Test
+    public void servedResponses_doNotShareTheEntry() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        ElfWsResponse network = response("Cache-Control", "max-age=60");
+        cache.stored(request(), null, network, now, now);
+
+        // changes to the stored response or to a served one never reach the cache
+        network.getBody()[0] = 'X';
+        ElfWsCache.Entry entry = cache.lookup(request(), null);
+        ElfWsResponse first = cache.serve(entry);
+        first.getBody()[1] = 'Y';
+        first.getHeaders().put("X-Changed", Collections.singletonList("1"));
+
+        ElfWsResponse second = cache.serve(entry);
+        assertEquals("{\"page\":1}", second.getContent());
+        assertNull(second.getHeader("X-Changed"));
+    }
+
+    @Test
+    public void ageHeader_shortensFreshness() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        cache.stored(request(), null, response("Cache-Control", "max-age=60", "Age", "50"), now, now);
+
+        ElfWsCache.Entry entry = cache.lookup(request(), null);
+        assertTrue(entry.isFresh(now + 9 * 1000));
+        assertFalse(entry.isFresh(now + 11 * 1000));
+    }
+
+    @Test
+    public void expires_isRelativeToDate() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        cache.stored(request(), null, response("Date", httpDate(now), "Expires", httpDate(now + 120 * 1000)), now, now);
+
+        ElfWsCache.Entry entry = cache.lookup(request(), null);
+        assertTrue(entry.isFresh(now + 100 * 1000));
+        assertFalse(entry.isFresh(now + 130 * 1000));
+    }
+
+    @Test
+    public void noCache_isStoredButAlwaysRevalidated() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        cache.stored(request(), null, response("Cache-Control", "no-cache", "ETag", "\"v1\""), now, now);
+
+        ElfWsCache.Entry entry = cache.lookup(request(), null);
+        assertNotNull(entry);
+        assertFalse(entry.isFresh(now));
+        assertTrue(entry.canRevalidate());
+        assertEquals("\"v1\"", entry.conditionalHeaders().get("If-None-Match"));
+    }
+
+    @Test
+    public void unstorableResponses_areNotKept() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+
+        cache.stored(request(), null, response("Cache-Control", "no-store, max-age=60"), now, now);
+        assertNull(cache.lookup(request(), null));
+
+        // neither a lifetime nor validators
+        cache.stored(request(), null, response(), now, now);
+        assertNull(cache.lookup(request(), null));
+
+        cache.stored(request(), null, response("Cache-Control", "max-age=60", "Vary", "*"), now, now);
+        assertNull(cache.lookup(request(), null));
+    }
+
+    @Test
+    public void vary_matchesTheRequestHeaders() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        cache.stored(request("Accept-Language", "en"), null,
+                response("Cache-Control", "max-age=60", "Vary", "Accept-Language"), now, now);
+
+        assertNotNull(cache.lookup(request("accept-language", "en"), null));
+        assertNull(cache.lookup(request("Accept-Language", "it"), null));
+        assertNull(cache.lookup(request(), null));
+    }
+
+    @Test
+    public void requestDirectives_bypassOrRevalidate() {
+        assertTrue(ElfWsCache.isCacheable(request()));
+        assertFalse(ElfWsCache.isCacheable(request("Cache-Control", "no-store")));
+
+        assertFalse(ElfWsCache.requiresRevalidation(request()));
+        assertTrue(ElfWsCache.requiresRevalidation(request("Cache-Control", "no-cache")));
+        assertTrue(ElfWsCache.requiresRevalidation(request("Cache-Control", "max-age=0")));
+        assertTrue(ElfWsCache.requiresRevalidation(request("Pragma", "no-cache")));
+    }
+
+    @Test
+    public void responses_areKeptPerOwner() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        Object alice = new Object();
+        Object bob = new Object();
+        cache.stored(request(), alice, response("Cache-Control", "private, max-age=60"), now, now);
+
+        assertNotNull(cache.lookup(request(), alice));
+        assertNull(cache.lookup(request(), bob));
+        assertNull(cache.lookup(request(), null));
+
+        cache.remove(URL);
+        assertNull(cache.lookup(request(), alice));
+    }
+
+    @Test
+    public void authorizationHeader_storesOnlyPublicResponses() {
+        ElfWsCache cache = new ElfWsCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+
+        cache.stored(request("Authorization", "Bearer a"), null, response("Cache-Control", "max-age=60"), now, now);
+        assertNull(cache.lookup(request(), null));
+
+        cache.stored(request("Authorization", "Bearer a"), null, response("Cache-Control", "public, max-age=60"), now, now);
+        assertNotNull(cache.lookup(request(), null));
+    }
+
+    @Test
+    public void diskTier_survivesTheInstance() throws IOException {
+        File directory = File.createTempFile("elfws", "cache");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            long now = System.currentTimeMillis();
+            ElfWsCache cache = new ElfWsCache(1024 * 1024, directory, 1024 * 1024);
+            cache.stored(request(), null, response("Cache-Control", "max-age=60", "ETag", "\"v1\""), now, now);
+            assertTrue(cache.getDiskSize() > 0);
+
+            ElfWsCache.Entry entry = new ElfWsCache(1024 * 1024, directory, 1024 * 1024).lookup(request(), null);
+            assertNotNull(entry);
+            assertTrue(entry.isFresh(now));
+            assertEquals("\"v1\"", entry.etag());
+            assertArrayEquals(response().getBody(), entry.body);
+
+            // responses of an owner never reach the disk
+            cache.clear();
+            cache.stored(request(), new Object(), response("Cache-Control", "max-age=60"), now, now);
+            assertEquals(0, cache.getDiskSize());
+        }
+        finally {
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.zagonico.elfws;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the HPACK encoder and decoder of the HTTP/2 transport, checked against the
+ * examples of RFC 7541.
+ */
+public class ElfWsHpackTest {
+    private static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(ElfWsHpack.Encoder encoder, String[][] fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.begin(out);
+        for (String[] field : fields) encoder.encode(out, field[0], field[1], false);
+        return out.toByteArray();
+    }
+
+    private static void assertFields(String[][] expected, List<String[]> actual) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], actual.get(i)[0]);
+            assertEquals(expected[i][1], actual.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void integer_usesContinuationBytes() throws IOException {
+        // RFC 7541 C.1.2: 1337 with a 5 bit prefix
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ElfWsHpack.writeInt(out, 0, 5, 1337);
+        assertArrayEquals(hex("1f 9a 0a"), out.toByteArray());
+
+        int[] pos = { 0 };
+        assertEquals(1337, ElfWsHpack.readInt(out.toByteArray(), out.size(), pos, 5));
+        assertEquals(3, pos[0]);
+    }
+
+    @Test
+    public void huffman_roundTrip() throws IOException {
+        // RFC 7541 C.4.1
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ElfWsHpack.huffmanEncode(out, "www.example.com".getBytes("ISO-8859-1"));
+        assertArrayEquals(hex("f1e3 c2e5 f23a 6ba0 ab90 f4ff"), out.toByteArray());
+        assertEquals("www.example.com", ElfWsHpack.huffmanDecode(out.toByteArray(), 0, out.size()));
+
+        String all = "Accept: */*; q=0.8 {\"a\":[1,2]} ~|\\^`";
+        out.reset();
+        ElfWsHpack.huffmanEncode(out, all.getBytes("ISO-8859-1"));
+        assertEquals(all, ElfWsHpack.huffmanDecode(out.toByteArray(), 0, out.size()));
+    }
+
+    @Test
+    public void request_matchesRfcExample() throws IOException {
+        // RFC 7541 C.4.1, first request with Huffman coding
+        String[][] fields = {
+                { ":method", "GET" },
+                { ":scheme", "http" },
+                { ":path", "/" },
+                { ":authority", "www.example.com" },
+        };
+        byte[] block = encode(new ElfWsHpack.Encoder(), fields);
+        assertArrayEquals(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"), block);
+
+        assertFields(fields, new ElfWsHpack.Decoder().decode(block, block.length));
+    }
+
+    @Test
+    public void dynamicTable_isSharedAcrossBlocks() throws IOException {
+        ElfWsHpack.Encoder encoder = new ElfWsHpack.Encoder();
+        ElfWsHpack.Decoder decoder = new ElfWsHpack.Decoder();
+        String[][] fields = {
+                { ":method", "GET" },
+                { ":path", "/api/items?page=2" },
+                { "user-agent", "ElfWs" },
+                { "x-custom", "value" },
+        };
+
+        byte[] first = encode(encoder, fields);
+        assertFields(fields, decoder.decode(first, first.length));
+
+        // the second block refers to the entries added by the first one
+        byte[] second = encode(encoder, fields);
+        assertTrue(second.length < first.length);
+        assertEquals(fields.length, second.length);
+        assertFields(fields, decoder.decode(second, second.length));
+    }
+
+    @Test
+    public void sensitiveField_isNeverIndexed() throws IOException {
+        ElfWsHpack.Encoder encoder = new ElfWsHpack.Encoder();
+        ElfWsHpack.Decoder decoder = new ElfWsHpack.Decoder();
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.begin(out);
+            encoder.encode(out, "authorization", "Bearer secret", true);
+            byte[] block = out.toByteArray();
+
+            // literal never indexed, with the name of the static table
+            assertEquals(0x10, block[0] & 0xf0);
+            assertFields(new String[][] { { "authorization", "Bearer secret" } }, decoder.decode(block, block.length));
+        }
+    }
+
+    @Test
+    public void tableSizeUpdate_evictsEntries() throws IOException {
+        ElfWsHpack.Encoder encoder = new ElfWsHpack.Encoder();
+        ElfWsHpack.Decoder decoder = new ElfWsHpack.Decoder();
+        String[][] fields = { { "x-custom", "value" } };
+
+        byte[] first = encode(encoder, fields);
+        decoder.decode(first, first.length);
+
+        // with an empty table the field is sent as a literal again
+        encoder.setMaxTableSize(0);
+        byte[] second = encode(encoder, fields);
+        assertEquals(0x20, second[0] & 0xff);
+        assertFields(fields, decoder.decode(second, second.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedBlock_fails() throws IOException {
+        byte[] block = encode(new ElfWsHpack.Encoder(), new String[][] { { "x-custom", "value" } });
+        new ElfWsHpack.Decoder().decode(block, block.length - 1);
+    }
+}
@@ -0,0 +1,126 @@
+package com.zagonico.elfws;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Incremental HTTP/1.1 response parser of {@link ElfWsNioTransport}.
+ */
+public class ElfWsResponseParserTest {
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String body(ElfWsNioTransport.ResponseParser parser) {
+        return new String(parser.body.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void contentLength_stopsAtTheEndOfTheBody() throws IOException {
+        ElfWsNioTransport.ResponseParser parser = new ElfWsNioTransport.ResponseParser(false);
+        ByteBuffer in = bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-A: 1\r\nX-A: 2\r\n\r\nhelloHTTP/1.1");
+
+        assertTrue(parser.feed(in));
+        assertEquals(200, parser.code);
+        assertTrue(parser.keepAlive);
+        assertEquals("hello", body(parser));
+        assertEquals("HTTP/1.1 200 OK", parser.headers().get(null).get(0));
+        assertEquals(2, parser.headers().get("X-A").size());
+
+        // the next pipelined response is left in the buffer
+        assertEquals(8, in.remaining());
+    }
+
+    @Test
+    public void chunked_fedOneByteAtATime() throws IOException {
+        ElfWsNioTransport.ResponseParser parser = new ElfWsNioTransport.ResponseParser(false);
+        byte[] response = ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n7\r\n, world\r\n0\r\nX-Trailer: t\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        boolean done = false;
+        for (int i = 0; i < response.length; i++) {
+            assertFalse(done);
+            done = parser.feed(ByteBuffer.wrap(response, i, 1));
+        }
+        assertTrue(done);
+        assertEquals("hello, world", body(parser));
+    }
+
+    @Test
+    public void interimResponse_isSkipped() throws IOException {
+        ElfWsNioTransport.ResponseParser parser = new ElfWsNioTransport.ResponseParser(false);
+
+        assertTrue(parser.feed(bytes("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\nok")));
+        assertEquals(201, parser.code);
+        assertEquals("ok", body(parser));
+    }
+
+    @Test
+    public void noBody_forHeadAnd304() throws IOException {
+        ElfWsNioTransport.ResponseParser head = new ElfWsNioTransport.ResponseParser(true);
+        assertTrue(head.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n")));
+        assertEquals(0, head.body.size());
+
+        ElfWsNioTransport.ResponseParser notModified = new ElfWsNioTransport.ResponseParser(false);
+        assertTrue(notModified.feed(bytes("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n")));
+        assertEquals(304, notModified.code);
+    }
+
+    @Test
+    public void keepAlive_followsVersionAndConnection() throws IOException {
+        ElfWsNioTransport.ResponseParser close = new ElfWsNioTransport.ResponseParser(false);
+        close.feed(bytes("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(close.keepAlive);
+
+        ElfWsNioTransport.ResponseParser http10 = new ElfWsNioTransport.ResponseParser(false);
+        http10.feed(bytes("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(http10.keepAlive);
+
+        ElfWsNioTransport.ResponseParser http10KeepAlive = new ElfWsNioTransport.ResponseParser(false);
+        http10KeepAlive.feed(bytes("HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\nContent-Length: 0\r\n\r\n"));
+        assertTrue(http10KeepAlive.keepAlive);
+    }
+
+    @Test
+    public void withoutLength_readsUntilClose() throws IOException {
+        ElfWsNioTransport.ResponseParser parser = new ElfWsNioTransport.ResponseParser(false);
+
+        assertFalse(parser.feed(bytes("HTTP/1.1 200 OK\r\n\r\npart one, ")));
+        assertFalse(parser.feed(bytes("part two")));
+        assertTrue(parser.isUntilClose());
+        assertFalse(parser.mayKeepAlive());
+
+        parser.finishAtClose();
+        assertEquals("part one, part two", body(parser));
+    }
+
+    @Test
+    public void directBuffer_isCopiedWhole() throws IOException {
+        ElfWsNioTransport.ResponseParser parser = new ElfWsNioTransport.ResponseParser(false);
+        byte[] payload = new byte[3 * ElfWsClient.BUFFER_SIZE + 17];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+
+        ByteBuffer in = ByteBuffer.allocateDirect(payload.length + 64);
+        in.put(("HTTP/1.1 200 OK\r\nContent-Length: " + payload.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        in.put(payload);
+        in.flip();
+
+        assertTrue(parser.feed(in));
+        assertArrayEquals(payload, parser.body.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidStatusLine_fails() throws IOException {
+        new ElfWsNioTransport.ResponseParser(false).feed(bytes("SSH-2.0-OpenSSH\r\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidChunkSize_fails() throws IOException {
+        new ElfWsNioTransport.ResponseParser(false).feed(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"));
+    }
+}